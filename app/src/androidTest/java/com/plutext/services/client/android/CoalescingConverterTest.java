@@ -0,0 +1,213 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.os.CancellationSignal;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Cancelling requests which share a conversion.  These need a working
+ * CancellationSignal, so run on a device.
+ */
+public class CoalescingConverterTest {
+
+	private static final byte[] DOCUMENT = "document".getBytes();
+	private static final byte[] RESULT = "the converted document".getBytes();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ListeningExecutorService executor;
+	private BlockingConverter inner;
+	private CoalescingConverter converter;
+
+	@Before
+	public void setUp() throws IOException {
+		executor = ConversionExecutor.newExecutor(2);
+		inner = new BlockingConverter();
+		converter = new CoalescingConverter(inner, folder.newFolder(), executor);
+	}
+
+	@After
+	public void tearDown() {
+		inner.finish.countDown();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void followerGetsResultWhenLeaderIsCancelled() throws Exception {
+
+		ByteArrayOutputStream leaderOut = new ByteArrayOutputStream();
+		ListenableFuture<Void> leader = converter.convertAsync(
+				new ConversionRequest(DOCUMENT, Format.DOCX, Format.PDF, leaderOut));
+		assertTrue(inner.started.await(5, TimeUnit.SECONDS));
+
+		ByteArrayOutputStream followerOut = new ByteArrayOutputStream();
+		ConversionRequest request = new ConversionRequest(DOCUMENT, Format.DOCX, Format.PDF, followerOut);
+		final CountDownLatch joined = new CountDownLatch(1);
+		request.setProgressListener(new ProgressListener() {
+			@Override
+			public void onProgress(ConversionProgress progress) {
+				joined.countDown();
+			}
+		});
+		ListenableFuture<Void> follower = converter.convertAsync(request);
+		assertTrue(joined.await(5, TimeUnit.SECONDS));
+
+		// interrupts the leader's thread, as well as cancelling its signal
+		leader.cancel(true);
+		inner.finish.countDown();
+
+		follower.get(5, TimeUnit.SECONDS);
+		assertArrayEquals(RESULT, followerOut.toByteArray());
+		assertEquals(1, inner.conversions.get());
+		assertFalse(inner.cancelled);
+	}
+
+	@Test
+	public void conversionIsCancelledWhenEveryRequestIs() throws Exception {
+
+		ListenableFuture<Void> leader = converter.convertAsync(
+				new ConversionRequest(DOCUMENT, Format.DOCX, Format.PDF, new ByteArrayOutputStream()));
+		assertTrue(inner.started.await(5, TimeUnit.SECONDS));
+
+		leader.cancel(true);
+		assertTrue(inner.aborted.await(5, TimeUnit.SECONDS));
+		assertTrue(inner.cancelled);
+	}
+
+	@Test
+	public void callersCancelListenerIsKept() throws Exception {
+
+		CancellationSignal signal = new CancellationSignal();
+		final CountDownLatch heard = new CountDownLatch(1);
+		signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+			@Override
+			public void onCancel() {
+				heard.countDown();
+			}
+		});
+		ConversionRequest request = new ConversionRequest(DOCUMENT, Format.DOCX, Format.PDF, new ByteArrayOutputStream());
+		request.setCancellationSignal(signal);
+		ListenableFuture<Void> conversion = converter.convertAsync(request);
+		assertTrue(inner.started.await(5, TimeUnit.SECONDS));
+
+		signal.cancel();
+		assertTrue(heard.await(5, TimeUnit.SECONDS));
+		try {
+			conversion.get(5, TimeUnit.SECONDS);
+			fail("cancelled conversion succeeded");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ConversionCancelledException);
+		}
+	}
+
+
+	/**
+	 * Writes half the result, then reports progress until it is let finish
+	 * (or is cancelled); waiting for that is interruptible, as a Transport's
+	 * I/O would be.
+	 */
+	private static class BlockingConverter extends AbstractConverter {
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch finish = new CountDownLatch(1);
+		final CountDownLatch aborted = new CountDownLatch(1);
+		final AtomicInteger conversions = new AtomicInteger();
+		volatile boolean cancelled;
+
+		@Override
+		public void convert(ConversionRequest request) throws IOException, ConversionException {
+
+			conversions.incrementAndGet();
+			OutputStream os = request.getOutputStream();
+			os.write(RESULT, 0, RESULT.length / 2);
+			started.countDown();
+			try {
+				while (!finish.await(10, TimeUnit.MILLISECONDS)) {
+					if (request.getCancellationSignal().isCanceled()) {
+						cancelled = true;
+						aborted.countDown();
+						throw new ConversionCancelledException("cancelled");
+					}
+					request.getProgressListener().onProgress(new ConversionProgress(
+							ProgressListener.Phase.DOWNLOADING, DOCUMENT.length, DOCUMENT.length,
+							RESULT.length / 2, RESULT.length, 0));
+				}
+			} catch (InterruptedException e) {
+				aborted.countDown();
+				throw new ConversionException("interrupted", e);
+			}
+			os.write(RESULT, RESULT.length / 2, RESULT.length - RESULT.length / 2);
+		}
+
+		@Override
+		public void convert(File f, Format fromFormat, Format toFormat, OutputStream os) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void convert(InputStream instream, Format fromFormat, Format toFormat, OutputStream os) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void convert(byte[] bytesIn, Format fromFormat, Format toFormat, OutputStream os) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void convert(ByteBuffer bufferIn, Format fromFormat, Format toFormat, OutputStream os) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void convert(ReadableByteChannel channelIn, long length, Format fromFormat, Format toFormat, OutputStream os) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+}
@@ -22,17 +22,29 @@ import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
-import android.os.StrictMode;
 import android.support.v7.app.AppCompatActivity;
 
 import com.github.barteksc.pdfviewer.listener.OnErrorListener;
-import com.ipaulpro.afilechooser.utils.FileUtils;
-import com.plutext.services.client.android.ConversionException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.plutext.services.client.android.BitmapResampler;
+import com.plutext.services.client.android.CachingConverter;
+import com.plutext.services.client.android.CoalescingConverter;
+import com.plutext.services.client.android.ConversionProgress;
+import com.plutext.services.client.android.ConversionExecutor;
+import com.plutext.services.client.android.ConversionRequest;
 import com.plutext.services.client.android.Converter;
 import com.plutext.services.client.android.ConverterHttp;
+import com.plutext.services.client.android.DocxSlimmer;
+import com.plutext.services.client.android.Linearization;
+import com.plutext.services.client.android.Outline;
+import com.plutext.services.client.android.OutlineParser;
 import com.plutext.services.client.android.Format;
-
-import java.io.ByteArrayOutputStream;
+import com.plutext.services.client.android.ProgressListener;
+import com.plutext.services.client.android.SpoolingSink;
+import com.plutext.services.client.android.UriConverter;
 
 import android.content.ActivityNotFoundException;
 import android.content.Intent;
@@ -41,6 +53,7 @@ import android.database.Cursor;
 import android.graphics.Color;
 import android.net.Uri;
 import android.provider.OpenableColumns;
+import android.text.format.Formatter;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -60,22 +73,24 @@ import org.androidannotations.annotations.NonConfigurationInstance;
 import org.androidannotations.annotations.OnActivityResult;
 import org.androidannotations.annotations.OptionsItem;
 import org.androidannotations.annotations.OptionsMenu;
+import org.androidannotations.annotations.UiThread;
 import org.androidannotations.annotations.ViewById;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 @EActivity(R.layout.activity_main)
 @OptionsMenu(R.menu.options)
 public class MainActivity extends AppCompatActivity implements OnPageChangeListener, OnLoadCompleteListener, OnErrorListener {
 
-    // Configure this property to point to your own Converter instance.
-    private static final String URL = "http://converter-eval.plutext.com:80/v1/00000000-0000-0000-0000-000000000000/convert";
-
     private static final String TAG = MainActivity.class.getSimpleName();
 
     private final static int REQUEST_CODE = 42;
@@ -84,21 +99,8 @@ public class MainActivity extends AppCompatActivity implements OnPageChangeListe
     public static final String SAMPLE_FILE = "sample-docxv2.docx";
     public static final String READ_EXTERNAL_STORAGE = "android.permission.READ_EXTERNAL_STORAGE";
 
-    static {
-
-        /* Avoid:
-
-            W/System.err: android.os.NetworkOnMainThreadException
-            W/System.err:     at android.os.StrictMode$AndroidBlockGuardPolicy.onNetwork(StrictMode.java:1425)
-
-            We shouldn't perform a networking operation on our main thread, but
-            we do so at the moment for simplicity.
-
-            See further http://www.androiddesignpatterns.com/2012/06/app-force-close-honeycomb-ics.html
-         */
-        StrictMode.ThreadPolicy policy = new StrictMode.ThreadPolicy.Builder().permitAll().build();
-        StrictMode.setThreadPolicy(policy);
-    }
+    // Converted PDFs are kept in the app's cache dir, up to this many bytes
+    private static final long CACHE_SIZE = 64 * 1024 * 1024;
 
     @ViewById
     PDFView pdfView;
@@ -172,16 +174,12 @@ public class MainActivity extends AppCompatActivity implements OnPageChangeListe
                 || assetFileName.toLowerCase().endsWith("docx")) {
 
             // Convert it
-            ClassLoader loader = MainActivity.class.getClassLoader();
-
-            java.net.URL url = loader.getResource("assets/" + SAMPLE_FILE);
-            if (url==null) {
-                displayError(null, "no file");
-                return;
-            }
-
             try {
-                java.io.InputStream is = url.openConnection().getInputStream();
+                java.io.InputStream is = openSampleDocument();
+                if (is==null) {
+                    displayError(null, "no file");
+                    return;
+                }
                 viewWordDocumentAsPDF(is);
 
             } catch (Exception e) {
@@ -191,6 +189,17 @@ public class MainActivity extends AppCompatActivity implements OnPageChangeListe
         }
     }
 
+    /**
+     * @return the sample document, or null if it's missing
+     */
+    private InputStream openSampleDocument() throws IOException {
+
+        ClassLoader loader = MainActivity.class.getClassLoader();
+
+        java.net.URL url = loader.getResource("assets/" + SAMPLE_FILE);
+        return url == null ? null : url.openConnection().getInputStream();
+    }
+
     private void displayFromUri(Uri uri) {
         fileName = getFileName(uri);
 
@@ -208,21 +217,67 @@ public class MainActivity extends AppCompatActivity implements OnPageChangeListe
         } else if (fileName.toLowerCase().endsWith("doc")
                 || fileName.toLowerCase().endsWith("docx")) {
 
-            try {
+            // read straight from the provider, whether or not the document has a path
+            viewWordDocumentAsPDF(uri);
+        }
+    }
 
-                File file = FileUtils.getFile(this, uri);
-                viewWordDocumentAsPDF(file);
+    // The converted PDF is written here, rather than held on the heap
+    File pdfFile;
 
-            } catch (Exception e) {
-                e.printStackTrace();
-                displayError(e, null);
-            }
+    private Converter converter;
+
+    private Converter getConverter() {
+        if (converter == null) {
+            ConverterHttp http = new ConverterHttp(getEndpointURLs());
+            // drop thumbnails and unused parts, and shrink photos to what a phone screen needs
+            http.setDocxSlimmer(new DocxSlimmer(new BitmapResampler(), DocxSlimmer.DEFAULT_TARGET_DPI));
+
+            // a document opened again while it is still converting shares the conversion
+            converter = new CoalescingConverter(
+                    new CachingConverter(http,
+                            new File(getCacheDir(), "conversions"), CACHE_SIZE),
+                    new File(getCacheDir(), "inflight"));
         }
+        return converter;
+    }
+
+    // The conversion in progress, if any; cancelled if another document is picked
+    private ListenableFuture<Void> conversion;
+
+    // Show the first PREVIEW_PAGES pages as soon as they're converted, then the rest
+    private static final boolean PROGRESSIVE = true;
+    private static final int PREVIEW_PAGES = 3;
+
+    // The document to convert in full once its preview has loaded, if any
+    private Object awaitingFullConversion;
+
+    // Whether some of the document being converted is showing yet
+    private boolean documentShown;
+
+    // Whether what's showing is just the first page of a linearized PDF
+    private boolean showingFirstPage;
+
+    // The outline of the document showing, once fetched for the Contents menu
+    private Outline outline;
+
+    /**
+     * Configure R.array.converter_endpoints to point to your own Converter instances.
+     */
+    private List<String> getEndpointURLs() {
+        return Arrays.asList(getResources().getStringArray(R.array.converter_endpoints));
     }
 
-    byte[] bytes;
+    private UriConverter getUriConverter() {
+        return new UriConverter(getConverter(), getContentResolver());
+    }
 
-    private void viewWordDocumentAsPDF(Object input) throws IOException, ConversionException {
+    private void viewWordDocumentAsPDF(Object input) {
+
+        if (conversion != null) {
+            // aborts its upload or download, and its partial result is deleted
+            conversion.cancel(true);
+        }
 
         Toast.makeText(this, "uploading", Toast.LENGTH_SHORT).show();
 
@@ -230,57 +285,258 @@ public class MainActivity extends AppCompatActivity implements OnPageChangeListe
         progressOverlay.forceLayout();
         progressOverlay.setVisibility(View.VISIBLE);
         progressOverlay.bringToFront();
-        if (progressOverlay==null) {
-            System.out.println("progressOverlay null");
-        } else if (!progressOverlay.isShown()) {
-            System.out.println("progressOverlay not shown");
-        }
         TextView tvName = (TextView)findViewById(R.id.hName);
         tvName.setText("uploading..");
         setTitle("uploading..");
         animateView(progressOverlay, View.VISIBLE, 0.4f, 200);
-        if (progressOverlay==null) {
-            System.out.println("progressOverlay null");
-        } else if (!progressOverlay.isShown()) {
-            System.out.println("progressOverlay not shown");
+
+        awaitingFullConversion = null;
+        documentShown = false;
+        outline = null;
+        // a stream can only be read once, so it is converted whole
+        if (PROGRESSIVE && !(input instanceof InputStream) && pageNumber < PREVIEW_PAGES) {
+            startConversion(input, PREVIEW_PAGES);
+        } else {
+            startConversion(input, 0);
         }
+    }
 
-        // Convert it
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    /**
+     * @param lastPage convert pages 1 to lastPage, or the whole document if 0
+     */
+    private void startConversion(final Object input, final int lastPage) {
 
+        // Convert it, off the main thread, streaming the result to a file of its own,
+        // so one which is superseded can't overwrite the one showing
+        final SpoolingSink sink;
         try {
-            Converter converter = new ConverterHttp(URL);
+            sink = new SpoolingSink(File.createTempFile(lastPage > 0 ? "preview" : "converted", ".pdf",
+                    getCacheDir()));
+        } catch (IOException e) {
+            conversionFailed(e);
+            return;
+        }
+
+        ProgressListener listener = new ProgressListener() {
+            @Override
+            public void onProgress(ConversionProgress progress) {
+                showProgress(progress);
+            }
+        };
+
+        // Declared as DOCX, but ConverterHttp checks: a .doc is converted as DOC,
+        // and anything else fails before it's uploaded
+        final ListenableFuture<Void> conversion;
+        if (input instanceof Uri) {
+            // API using a content Uri
+            conversion = getUriConverter().convertAsync((Uri) input, Format.DOCX, Format.PDF,
+                    lastPage > 0 ? 1 : 0, lastPage, sink, listener);
+        } else {
+            ConversionRequest request;
             if (input instanceof java.io.InputStream) {
                 // API using InputStream
-                converter.convert((InputStream) input, Format.DOCX, Format.PDF, baos);
-            } else if (input instanceof File) {
+                request = new ConversionRequest((InputStream) input, Format.DOCX, Format.PDF, sink);
+            } else {
                 // API using File
-                converter.convert((File) input, Format.DOCX, Format.PDF, baos);
+                request = new ConversionRequest((File) input, Format.DOCX, Format.PDF, sink);
+            }
+            request.setProgressListener(listener);
+            if (lastPage > 0) {
+                request.setPageRange(1, lastPage);
             }
-        } catch (ConversionException ce) {
+            conversion = getConverter().convertAsync(request);
+        }
 
-            if (bytes.toString().length()>80) {
-                displayError(ce, "Error in conversion process \n\r"
-                        + baos.toString().substring(0, 80)
-                        + "\n\r");
-            } else {
-                displayError(ce, "Error in conversion process \n\r"
-                        + baos.toString()
-                        + "\n\r");
+        Futures.addCallback(conversion, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                onConverted(conversion, sink, lastPage > 0 ? input : null);
             }
+
+            @Override
+            public void onFailure(Throwable t) {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                }
+                if (!conversion.isCancelled()) {
+                    onConversionFailed(t, conversion);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        this.conversion = conversion;
+
+        if (!documentShown) {
+            // if the PDF is linearized, its first page can be shown before the rest arrives
+            Futures.addCallback(sink.whenFirstPageAvailable(), new FutureCallback<Linearization>() {
+                @Override
+                public void onSuccess(Linearization linearization) {
+                    if (linearization != null && linearization.getFirstPage() == 0
+                            && linearization.getFirstPageEnd() < linearization.getFileLength()) {
+                        copyFirstPage(sink, linearization, conversion);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    // the conversion failed or was cancelled; its own callback deals with that
+                }
+            }, ConversionExecutor.getDefault());
+        }
+    }
+
+    /**
+     * Copy the part of a linearized PDF which holds its first page to a file
+     * of its own, and show that while the rest downloads.  The viewer repairs
+     * the missing cross-reference table, if it can; if not, the whole PDF is
+     * shown once it has arrived, as usual.
+     */
+    private void copyFirstPage(SpoolingSink sink, Linearization linearization, ListenableFuture<Void> conversion) {
+
+        File firstPage = new File(getCacheDir(), "firstpage.pdf");
+        try {
+            SpoolingSink.Reader reader = sink.openReader();
+            FileOutputStream out = new FileOutputStream(firstPage);
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+                long remaining = linearization.getFirstPageEnd();
+                while (remaining > 0) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                    int n = reader.read(buffer);
+                    if (n < 0) {
+                        return;
+                    }
+                    buffer.flip();
+                    out.getChannel().write(buffer);
+                    remaining -= n;
+                }
+            } finally {
+                out.close();
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "couldn't copy first page: " + e);
             return;
+        }
+        Log.d(TAG, linearization + "; showing the first page");
+        onFirstPageArrived(firstPage, conversion);
+    }
+
+    @UiThread
+    void onFirstPageArrived(File firstPage, ListenableFuture<Void> conversion) {
 
-            // overtlay shows here!!
+        if (conversion != this.conversion || conversion.isDone() || documentShown) {
+            // superseded, or the whole PDF has arrived already
+            return;
         }
+        documentShown = true;
+        showingFirstPage = true;
 
-        bytes = baos.toByteArray();
-        tvName.setText("converted .. " + bytes.length + " bytes; now view it...");
-        setTitle("converted .. " + bytes.length + " bytes; now view it...");
-        Toast.makeText(this, "converted .. " + bytes.length + " bytes; now view it...",
-                Toast.LENGTH_SHORT).show();
+        pdfView.fromFile(firstPage)
+                .defaultPage(0)
+                .onPageChange(this)
+                .enableAnnotationRendering(true)
+                .onLoad(this)
+                .onError(this)
+                .scrollHandle(new DefaultScrollHandle(this))
+                .spacing(10) // in dp
+                .load();
+
+        animateView(progressOverlay, View.GONE, 0, 200);
+    }
+
+    @UiThread
+    void showProgress(ConversionProgress progress) {
+
+        String status;
+        switch (progress.getPhase()) {
+            case CONNECTING:
+                status = "connecting..";
+                break;
+            case UPLOADING:
+                status = "uploading.. " + describeTransfer(progress.getBytesSent(),
+                        progress.getBytesToSend(), progress);
+                break;
+            case AWAITING_SERVER:
+                status = "converting..";
+                break;
+            case DOWNLOADING:
+                status = "downloading.. " + describeTransfer(progress.getBytesReceived(),
+                        progress.getBytesToReceive(), progress);
+                break;
+            default:
+                return;
+        }
+
+        TextView tvName = (TextView)findViewById(R.id.hName);
+        tvName.setText(status);
+        setTitle(status);
+    }
+
+    /**
+     * @return eg "40% of 2.1 MB, 350 KB/s, 4s left"
+     */
+    private String describeTransfer(long done, long total, ConversionProgress progress) {
+
+        StringBuilder sb = new StringBuilder();
+        if (progress.getPercent() >= 0) {
+            sb.append(progress.getPercent()).append("% of ")
+                    .append(Formatter.formatShortFileSize(this, total));
+        } else {
+            sb.append(Formatter.formatShortFileSize(this, done));
+        }
+        if (progress.getBytesPerSecond() > 0) {
+            sb.append(", ").append(Formatter.formatShortFileSize(this, (long) progress.getBytesPerSecond()))
+                    .append("/s");
+        }
+        long eta = progress.getEtaMillis();
+        if (eta >= 0) {
+            sb.append(", ").append((eta + 999) / 1000).append("s left");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param sink the result, committed (and shown) only if conversion is
+     * still the current one
+     * @param preview the document result is the first pages of, to be
+     * converted in full once they're shown; or null if result is all of it
+     */
+    @UiThread
+    void onConverted(ListenableFuture<Void> conversion, SpoolingSink sink, Object preview) {
+
+        if (conversion != this.conversion) {
+            // another document has been picked since; this one finished as it was cancelled
+            try {
+                sink.close();
+            } catch (IOException e) {
+                Log.w(TAG, e);
+            }
+            return;
+        }
+
+        File previous = pdfFile;
+        try {
+            pdfFile = sink.commit();
+        } catch (IOException e) {
+            conversionFailed(e);
+            return;
+        }
+        awaitingFullConversion = preview;
+        documentShown = true;
+        showingFirstPage = false;
+
+        String status = preview == null ? "converted .. " + pdfFile.length() + " bytes; now view it..."
+                : "showing the first pages; converting the rest..";
+        TextView tvName = (TextView)findViewById(R.id.hName);
+        tvName.setText(status);
+        setTitle(status);
+        Toast.makeText(this, status, Toast.LENGTH_SHORT).show();
 
         // Display the result
-        pdfView.fromBytes(bytes)
+        pdfView.fromFile(pdfFile)
                 .defaultPage(pageNumber)
                 .onPageChange(this)
                 .enableAnnotationRendering(true)
@@ -290,21 +546,41 @@ public class MainActivity extends AppCompatActivity implements OnPageChangeListe
                 .spacing(10) // in dp
                 .load();
 
+        if (previous != null && !previous.equals(pdfFile)) {
+            previous.delete();
+        }
+
+        animateView(progressOverlay, View.GONE, 0, 200);
+    }
+
+    @UiThread
+    void onConversionFailed(Throwable t, ListenableFuture<Void> conversion) {
+
+        if (conversion != this.conversion) {
+            // superseded; its failure is most likely the cancellation
+            return;
+        }
+        conversionFailed(t);
+    }
+
+    private void conversionFailed(Throwable t) {
+
         animateView(progressOverlay, View.GONE, 0, 200);
 
+        displayError(t, "Error in conversion process \n\r");
     }
 
     public void onError(Throwable t) {
 
-        if (bytes.toString().length()>80) {
-            displayError(t, "Error viewing converter output \n\r"
-                    + bytes.toString().substring(0, 80)
-                    + "\n\r");
-        } else {
-            displayError(t, "Error viewing converter output \n\r"
-                    + bytes.toString()
-                    + "\n\r");
+        if (showingFirstPage) {
+            // the viewer couldn't make do with part of the PDF; wait for the rest
+            Log.w(TAG, "couldn't show first page: " + t);
+            return;
         }
+
+        displayError(t, "Error viewing converter output \n\r"
+                + (pdfFile == null ? "" : pdfFile.getName() + ", " + pdfFile.length() + " bytes")
+                + "\n\r");
     }
 
     private void displayError(Throwable t, String commentary) {
@@ -394,10 +670,129 @@ public class MainActivity extends AppCompatActivity implements OnPageChangeListe
         return result;
     }
 
+    /**
+     * List the document's headings; picking one goes to its page.  The TOC
+     * is converted the first time it's asked for (and cached after that).
+     */
+    @OptionsItem(R.id.contents)
+    void showContents() {
+
+        if (outline != null) {
+            showOutline(outline);
+            return;
+        }
+        if (fileName == null || !(fileName.toLowerCase().endsWith("doc")
+                || fileName.toLowerCase().endsWith("docx"))) {
+            Toast.makeText(this, R.string.toast_no_contents, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // parsed as it downloads, into an outline with no object per heading
+        final OutlineParser toc = new OutlineParser();
+        final Uri document = uri;
+        ListenableFuture<Void> fetch;
+        if (document != null) {
+            fetch = getUriConverter().convertAsync(document, Format.DOCX, Format.TOC, toc, null);
+        } else {
+            InputStream is;
+            try {
+                is = openSampleDocument();
+            } catch (IOException e) {
+                displayError(e, null);
+                return;
+            }
+            if (is == null) {
+                displayError(null, "no file");
+                return;
+            }
+            fetch = getConverter().convertAsync(
+                    new ConversionRequest(is, Format.DOCX, Format.TOC, toc));
+        }
+
+        Futures.addCallback(fetch, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                try {
+                    toc.close();
+                    onOutline(toc.getOutline(), document);
+                } catch (IOException e) {
+                    onOutlineFailed(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                onOutlineFailed(t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    @UiThread
+    void onOutline(Outline outline, Uri document) {
+
+        if (document == null ? uri != null : !document.equals(uri)) {
+            // another document has been picked since
+            return;
+        }
+        this.outline = outline;
+        showOutline(outline);
+    }
+
+    @UiThread
+    void onOutlineFailed(Throwable t) {
+
+        // the document itself is still fine to read, so leave it showing
+        Log.w(TAG, t);
+        Toast.makeText(this, R.string.toast_no_contents, Toast.LENGTH_SHORT).show();
+    }
+
+    private void showOutline(final Outline outline) {
+
+        if (outline.size() == 0) {
+            Toast.makeText(this, R.string.toast_no_contents, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // the entry covering the page showing is where the list starts
+        int current = Math.max(0, outline.find(pdfView.getCurrentPage()));
+        CharSequence[] titles = new CharSequence[outline.size()];
+        for (int i = 0; i < titles.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int level = 0; level < outline.getLevel(i); level++) {
+                sb.append("    ");
+            }
+            titles[i] = sb.append(outline.getTitle(i)).toString();
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.contents)
+                .setSingleChoiceItems(titles, current, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.dismiss();
+                        if (outline.getPage(which) >= 0) {
+                            pdfView.jumpTo(outline.getPage(which));
+                        }
+                    }
+                })
+                .show();
+    }
+
     @Override
     public void loadComplete(int nbPages) {
 
         Log.e(TAG, "got PDF; page count= " + nbPages);
+
+        if (awaitingFullConversion != null) {
+            Object input = awaitingFullConversion;
+            awaitingFullConversion = null;
+            // fewer pages than asked for is the whole document; more means the
+            // endpoint ignored the page range, and sent the whole document anyway
+            if (nbPages == PREVIEW_PAGES) {
+                // there may be more; the whole document replaces the preview, at the same page
+                startConversion(input, 0);
+            }
+        }
 //        printBookmarksTree(pdfView.getTableOfContents(), "-");
 
     }
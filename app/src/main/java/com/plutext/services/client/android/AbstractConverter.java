@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.os.CancellationSignal;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+
+/**
+ * Implements the asynchronous and batch Converter methods by running the
+ * blocking ones on an executor.
+ */
+public abstract class AbstractConverter implements Converter {
+
+	private final ListeningExecutorService executor;
+
+
+	/**
+	 * Run asynchronous conversions on the shared ConversionExecutor.
+	 */
+	protected AbstractConverter() {
+		this(null);
+	}
+
+	/**
+	 * @param executor to run asynchronous conversions on; if null,
+	 * the shared ConversionExecutor is used
+	 */
+	protected AbstractConverter(ListeningExecutorService executor) {
+		this.executor = executor;
+	}
+
+	protected ListeningExecutorService getExecutor() {
+
+		if (executor==null) {
+			return ConversionExecutor.getDefault();
+		}
+		return executor;
+	}
+
+
+	public ListenableFuture<Void> convertAsync(File f, Format fromFormat, Format toFormat, OutputStream os) {
+		return convertAsync(new ConversionRequest(f, fromFormat, toFormat, os));
+	}
+
+	public ListenableFuture<Void> convertAsync(InputStream instream, Format fromFormat, Format toFormat, OutputStream os) {
+		return convertAsync(new ConversionRequest(instream, fromFormat, toFormat, os));
+	}
+
+	public ListenableFuture<Void> convertAsync(byte[] bytesIn, Format fromFormat, Format toFormat, OutputStream os) {
+		return convertAsync(new ConversionRequest(bytesIn, fromFormat, toFormat, os));
+	}
+
+	public void convert(ConversionRequest request) throws IOException, ConversionException {
+		request.convertWith(this);
+	}
+
+	/**
+	 * Cancelling the returned future cancels the request's CancellationSignal
+	 * (or one created for it, if it has none), aborting the conversion.
+	 */
+	public ListenableFuture<Void> convertAsync(ConversionRequest request) {
+
+		final ConversionRequest cancellable = request.getCancellationSignal()==null ?
+				request.withCancellationSignal(new CancellationSignal()) : request;
+
+		ListenableFuture<Void> future = getExecutor().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				convert(cancellable);
+				return null;
+			}
+		});
+		cancelWith(future, cancellable.getCancellationSignal());
+		return future;
+	}
+
+	/**
+	 * The batch runs on its own executor of maxConcurrency threads, rather than
+	 * the one used by convertAsync, so a large batch doesn't hold up other
+	 * asynchronous conversions.
+	 */
+	public List<ConversionResult> convertBatch(List<ConversionRequest> requests, int maxConcurrency) throws InterruptedException {
+
+		if (maxConcurrency<1) {
+			throw new IllegalArgumentException("maxConcurrency must be at least 1, was " + maxConcurrency);
+		}
+
+		ListeningExecutorService batchExecutor = ConversionExecutor.newExecutor(
+				Math.max(1, Math.min(maxConcurrency, requests.size())));
+		List<ListenableFuture<ConversionResult>> futures
+				= new ArrayList<ListenableFuture<ConversionResult>>(requests.size());
+		try {
+			for (final ConversionRequest request : requests) {
+				final ConversionRequest cancellable = request.getCancellationSignal()==null ?
+						request.withCancellationSignal(new CancellationSignal()) : request;
+				ListenableFuture<ConversionResult> future = batchExecutor.submit(new Callable<ConversionResult>() {
+					@Override
+					public ConversionResult call() {
+						long start = System.currentTimeMillis();
+						try {
+							convert(cancellable);
+							return new ConversionResult(request, null, System.currentTimeMillis() - start);
+						} catch (Exception e) {
+							return new ConversionResult(request, e, System.currentTimeMillis() - start);
+						}
+					}
+				});
+				cancelWith(future, cancellable.getCancellationSignal());
+				futures.add(future);
+			}
+
+			List<ConversionResult> results = new ArrayList<ConversionResult>(requests.size());
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					// call() catches Exceptions, so this is an Error
+					results.add(new ConversionResult(requests.get(i), e.getCause(), 0));
+				}
+			}
+			return results;
+
+		} finally {
+			// if interrupted, abort those still in progress; the rest are done, so unaffected
+			for (ListenableFuture<ConversionResult> future : futures) {
+				future.cancel(true);
+			}
+			batchExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Cancel signal if future is cancelled.  Cancelling the future only
+	 * interrupts the thread running the conversion, which doesn't stop
+	 * network IO it is blocked on; the signal lets the converter abort it.
+	 */
+	static void cancelWith(final ListenableFuture<?> future, final CancellationSignal signal) {
+
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (future.isCancelled()) {
+					signal.cancel();
+				}
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+}
\ No newline at end of file
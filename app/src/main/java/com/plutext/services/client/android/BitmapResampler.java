@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * An ImageResampler for JPEG and PNG images, using BitmapFactory.  The image
+ * is decoded at the largest power of two reduction which still leaves it 
+ * at least maxPixels along its longer side (which is cheap, and keeps the
+ * decoded bitmap small), then scaled the rest of the way.
+ */
+public class BitmapResampler implements ImageResampler {
+
+	/**
+	 * Default quality for re-encoded JPEGs
+	 */
+	public static final int DEFAULT_JPEG_QUALITY = 85;
+
+	private final int jpegQuality;
+
+
+	public BitmapResampler() {
+		this(DEFAULT_JPEG_QUALITY);
+	}
+
+	/**
+	 * @param jpegQuality 0-100
+	 */
+	public BitmapResampler(int jpegQuality) {
+		this.jpegQuality = jpegQuality;
+	}
+
+	@Override
+	public boolean resample(String name, byte[] image, int maxPixels, OutputStream out) throws IOException {
+
+		Bitmap.CompressFormat format = formatOf(name);
+		if (format==null) {
+			return false; // GIF, EMF, WMF etc
+		}
+
+		BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(image, 0, image.length, bounds);
+		int longest = Math.max(bounds.outWidth, bounds.outHeight);
+		if (longest<=maxPixels) {
+			return false; // also if it couldn't be decoded (-1)
+		}
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = 1;
+		while (longest / (options.inSampleSize * 2)>=maxPixels) {
+			options.inSampleSize *= 2;
+		}
+		Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length, options);
+		if (bitmap==null) {
+			return false;
+		}
+
+		try {
+			float scale = (float)maxPixels / Math.max(bitmap.getWidth(), bitmap.getHeight());
+			if (scale<1) {
+				Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+						Math.max(1, Math.round(bitmap.getWidth() * scale)),
+						Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+				if (scaled!=bitmap) {
+					bitmap.recycle();
+					bitmap = scaled;
+				}
+			}
+			// quality is ignored for PNG
+			return bitmap.compress(format, jpegQuality, out);
+		} finally {
+			bitmap.recycle();
+		}
+	}
+
+	private static Bitmap.CompressFormat formatOf(String name) {
+
+		String lower = name.toLowerCase();
+		if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) {
+			return Bitmap.CompressFormat.JPEG;
+		}
+		if (lower.endsWith(".png")) {
+			return Bitmap.CompressFormat.PNG;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,326 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.util.Log;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * Converter which keeps conversion results in a directory on disk,
+ * so converting the same document again doesn't go to the server.
+ *
+ * Results are keyed by a SHA-256 hash of the input bytes plus the
+ * fromFormat and toFormat.  Each result is written to a temporary file,
+ * then renamed into place, so a partial result is never served.
+ * When the directory grows beyond maxSize bytes, the least recently
+ * used results are deleted.
+ *
+ * For example, in an Activity:
+ *
+ * <pre>
+ * Converter converter = new CachingConverter(new ConverterHttp(URL),
+ *         new File(getCacheDir(), "conversions"), 64 * 1024 * 1024);
+ * </pre>
+ */
+public class CachingConverter extends AbstractConverter {
+
+	private static final String TAG = CachingConverter.class.getSimpleName();
+
+	private static final String TMP_SUFFIX = FileSink.TMP_SUFFIX;
+
+	/**
+	 * Temporary files older than this were left behind by a process which died
+	 * mid conversion, and can be deleted.
+	 */
+	private static final long STALE_TMP_MILLIS = 60 * 60 * 1000;
+
+	private final Converter converter;
+	private final File cacheDir;
+	private final long maxSize;
+
+
+	/**
+	 * @param converter which performs the conversion on a cache miss
+	 * @param cacheDir directory to store results in; it is created if necessary
+	 * @param maxSize maximum total size in bytes of the stored results
+	 */
+	public CachingConverter(Converter converter, File cacheDir, long maxSize) {
+		this(converter, cacheDir, maxSize, null);
+	}
+
+	/**
+	 * @param converter which performs the conversion on a cache miss
+	 * @param cacheDir directory to store results in; it is created if necessary
+	 * @param maxSize maximum total size in bytes of the stored results
+	 * @param executor to run convertAsync on; if null, the shared ConversionExecutor is used
+	 */
+	public CachingConverter(Converter converter, File cacheDir, long maxSize, ListeningExecutorService executor) {
+		super(executor);
+
+		if (converter==null) {
+			throw new IllegalArgumentException("converter must not be null");
+		}
+		if (cacheDir==null) {
+			throw new IllegalArgumentException("cacheDir must not be null");
+		}
+
+		this.converter = converter;
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+	}
+
+
+	public void convert(File f, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException {
+		convert(new ConversionRequest(f, fromFormat, toFormat, os));
+	}
+
+	public void convert(InputStream instream, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException {
+		convert(new ConversionRequest(instream, fromFormat, toFormat, os));
+	}
+
+	public void convert(byte[] bytesIn, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException {
+		convert(new ConversionRequest(bytesIn, fromFormat, toFormat, os));
+	}
+
+	public void convert(ByteBuffer bufferIn, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException {
+		convert(new ConversionRequest(bufferIn, fromFormat, toFormat, os));
+	}
+
+	public void convert(ReadableByteChannel channelIn, long length, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException {
+		convert(new ConversionRequest(channelIn, length, fromFormat, toFormat, os));
+	}
+
+	/**
+	 * An InputStream (or ReadableByteChannel, other than a FileChannel of 
+	 * known length) is spooled to a temporary file in the cache directory 
+	 * while it is hashed, since we only know whether it is needed once it 
+	 * has been read to the end.
+	 */
+	@Override
+	public void convert(ConversionRequest request) throws IOException, ConversionException {
+
+		ensureCacheDir();
+		DocumentKey document = DocumentKey.of(request, cacheDir);
+		try {
+			if (!readFromCache(document.getKey(), request)) {
+				convertAndStore(document, request);
+			}
+		} finally {
+			document.release();
+		}
+	}
+
+
+	/**
+	 * Delete all cached results.
+	 */
+	public synchronized void clear() {
+
+		File[] files = cacheDir.listFiles();
+		if (files==null) {
+			return;
+		}
+		for (File file : files) {
+			if (!file.getName().endsWith(TMP_SUFFIX)) {
+				file.delete();
+			}
+		}
+	}
+
+
+	/**
+	 * @return true if a result for key was found and copied to the request's OutputStream
+	 */
+	private boolean readFromCache(String key, ConversionRequest request) throws IOException {
+
+		File entry = new File(cacheDir, key);
+
+		InputStream is;
+		try {
+			is = new FileInputStream(entry);
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+		long length;
+		try {
+			length = ByteStreams.copy(is, request.getOutputStream());
+		} finally {
+			is.close();
+		}
+
+		// record the access, for LRU eviction
+		entry.setLastModified(System.currentTimeMillis());
+
+		ProgressListener listener = request.getProgressListener();
+		if (listener!=null) {
+			listener.onProgress(new ConversionProgress(ProgressListener.Phase.DONE, 0, 0, length, length, 0));
+		}
+
+		Log.d(TAG, "cache hit " + key);
+		return true;
+	}
+
+	/**
+	 * Perform the conversion, writing the result to both the request's OutputStream
+	 * and a FileSink, which is committed to the document's entry only if the
+	 * conversion succeeds.  Caching is best effort: if the sink can't be
+	 * written (the disk is full, say), the conversion carries on without it.
+	 *
+	 */
+	private void convertAndStore(DocumentKey document, ConversionRequest request) throws IOException, ConversionException {
+
+		String key = document.getKey();
+		FileSink sink = new FileSink(new File(cacheDir, key));
+		try {
+			CacheOutputStream cached = new CacheOutputStream(sink, key);
+			OutputStream tee = new TeeOutputStream(request.getOutputStream(), cached);
+			converter.convert(document.requestFor(tee));
+			if (!cached.failed) {
+				try {
+					sink.commit();
+				} catch (IOException e) {
+					// os has the result; it just won't be cached
+					Log.w(TAG, "couldn't commit " + key, e);
+				}
+			}
+		} finally {
+			sink.close();
+		}
+
+		trimToSize();
+	}
+
+	/**
+	 * Writes to a cache entry's sink until that fails, then logs it, and
+	 * drops the rest, so the caller's OutputStream still gets the result.
+	 */
+	private static class CacheOutputStream extends OutputStream {
+
+		private final OutputStream sink;
+		private final String key;
+		volatile boolean failed = false;
+
+		CacheOutputStream(OutputStream sink, String key) {
+			this.sink = sink;
+			this.key = key;
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) {
+			if (failed) {
+				return;
+			}
+			try {
+				sink.write(buf, off, len);
+			} catch (IOException e) {
+				Log.w(TAG, "couldn't cache " + key + "; converting without it", e);
+				failed = true;
+			}
+		}
+	}
+
+	private void ensureCacheDir() throws IOException {
+
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new IOException("Couldn't create cache directory " + cacheDir);
+		}
+	}
+
+	/**
+	 * Delete least recently used results until the total size is within maxSize.
+	 * Each file's time and length are read once, since readFromCache can touch
+	 * a file while we sort, which would upset a comparator reading them live.
+	 */
+	private synchronized void trimToSize() {
+
+		File[] files = cacheDir.listFiles();
+		if (files==null) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		long size = 0;
+		Entry[] entries = new Entry[files.length];
+		int n = 0;
+		for (File file : files) {
+			long lastModified = file.lastModified();
+			if (file.getName().endsWith(TMP_SUFFIX)) {
+				if (now - lastModified > STALE_TMP_MILLIS) {
+					file.delete();
+				}
+			} else {
+				Entry entry = new Entry(file, lastModified, file.length());
+				entries[n++] = entry;
+				size += entry.length;
+			}
+		}
+		if (size<=maxSize) {
+			return;
+		}
+
+		Arrays.sort(entries, 0, n, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.lastModified < b.lastModified ? -1 : (a.lastModified > b.lastModified ? 1 : 0);
+			}
+		});
+		for (int i = 0; i<n && size>maxSize; i++) {
+			if (entries[i].file.delete()) {
+				size -= entries[i].length;
+			}
+		}
+	}
+
+	/**
+	 * A cached result, as it was when trimToSize looked.
+	 */
+	private static final class Entry {
+
+		final File file;
+		final long lastModified;
+		final long length;
+
+		Entry(File file, long lastModified, long length) {
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
+}
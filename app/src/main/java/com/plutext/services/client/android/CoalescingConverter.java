@@ -0,0 +1,476 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import com.google.common.base.Throwables;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Converter which performs identical conversions requested at the same time
+ * only once.
+ *
+ * Requests are identical if their documents have the same SHA-256 hash, and
+ * they have the same fromFormat and toFormat.  The first request is passed
+ * to the wrapped converter, streaming its result to its caller as usual, and
+ * to a temporary file.  Any identical request made while it is in progress
+ * waits for it, then is given a copy of the result; if it fails, they all fail.
+ * Progress of the shared conversion is reported to each request's listener.
+ *
+ * Cancelling a request's CancellationSignal (or interrupting its thread)
+ * cancels the shared conversion only if every request waiting for it has
+ * been cancelled.  The signal is polled, not listened to, so the caller can
+ * still listen to it.  A cancelled follower stops waiting straight away.
+ * The shared conversion runs on a thread of its own, reading the first
+ * request's document, so if others still want the result, it carries on
+ * (though no longer writing to the first request's OutputStream), and the
+ * first request fails with a ConversionCancelledException once the result
+ * is ready.
+ *
+ * Unlike CachingConverter, nothing is kept once the conversion is finished,
+ * so the two can be combined: a CoalescingConverter in front of a
+ * CachingConverter avoids both repeated and simultaneous conversions.
+ */
+public class CoalescingConverter extends AbstractConverter {
+
+	private static final String TAG = CoalescingConverter.class.getSimpleName();
+
+	/**
+	 * How often a waiting request checks whether it has been cancelled.
+	 */
+	private static final long POLL_MILLIS = 50;
+
+	/**
+	 * For each flight's conversion, which runs on a thread of its own rather
+	 * than the leader's, so interrupting the leader doesn't abort it.
+	 */
+	private static final ThreadFactory THREADS = ConversionExecutor.newThreadFactory();
+
+	private final Converter converter;
+	private final File spoolDir;
+
+	/**
+	 * Conversions in progress, by DocumentKey.  Guarded by itself.
+	 */
+	private final Map<String, Flight> inFlight = new HashMap<String, Flight>();
+
+
+	/**
+	 * @param converter which performs the conversion
+	 * @param spoolDir directory for the shared result (and for copies of
+	 * InputStreams, which are read once to hash them); it is created if necessary
+	 */
+	public CoalescingConverter(Converter converter, File spoolDir) {
+		this(converter, spoolDir, null);
+	}
+
+	/**
+	 * @param converter which performs the conversion
+	 * @param spoolDir directory for the shared result (and for copies of
+	 * InputStreams, which are read once to hash them); it is created if necessary
+	 * @param executor to run convertAsync on; if null, the shared ConversionExecutor is used
+	 */
+	public CoalescingConverter(Converter converter, File spoolDir, ListeningExecutorService executor) {
+		super(executor);
+
+		if (converter==null) {
+			throw new IllegalArgumentException("converter must not be null");
+		}
+		if (spoolDir==null) {
+			throw new IllegalArgumentException("spoolDir must not be null");
+		}
+
+		this.converter = converter;
+		this.spoolDir = spoolDir;
+	}
+
+
+	public void convert(File f, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException {
+		convert(new ConversionRequest(f, fromFormat, toFormat, os));
+	}
+
+	public void convert(InputStream instream, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException {
+		convert(new ConversionRequest(instream, fromFormat, toFormat, os));
+	}
+
+	public void convert(byte[] bytesIn, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException {
+		convert(new ConversionRequest(bytesIn, fromFormat, toFormat, os));
+	}
+
+	public void convert(ByteBuffer bufferIn, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException {
+		convert(new ConversionRequest(bufferIn, fromFormat, toFormat, os));
+	}
+
+	public void convert(ReadableByteChannel channelIn, long length, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException {
+		convert(new ConversionRequest(channelIn, length, fromFormat, toFormat, os));
+	}
+
+	@Override
+	public void convert(ConversionRequest request) throws IOException, ConversionException {
+
+		if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+			throw new IOException("Couldn't create spool directory " + spoolDir);
+		}
+
+		DocumentKey document = DocumentKey.of(request, spoolDir);
+		try {
+			String key = document.getKey();
+
+			Flight flight;
+			boolean leader;
+			synchronized (inFlight) {
+				flight = inFlight.get(key);
+				leader = flight==null;
+				if (leader) {
+					flight = new Flight();
+					inFlight.put(key, flight);
+				}
+				flight.waiters++;
+				flight.active++;
+			}
+			flight.addListener(request.getProgressListener());
+
+			// set once this request no longer counts as active, by cancelling or leaving
+			final AtomicBoolean inactive = new AtomicBoolean();
+			try {
+				if (leader) {
+					lead(key, flight, document, request, inactive);
+				} else {
+					Log.d(TAG, "joining conversion in progress " + key);
+					follow(flight, request, inactive);
+				}
+			} finally {
+				flight.removeListener(request.getProgressListener());
+				deactivate(flight, inactive);
+				leave(flight);
+			}
+
+		} finally {
+			document.release();
+		}
+	}
+
+	/**
+	 * @return the number of distinct conversions in progress
+	 */
+	public int getInFlightCount() {
+		synchronized (inFlight) {
+			return inFlight.size();
+		}
+	}
+
+
+	/**
+	 * Start the conversion on a thread of the flight's own, streaming the result
+	 * to the request's OutputStream and the flight's result file, then wait
+	 * for it.  The leader's document is being read until it's done, so the
+	 * leader waits even if it is cancelled or interrupted (which only stop
+	 * it counting as wanting the result).
+	 */
+	private void lead(String key, Flight flight, DocumentKey document, ConversionRequest request,
+			AtomicBoolean inactive) throws IOException, ConversionException {
+
+		CancellationSignal signal = request.getCancellationSignal();
+		OutputStream out = null;
+		try {
+			flight.result = File.createTempFile("shared", FileSink.TMP_SUFFIX, spoolDir);
+			out = new FileOutputStream(flight.result);
+			OutputStream os = request.getOutputStream();
+			if (signal!=null) {
+				os = new UnlessCancelledOutputStream(os, signal);
+			}
+			ConversionRequest shared = document.requestFor(new TeeOutputStream(os, out));
+			shared.setProgressListener(flight);
+			shared.setCancellationSignal(flight.signal);
+			THREADS.newThread(new SharedConversion(key, flight, shared, out)).start();
+
+		} catch (Throwable t) {
+			if (out!=null) {
+				out.close();
+			}
+			finished(key);
+			// followers fail the same way
+			flight.done.setException(t);
+			throw t;
+		}
+
+		boolean stopped = await(flight, signal, inactive, false);
+		try {
+			Futures.getDone(flight.done);
+		} catch (ExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), IOException.class, ConversionException.class);
+			throw new ConversionException("Shared conversion failed", e.getCause());
+		}
+		if (stopped) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new ConversionException("Interrupted, though shared conversion finished");
+			}
+			throw new ConversionCancelledException("Cancelled, though shared conversion finished");
+		}
+	}
+
+	/**
+	 * Wait for the leader to finish, then copy its result to the request's OutputStream.
+	 */
+	private void follow(Flight flight, ConversionRequest request, AtomicBoolean inactive)
+			throws IOException, ConversionException {
+
+		await(flight, request.getCancellationSignal(), inactive, true);
+		try {
+			Futures.getDone(flight.done);
+		} catch (ExecutionException e) {
+			throw new ConversionException("Shared conversion failed", e.getCause());
+		}
+
+		Files.copy(flight.result, request.getOutputStream());
+	}
+
+	/**
+	 * Wait for flight's conversion to finish.  The request's signal is polled,
+	 * rather than listened to, since it is the caller's, and a 
+	 * CancellationSignal has only one listener.  A request which is cancelled
+	 * or interrupted stops counting as active (cancelling the conversion if
+	 * no active request is left).
+	 *
+	 * @param leave whether a request which is cancelled or interrupted then
+	 * stops waiting, throwing an exception, rather than waiting on
+	 * @return whether the request was cancelled or interrupted
+	 */
+	private boolean await(Flight flight, CancellationSignal signal, AtomicBoolean inactive, boolean leave)
+			throws ConversionException {
+
+		boolean stopped = false;
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					flight.done.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+					return stopped;
+				} catch (ExecutionException e) {
+					return stopped;
+				} catch (TimeoutException e) {
+					// poll the signal
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+
+				if (!stopped && (interrupted || (signal!=null && signal.isCanceled()))) {
+					stopped = true;
+					if (deactivate(flight, inactive)) {
+						flight.signal.cancel();
+					}
+					if (leave && interrupted) {
+						throw new ConversionException("Interrupted waiting for shared conversion");
+					} else if (leave) {
+						throw new ConversionCancelledException("Cancelled waiting for shared conversion");
+					}
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Later requests start a conversion of their own.
+	 */
+	private void finished(String key) {
+		synchronized (inFlight) {
+			inFlight.remove(key);
+		}
+	}
+
+	/**
+	 * Performs a flight's conversion, then closes its result file.
+	 */
+	private class SharedConversion implements Runnable {
+
+		private final String key;
+		private final Flight flight;
+		private final ConversionRequest request;
+		private final OutputStream out;
+
+		SharedConversion(String key, Flight flight, ConversionRequest request, OutputStream out) {
+			this.key = key;
+			this.flight = flight;
+			this.request = request;
+			this.out = out;
+		}
+
+		@Override
+		public void run() {
+			try {
+				try {
+					converter.convert(request);
+				} finally {
+					out.close();
+				}
+				flight.done.set(null);
+
+			} catch (Throwable t) {
+				// followers fail the same way
+				flight.done.setException(t);
+
+			} finally {
+				finished(key);
+			}
+		}
+	}
+
+	/**
+	 * A request stops counting as active in a flight, once only, whether it
+	 * was cancelled or has left.  Once every request still waiting for a 
+	 * flight has been cancelled, the conversion is cancelled.
+	 *
+	 * @return whether it was the last active request
+	 */
+	private boolean deactivate(Flight flight, AtomicBoolean inactive) {
+
+		if (!inactive.compareAndSet(false, true)) {
+			return false;
+		}
+		synchronized (inFlight) {
+			return --flight.active==0;
+		}
+	}
+
+	/**
+	 * The last request to leave a flight deletes its result.
+	 */
+	private void leave(Flight flight) {
+
+		boolean last;
+		synchronized (inFlight) {
+			last = --flight.waiters==0;
+		}
+		if (last && flight.result!=null) {
+			flight.result.delete();
+		}
+	}
+
+
+	/**
+	 * One conversion, and the requests waiting for it.
+	 */
+	private static class Flight implements ProgressListener {
+
+		final SettableFuture<Void> done = SettableFuture.create();
+
+		/**
+		 * Cancels the conversion, once no request wants it.  The conversion
+		 * is given this rather than any request's own signal, which is the
+		 * caller's to listen to.
+		 */
+		final CancellationSignal signal = new CancellationSignal();
+
+		/**
+		 * The result, once done; written only by the leader, before done is set
+		 */
+		volatile File result;
+
+		/**
+		 * Requests waiting, and those of them neither cancelled nor gone.  Guarded by inFlight
+		 */
+		int waiters;
+		int active;
+
+		private final CopyOnWriteArrayList<ProgressListener> listeners = new CopyOnWriteArrayList<ProgressListener>();
+
+		void addListener(ProgressListener listener) {
+			if (listener!=null) {
+				listeners.add(listener);
+			}
+		}
+
+		void removeListener(ProgressListener listener) {
+			if (listener!=null) {
+				listeners.remove(listener);
+			}
+		}
+
+		@Override
+		public void onProgress(ConversionProgress progress) {
+			for (ProgressListener listener : listeners) {
+				listener.onProgress(progress);
+			}
+		}
+	}
+
+	/**
+	 * Drops writes once the request is cancelled, so the caller's OutputStream
+	 * is left alone while the conversion carries on for other requests.
+	 */
+	private static class UnlessCancelledOutputStream extends OutputStream {
+
+		private final OutputStream os;
+		private final CancellationSignal signal;
+
+		UnlessCancelledOutputStream(OutputStream os, CancellationSignal signal) {
+			this.os = os;
+			this.signal = signal;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!signal.isCanceled()) {
+				os.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) throws IOException {
+			if (!signal.isCanceled()) {
+				os.write(buf, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (!signal.isCanceled()) {
+				os.flush();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+
+/**
+ * Thrown when a conversion is stopped by its CancellationSignal
+ * (see ConversionRequest.setCancellationSignal).
+ */
+@SuppressWarnings("serial")
+public class ConversionCancelledException extends ConversionException {
+
+	public ConversionCancelledException(String msg) {
+		super(msg);
+	}
+
+	public ConversionCancelledException(String msg, Throwable t) {
+		super(msg, t);
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.os.Process;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Executors used to run conversions off the calling thread.
+ *
+ * Conversions spend most of their time blocked on the network, so a
+ * small fixed number of threads is enough; further requests queue
+ * until a thread is free.
+ */
+public final class ConversionExecutor {
+
+	/**
+	 * Number of threads in the shared executor.
+	 */
+	public static final int DEFAULT_THREADS = 2;
+
+	private static ListeningExecutorService defaultExecutor = null;
+
+	private static ScheduledExecutorService scheduler = null;
+
+	private ConversionExecutor() {
+	}
+
+	/**
+	 * The executor shared by converters which weren't given one of their own.
+	 * It is created on first use, with DEFAULT_THREADS threads.
+	 */
+	public static synchronized ListeningExecutorService getDefault() {
+
+		if (defaultExecutor==null) {
+			defaultExecutor = newExecutor(DEFAULT_THREADS);
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * A single thread, for starting retries once their backoff delay is up,
+	 * on behalf of conversions which don't hold a thread while they wait.
+	 * Tasks run on it must be quick.
+	 */
+	static synchronized ScheduledExecutorService getScheduler() {
+
+		if (scheduler==null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ConversionThreadFactory());
+			executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+			executor.allowCoreThreadTimeOut(true);
+			scheduler = executor;
+		}
+		return scheduler;
+	}
+
+	/**
+	 * @return a factory for background priority daemon threads
+	 */
+	static ThreadFactory newThreadFactory() {
+		return new ConversionThreadFactory();
+	}
+
+	/**
+	 * Create an executor with a fixed number of background priority threads.
+	 * Idle threads are allowed to time out, so an unused executor costs nothing.
+	 *
+	 * @param threads
+	 */
+	public static ListeningExecutorService newExecutor(int threads) {
+
+		if (threads<1) {
+			throw new IllegalArgumentException("threads must be at least 1, was " + threads);
+		}
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ConversionThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+
+		return MoreExecutors.listeningDecorator(executor);
+	}
+
+	private static class ConversionThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger poolNumber = new AtomicInteger(1);
+
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+		private final String namePrefix = "converter-" + poolNumber.getAndIncrement() + "-";
+
+		@Override
+		public Thread newThread(final Runnable r) {
+
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					// keep uploads from competing with the UI thread for CPU
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, namePrefix + threadNumber.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
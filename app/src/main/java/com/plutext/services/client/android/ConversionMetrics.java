@@ -0,0 +1,244 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Aggregates ConversionTimings per (fromFormat, toFormat) pair, as
+ * LatencyHistograms for each phase plus counts of conversions and bytes.
+ *
+ * ConverterHttp records into getDefault() unless given another instance
+ * with setMetrics.  Recording is lock free; call snapshot() to read the
+ * figures, eg periodically for a dashboard:
+ *
+ * <pre>
+ * for (ConversionMetrics.Snapshot s : ConversionMetrics.getDefault().snapshot().values()) {
+ *     Log.i(TAG, s.toString());
+ * }
+ * </pre>
+ */
+public class ConversionMetrics {
+
+	public enum Timing {
+		CONNECT, UPLOAD, SERVER, DOWNLOAD, TOTAL
+	}
+
+	private static final ConversionMetrics defaultMetrics = new ConversionMetrics();
+
+	private final ConcurrentMap<String, FormatPairMetrics> pairs
+			= new ConcurrentHashMap<String, FormatPairMetrics>();
+
+
+	/**
+	 * @return the instance ConverterHttp records into by default
+	 */
+	public static ConversionMetrics getDefault() {
+		return defaultMetrics;
+	}
+
+	/**
+	 * Record a successful conversion.
+	 */
+	public void record(ConversionTimings timings) {
+
+		FormatPairMetrics m = get(timings.getFromFormat(), timings.getToFormat());
+		record(m, Timing.CONNECT, timings.getConnectMillis());
+		record(m, Timing.UPLOAD, timings.getUploadMillis());
+		record(m, Timing.SERVER, timings.getServerMillis());
+		record(m, Timing.DOWNLOAD, timings.getDownloadMillis());
+		record(m, Timing.TOTAL, timings.getTotalMillis());
+		m.bytesSent.addAndGet(timings.getBytesSent());
+		m.bytesReceived.addAndGet(timings.getBytesReceived());
+		m.retries.addAndGet(timings.getAttempts() - 1);
+		m.successes.incrementAndGet();
+	}
+
+	/**
+	 * Record millis, unless it is -1 for a phase the conversion's last 
+	 * attempt didn't go through.
+	 */
+	private static void record(FormatPairMetrics m, Timing timing, long millis) {
+
+		if (millis>=0) {
+			m.latency.get(timing).record(millis);
+		}
+	}
+
+	/**
+	 * Record a conversion which failed.
+	 */
+	public void recordFailure(Format fromFormat, Format toFormat) {
+		get(fromFormat, toFormat).failures.incrementAndGet();
+	}
+
+	/**
+	 * @return the figures so far, keyed by eg "DOCX->PDF"
+	 */
+	public Map<String, Snapshot> snapshot() {
+
+		Map<String, Snapshot> result = new TreeMap<String, Snapshot>();
+		for (Map.Entry<String, FormatPairMetrics> entry : pairs.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	public void reset() {
+		pairs.clear();
+	}
+
+	private FormatPairMetrics get(Format fromFormat, Format toFormat) {
+
+		String key = key(fromFormat, toFormat);
+		FormatPairMetrics m = pairs.get(key);
+		if (m==null) {
+			FormatPairMetrics created = new FormatPairMetrics(fromFormat, toFormat);
+			m = pairs.putIfAbsent(key, created);
+			if (m==null) {
+				m = created;
+			}
+		}
+		return m;
+	}
+
+	static String key(Format fromFormat, Format toFormat) {
+		return fromFormat + "->" + toFormat;
+	}
+
+
+	private static class FormatPairMetrics {
+
+		final Format fromFormat;
+		final Format toFormat;
+		final Map<Timing, LatencyHistogram> latency = new EnumMap<Timing, LatencyHistogram>(Timing.class);
+		final AtomicLong successes = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final AtomicLong retries = new AtomicLong();
+		final AtomicLong bytesSent = new AtomicLong();
+		final AtomicLong bytesReceived = new AtomicLong();
+
+		FormatPairMetrics(Format fromFormat, Format toFormat) {
+			this.fromFormat = fromFormat;
+			this.toFormat = toFormat;
+			for (Timing timing : Timing.values()) {
+				latency.put(timing, new LatencyHistogram());
+			}
+		}
+
+		Snapshot snapshot() {
+
+			Map<Timing, LatencyHistogram.Snapshot> snapshots
+					= new EnumMap<Timing, LatencyHistogram.Snapshot>(Timing.class);
+			for (Map.Entry<Timing, LatencyHistogram> entry : latency.entrySet()) {
+				snapshots.put(entry.getKey(), entry.getValue().snapshot());
+			}
+			return new Snapshot(fromFormat, toFormat, snapshots, successes.get(), failures.get(),
+					retries.get(), bytesSent.get(), bytesReceived.get());
+		}
+	}
+
+	/**
+	 * The figures for one (fromFormat, toFormat) pair.
+	 */
+	public static class Snapshot {
+
+		private final Format fromFormat;
+		private final Format toFormat;
+		private final Map<Timing, LatencyHistogram.Snapshot> latency;
+		private final long successes;
+		private final long failures;
+		private final long retries;
+		private final long bytesSent;
+		private final long bytesReceived;
+
+		Snapshot(Format fromFormat, Format toFormat, Map<Timing, LatencyHistogram.Snapshot> latency,
+				long successes, long failures, long retries, long bytesSent, long bytesReceived) {
+
+			this.fromFormat = fromFormat;
+			this.toFormat = toFormat;
+			this.latency = latency;
+			this.successes = successes;
+			this.failures = failures;
+			this.retries = retries;
+			this.bytesSent = bytesSent;
+			this.bytesReceived = bytesReceived;
+		}
+
+		public Format getFromFormat() {
+			return fromFormat;
+		}
+
+		public Format getToFormat() {
+			return toFormat;
+		}
+
+		/**
+		 * @return the distribution of timing over successful conversions
+		 */
+		public LatencyHistogram.Snapshot getLatency(Timing timing) {
+			return latency.get(timing);
+		}
+
+		public long getSuccesses() {
+			return successes;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return extra attempts made by conversions which eventually succeeded
+		 */
+		public long getRetries() {
+			return retries;
+		}
+
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		public long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		@Override
+		public String toString() {
+
+			StringBuilder sb = new StringBuilder(key(fromFormat, toFormat));
+			sb.append(": ").append(successes).append(" ok, ").append(failures).append(" failed, ")
+					.append(retries).append(" retries, ")
+					.append(bytesSent).append(" bytes sent, ").append(bytesReceived).append(" received");
+			for (Timing timing : Timing.values()) {
+				sb.append("\n  ").append(timing).append(' ').append(latency.get(timing));
+			}
+			return sb.toString();
+		}
+	}
+
+}
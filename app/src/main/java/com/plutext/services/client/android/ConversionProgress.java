@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+
+/**
+ * A snapshot of how far a conversion has got.
+ */
+public class ConversionProgress {
+
+	private final ProgressListener.Phase phase;
+	private final long bytesSent;
+	private final long bytesToSend;
+	private final long bytesReceived;
+	private final long bytesToReceive;
+	private final double bytesPerSecond;
+
+
+	ConversionProgress(ProgressListener.Phase phase, long bytesSent, long bytesToSend,
+			long bytesReceived, long bytesToReceive, double bytesPerSecond) {
+
+		this.phase = phase;
+		this.bytesSent = bytesSent;
+		this.bytesToSend = bytesToSend;
+		this.bytesReceived = bytesReceived;
+		this.bytesToReceive = bytesToReceive;
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public ProgressListener.Phase getPhase() {
+		return phase;
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return size of the upload, or -1 if not known
+	 */
+	public long getBytesToSend() {
+		return bytesToSend;
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return size of the result, or -1 if not known (eg the response is chunked)
+	 */
+	public long getBytesToReceive() {
+		return bytesToReceive;
+	}
+
+	/**
+	 * @return recent transfer rate while UPLOADING or DOWNLOADING, otherwise 0
+	 */
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * @return percentage of the current upload or download done, or -1 if
+	 * not UPLOADING or DOWNLOADING, or the size isn't known
+	 */
+	public int getPercent() {
+
+		if (phase==ProgressListener.Phase.UPLOADING && bytesToSend>0) {
+			return (int) (100 * bytesSent / bytesToSend);
+		} else if (phase==ProgressListener.Phase.DOWNLOADING && bytesToReceive>0) {
+			return (int) (100 * bytesReceived / bytesToReceive);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return estimated time to finish the current upload or download,
+	 * at the current rate, or -1 if that can't be estimated
+	 */
+	public long getEtaMillis() {
+
+		if (bytesPerSecond<=0) {
+			return -1;
+		}
+		if (phase==ProgressListener.Phase.UPLOADING && bytesToSend>=0) {
+			return (long) (1000 * (bytesToSend - bytesSent) / bytesPerSecond);
+		} else if (phase==ProgressListener.Phase.DOWNLOADING && bytesToReceive>=0) {
+			return (long) (1000 * (bytesToReceive - bytesReceived) / bytesPerSecond);
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return phase + " sent " + bytesSent + "/" + bytesToSend
+				+ ", received " + bytesReceived + "/" + bytesToReceive
+				+ ", " + (long) bytesPerSecond + " B/s";
+	}
+
+}
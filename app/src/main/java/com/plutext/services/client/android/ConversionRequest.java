@@ -0,0 +1,359 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.os.CancellationSignal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+
+/**
+ * One conversion: a document in fromFormat, to be converted to toFormat
+ * and streamed to an OutputStream.
+ *
+ * The document may be a File, an InputStream, a byte array, a ByteBuffer
+ * or a ReadableByteChannel, as for the
+ * corresponding Converter.convert methods.
+ */
+public class ConversionRequest {
+
+	private final File file;
+	private final InputStream instream;
+	private final byte[] bytesIn;
+	private final ByteBuffer bufferIn;
+	private final ReadableByteChannel channelIn;
+	private final long length;
+
+	private final Format fromFormat;
+	private final Format toFormat;
+	private final OutputStream os;
+
+	private ProgressListener progressListener = null;
+	private CancellationSignal cancellationSignal = null;
+	private int firstPage = 0;
+	private int lastPage = 0;
+
+	// the DocumentKey, once a converter has worked it out (see DocumentKey.of)
+	private String documentKey = null;
+
+
+	public ConversionRequest(File f, Format fromFormat, Format toFormat, OutputStream os) {
+		this(f, null, null, null, null, -1, fromFormat, toFormat, os);
+		if (f==null) {
+			throw new IllegalArgumentException("File must not be null");
+		}
+	}
+
+	public ConversionRequest(InputStream instream, Format fromFormat, Format toFormat, OutputStream os) {
+		this(null, instream, null, null, null, -1, fromFormat, toFormat, os);
+		if (instream==null) {
+			throw new IllegalArgumentException("InputStream must not be null");
+		}
+	}
+
+	public ConversionRequest(byte[] bytesIn, Format fromFormat, Format toFormat, OutputStream os) {
+		this(null, null, bytesIn, null, null, -1, fromFormat, toFormat, os);
+		if (bytesIn==null) {
+			throw new IllegalArgumentException("byte[] must not be null");
+		}
+	}
+
+	public ConversionRequest(ByteBuffer bufferIn, Format fromFormat, Format toFormat, OutputStream os) {
+		this(null, null, null, bufferIn, null, -1, fromFormat, toFormat, os);
+		if (bufferIn==null) {
+			throw new IllegalArgumentException("ByteBuffer must not be null");
+		}
+	}
+
+	/**
+	 * @param length the number of bytes to read from channelIn, or -1 to read to the end
+	 */
+	public ConversionRequest(ReadableByteChannel channelIn, long length, Format fromFormat, Format toFormat, OutputStream os) {
+		this(null, null, null, null, channelIn, length, fromFormat, toFormat, os);
+		if (channelIn==null) {
+			throw new IllegalArgumentException("ReadableByteChannel must not be null");
+		}
+	}
+
+	private ConversionRequest(File file, InputStream instream, byte[] bytesIn,
+			ByteBuffer bufferIn, ReadableByteChannel channelIn, long length,
+			Format fromFormat, Format toFormat, OutputStream os) {
+
+		if (os==null) {
+			throw new IllegalArgumentException("OutputStream must not be null");
+		}
+
+		this.file = file;
+		this.instream = instream;
+		this.bytesIn = bytesIn;
+		this.bufferIn = bufferIn;
+		this.channelIn = channelIn;
+		this.length = length;
+		this.fromFormat = fromFormat;
+		this.toFormat = toFormat;
+		this.os = os;
+	}
+
+
+	/**
+	 * @return the document, if it was supplied as a File, otherwise null
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the document, if it was supplied as an InputStream, otherwise null
+	 */
+	public InputStream getInputStream() {
+		return instream;
+	}
+
+	/**
+	 * @return the document, if it was supplied as a byte array, otherwise null
+	 */
+	public byte[] getBytes() {
+		return bytesIn;
+	}
+
+	/**
+	 * @return the document, if it was supplied as a ByteBuffer, otherwise null
+	 */
+	public ByteBuffer getByteBuffer() {
+		return bufferIn;
+	}
+
+	/**
+	 * @return the document, if it was supplied as a ReadableByteChannel, otherwise null
+	 */
+	public ReadableByteChannel getChannel() {
+		return channelIn;
+	}
+
+	/**
+	 * @return the number of bytes to read from the channel, or -1 to read to the end
+	 */
+	public long getChannelLength() {
+		return length;
+	}
+
+	public Format getFromFormat() {
+		return fromFormat;
+	}
+
+	public Format getToFormat() {
+		return toFormat;
+	}
+
+	public OutputStream getOutputStream() {
+		return os;
+	}
+
+	public ProgressListener getProgressListener() {
+		return progressListener;
+	}
+
+	/**
+	 * @param progressListener to receive progress reports, or null.
+	 * Converters which can't report progress ignore it.
+	 */
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	public CancellationSignal getCancellationSignal() {
+		return cancellationSignal;
+	}
+
+	/**
+	 * @param cancellationSignal to cancel the conversion with, or null.
+	 * Cancelling it aborts the upload or download in progress, and the
+	 * conversion fails with a ConversionCancelledException; whatever was
+	 * already written to the OutputStream is the caller's to discard.
+	 * Converters which can't stop a conversion in progress ignore it.
+	 */
+	public void setCancellationSignal(CancellationSignal cancellationSignal) {
+		this.cancellationSignal = cancellationSignal;
+	}
+
+	/**
+	 * @return the first page to convert (counting from 1), or 0 if the whole
+	 * document is to be converted
+	 */
+	public int getFirstPage() {
+		return firstPage;
+	}
+
+	/**
+	 * @return the last page to convert, or 0 if the whole document is to be converted
+	 */
+	public int getLastPage() {
+		return lastPage;
+	}
+
+	/**
+	 * @return whether only some pages of the document are to be converted
+	 */
+	public boolean hasPageRange() {
+		return firstPage>0;
+	}
+
+	/**
+	 * Convert only pages firstPage to lastPage (counting from 1) of the
+	 * document, for instance to show the first few quickly while the rest
+	 * is converted.  If the document has fewer pages, the result ends at
+	 * its last.  Only a PDF can be asked for in part; Converters which can't
+	 * convert part of a document ignore this, and convert all of it.
+	 *
+	 * @param firstPage
+	 * @param lastPage
+	 */
+	public void setPageRange(int firstPage, int lastPage) {
+
+		if (firstPage<1 || lastPage<firstPage) {
+			throw new IllegalArgumentException("Bad page range " + firstPage + "-" + lastPage);
+		}
+		this.firstPage = firstPage;
+		this.lastPage = lastPage;
+		this.documentKey = null;
+	}
+
+	/**
+	 * @return a copy of this request, with its result going to os instead
+	 */
+	ConversionRequest withOutputStream(OutputStream os) {
+		return copyOptionsTo(new ConversionRequest(file, instream, bytesIn,
+				bufferIn, channelIn, length, fromFormat, toFormat, os));
+	}
+
+	/**
+	 * @return a copy of this request, for the document in f instead
+	 * (eg a copy of an InputStream), with its result going to os
+	 */
+	ConversionRequest withFile(File f, OutputStream os) {
+		return copyOptionsTo(new ConversionRequest(f, fromFormat, toFormat, os));
+	}
+
+	/**
+	 * @return a copy of this request, cancelled by signal instead
+	 */
+	ConversionRequest withCancellationSignal(CancellationSignal signal) {
+		ConversionRequest copy = withOutputStream(os);
+		copy.cancellationSignal = signal;
+		return copy;
+	}
+
+	private ConversionRequest copyOptionsTo(ConversionRequest copy) {
+		copy.progressListener = progressListener;
+		copy.cancellationSignal = cancellationSignal;
+		copy.firstPage = firstPage;
+		copy.lastPage = lastPage;
+		copy.documentKey = documentKey;
+		return copy;
+	}
+
+	String getDocumentKey() {
+		return documentKey;
+	}
+
+	void setDocumentKey(String documentKey) {
+		this.documentKey = documentKey;
+	}
+
+	/**
+	 * @return the document, as a RequestBody
+	 */
+	RequestBody toRequestBody() {
+
+		if (file!=null) {
+			return RequestBody.of(file);
+		} else if (instream!=null) {
+			return RequestBody.of(instream);
+		} else if (bufferIn!=null) {
+			return RequestBody.of(bufferIn);
+		} else if (channelIn!=null) {
+			return RequestBody.of(channelIn, length);
+		} else {
+			return RequestBody.of(bytesIn);
+		}
+	}
+
+	/**
+	 * @return the kind of document: File, InputStream, byte[], ByteBuffer or ReadableByteChannel
+	 */
+	String getInputType() {
+
+		if (file!=null) {
+			return "File";
+		} else if (instream!=null) {
+			return "InputStream";
+		} else if (bufferIn!=null) {
+			return "ByteBuffer";
+		} else if (channelIn!=null) {
+			return "ReadableByteChannel";
+		} else {
+			return "byte[]";
+		}
+	}
+
+	/**
+	 * Perform this request using whichever of converter's convert methods
+	 * takes this kind of document.
+	 */
+	void convertWith(Converter converter) throws IOException, ConversionException {
+
+		if (file!=null) {
+			converter.convert(file, fromFormat, toFormat, os);
+		} else if (instream!=null) {
+			converter.convert(instream, fromFormat, toFormat, os);
+		} else if (bufferIn!=null) {
+			converter.convert(bufferIn, fromFormat, toFormat, os);
+		} else if (channelIn!=null) {
+			converter.convert(channelIn, length, fromFormat, toFormat, os);
+		} else {
+			converter.convert(bytesIn, fromFormat, toFormat, os);
+		}
+	}
+
+	@Override
+	public String toString() {
+
+		String input;
+		if (file!=null) {
+			input = file.getName();
+		} else if (instream!=null) {
+			input = "InputStream";
+		} else if (bufferIn!=null) {
+			input = bufferIn.remaining() + " byte buffer";
+		} else if (channelIn!=null) {
+			input = "ReadableByteChannel";
+		} else {
+			input = bytesIn.length + " bytes";
+		}
+		return "ConversionRequest[" + input + ", " + fromFormat + " -> " + toFormat
+				+ (hasPageRange() ? " pages " + firstPage + "-" + lastPage : "") + "]";
+	}
+
+}
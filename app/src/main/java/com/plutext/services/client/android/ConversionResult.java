@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+
+/**
+ * The outcome of one ConversionRequest in a batch.
+ */
+public class ConversionResult {
+
+	private final ConversionRequest request;
+	private final Throwable failure;
+	private final long elapsedMillis;
+
+
+	ConversionResult(ConversionRequest request, Throwable failure, long elapsedMillis) {
+		this.request = request;
+		this.failure = failure;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	public ConversionRequest getRequest() {
+		return request;
+	}
+
+	/**
+	 * @return true if the result was written to the request's OutputStream
+	 */
+	public boolean isSuccess() {
+		return failure==null;
+	}
+
+	/**
+	 * @return why the conversion failed (typically a ConversionException),
+	 * or null if it succeeded
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * @return how long the conversion took, excluding time spent queued
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return request + (failure==null ? " OK" : " failed: " + failure.getMessage())
+				+ " (" + elapsedMillis + "ms)";
+	}
+
+}
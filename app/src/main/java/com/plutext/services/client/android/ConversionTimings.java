@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+
+/**
+ * Where the time went in one successful conversion.
+ *
+ * connect is the time to open the connection; upload, to send the document;
+ * server, from the end of the upload to the response headers (ie mostly the
+ * conversion itself); download, to receive the result.  These are for the
+ * final attempt, and -1 for a phase it didn't go through (a resumed download
+ * uploads nothing); total is from the start of the first attempt, so includes
+ * any retries.  The bytes are those of every attempt.
+ */
+public class ConversionTimings {
+
+	private final Format fromFormat;
+	private final Format toFormat;
+	private final long connectMillis;
+	private final long uploadMillis;
+	private final long serverMillis;
+	private final long downloadMillis;
+	private final long totalMillis;
+	private final long bytesSent;
+	private final long bytesReceived;
+	private final int attempts;
+
+
+	ConversionTimings(Format fromFormat, Format toFormat,
+			long connectMillis, long uploadMillis, long serverMillis, long downloadMillis, long totalMillis,
+			long bytesSent, long bytesReceived, int attempts) {
+
+		this.fromFormat = fromFormat;
+		this.toFormat = toFormat;
+		this.connectMillis = connectMillis;
+		this.uploadMillis = uploadMillis;
+		this.serverMillis = serverMillis;
+		this.downloadMillis = downloadMillis;
+		this.totalMillis = totalMillis;
+		this.bytesSent = bytesSent;
+		this.bytesReceived = bytesReceived;
+		this.attempts = attempts;
+	}
+
+	public Format getFromFormat() {
+		return fromFormat;
+	}
+
+	public Format getToFormat() {
+		return toFormat;
+	}
+
+	public long getConnectMillis() {
+		return connectMillis;
+	}
+
+	public long getUploadMillis() {
+		return uploadMillis;
+	}
+
+	public long getServerMillis() {
+		return serverMillis;
+	}
+
+	public long getDownloadMillis() {
+		return downloadMillis;
+	}
+
+	public long getTotalMillis() {
+		return totalMillis;
+	}
+
+	/**
+	 * @return bytes of the document sent (before any compression)
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return bytes of the response received (before any decompression)
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	@Override
+	public String toString() {
+		return fromFormat + "->" + toFormat + ": connect " + connectMillis + "ms, upload " + uploadMillis
+				+ "ms (" + bytesSent + " bytes), server " + serverMillis + "ms, download " + downloadMillis
+				+ "ms (" + bytesReceived + " bytes), total " + totalMillis + "ms"
+				+ (attempts>1 ? " after " + attempts + " attempts" : "");
+	}
+
+}
@@ -19,10 +19,15 @@
  */
 package com.plutext.services.client.android;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
 
 
 /**
@@ -84,5 +89,120 @@ public interface Converter {
 	 * @throws ConversionException
 	 */
 	public void convert(byte[] bytesIn, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException;
+
+	/**
+	 * Convert the remaining bytes of a ByteBuffer fromFormat to toFormat, streaming result to OutputStream os.
+	 * 
+	 * Unlike convert(byte[], ...), this takes a direct or memory-mapped buffer 
+	 * without first copying it to the heap.  The buffer's position is not changed.
+	 * 
+	 * fromFormat supported: DOC, DOCX
+	 * 
+	 * toFormat supported: PDF
+	 * 
+	 * @param bufferIn
+	 * @param fromFormat
+	 * @param toFormat
+	 * @param os
+	 * @throws IOException
+	 * @throws ConversionException
+	 */
+	public void convert(ByteBuffer bufferIn, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException;
+
+
+	/**
+	 * Convert the contents of a ReadableByteChannel fromFormat to toFormat, streaming result to OutputStream os.
+	 * 
+	 * fromFormat supported: DOC, DOCX
+	 * 
+	 * toFormat supported: PDF
+	 * 
+	 * If length is known, the document is uploaded with a fixed Content-Length
+	 * rather than chunked.
+	 * 
+	 * @param channelIn
+	 * @param length the number of bytes to read from the channel, or -1 to read to the end
+	 * @param fromFormat
+	 * @param toFormat
+	 * @param os
+	 * @throws IOException
+	 * @throws ConversionException
+	 */
+	public void convert(ReadableByteChannel channelIn, long length, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException;
+
+
+	/**
+	 * Convert File fromFormat to toFormat on a background thread,
+	 * streaming result to OutputStream os.
+	 *
+	 * The returned future completes once the result has been written to os;
+	 * if the conversion fails, it fails with the ConversionException
+	 * (or IOException) the blocking method would have thrown.
+	 *
+	 * @param f
+	 * @param fromFormat
+	 * @param toFormat
+	 * @param os
+	 */
+	public ListenableFuture<Void> convertAsync(File f, Format fromFormat, Format toFormat, OutputStream os);
+
+	/**
+	 * Convert InputStream fromFormat to toFormat on a background thread,
+	 * streaming result to OutputStream os.
+	 *
+	 * The stream is read on the background thread, so the caller must not
+	 * use or close it until the returned future completes.
+	 *
+	 * @param instream
+	 * @param fromFormat
+	 * @param toFormat
+	 * @param os
+	 */
+	public ListenableFuture<Void> convertAsync(InputStream instream, Format fromFormat, Format toFormat, OutputStream os);
+
+	/**
+	 * Convert byte array fromFormat to toFormat on a background thread,
+	 * streaming result to OutputStream os.
+	 *
+	 * @param bytesIn
+	 * @param fromFormat
+	 * @param toFormat
+	 * @param os
+	 */
+	public ListenableFuture<Void> convertAsync(byte[] bytesIn, Format fromFormat, Format toFormat, OutputStream os);
+
+
+	/**
+	 * Perform a ConversionRequest, streaming result to its OutputStream.
+	 *
+	 * @param request
+	 * @throws IOException
+	 * @throws ConversionException
+	 */
+	public void convert(ConversionRequest request) throws IOException, ConversionException;
+
+	/**
+	 * Perform a ConversionRequest on a background thread, streaming result
+	 * to its OutputStream.
+	 *
+	 * @param request
+	 */
+	public ListenableFuture<Void> convertAsync(ConversionRequest request);
+
+	/**
+	 * Perform a batch of ConversionRequests, with up to maxConcurrency running
+	 * at once.  Running several at once means one document can be uploading
+	 * while the result of another is still downloading.
+	 *
+	 * A failed request doesn't stop the others; each one's outcome is reported
+	 * in the ConversionResult at the same index in the returned list.
+	 *
+	 * @param requests
+	 * @param maxConcurrency maximum number of conversions in progress at once
+	 * @return a result for each request, in the same order
+	 * @throws InterruptedException if interrupted while waiting; conversions
+	 * still in progress are cancelled
+	 */
+	public List<ConversionResult> convertBatch(List<ConversionRequest> requests, int maxConcurrency) throws InterruptedException;
 	
 }
\ No newline at end of file
@@ -20,20 +20,36 @@
 package com.plutext.services.client.android;
 
 
+import android.os.CancellationSignal;
 import android.util.Log;
 
-import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 
-import java.io.BufferedInputStream;
-//import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipException;
 
 
 /**
@@ -41,27 +57,265 @@ import java.net.URL;
  * 
  * @since 3.3.0
  */
-public class ConverterHttp implements Converter {
+public class ConverterHttp extends AbstractConverter {
 
     private static final String TAG = ConverterHttp.class.getSimpleName();
 
-	private String endpointURL = null;
+	private EndpointPool endpoints = new EndpointPool(Collections.<String>emptyList());
+
+	private boolean compression = false;
+
+	private boolean formatDetection = true;
+
+	private DocxSlimmer docxSlimmer = null;
+
+	// set once an endpoint has shown it can't send the PDF and TOC together
+	private volatile boolean combinedUnsupported = false;
+
+	/**
+	 * Request header identifying a conversion, which stays the same when it is retried.
+	 */
+	public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+	private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+	private File spoolDirectory = null;
+
+	private ConversionMetrics metrics = ConversionMetrics.getDefault();
+
+	private Transport transport = new UrlConnectionTransport();
+
+	/**
+	 * Default number of idle keep-alive connections kept by the pool.
+	 */
+	public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+
+	/**
+	 * Default time an idle keep-alive connection is kept before being evicted.
+	 */
+	public static final long DEFAULT_KEEP_ALIVE_DURATION_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 * Configure the pool HttpURLConnection keeps idle connections in,
+	 * so that successive conversions can skip TCP (and TLS) setup.
+	 * This is the pool a UrlConnectionTransport uses; a NioTransport 
+	 * keeps its own.
+	 *
+	 * The pool is shared by the whole process, and HttpURLConnection reads
+	 * these settings when it creates it, so call this before the first
+	 * conversion (for example, in Application.onCreate).
+	 *
+	 * @param maxIdleConnections maximum number of idle connections to keep
+	 * @param keepAliveDurationMillis how long an idle connection is kept before it is evicted
+	 */
+	public static void configureConnectionPool(int maxIdleConnections, long keepAliveDurationMillis) {
+
+		if (maxIdleConnections<0) {
+			throw new IllegalArgumentException("maxIdleConnections < 0: " + maxIdleConnections);
+		}
+		if (keepAliveDurationMillis<0) {
+			throw new IllegalArgumentException("keepAliveDurationMillis < 0: " + keepAliveDurationMillis);
+		}
+
+		System.setProperty("http.keepAlive", maxIdleConnections>0 ? "true" : "false");
+		System.setProperty("http.maxConnections", Integer.toString(maxIdleConnections));
+		System.setProperty("http.keepAliveDuration", Long.toString(keepAliveDurationMillis));
+	}
 
 
 	public ConverterHttp() {
 	}
 
 	public ConverterHttp(String endpointURL) {
+		this(endpointURL, null);
+	}
+
+	/**
+	 * @param endpointURL
+	 * @param executor to run convertAsync on; if null, the shared ConversionExecutor is used
+	 */
+	public ConverterHttp(String endpointURL, ListeningExecutorService executor) {
+		this(endpointURL==null ? Collections.<String>emptyList() : Collections.singletonList(endpointURL),
+				executor);
+	}
+
+	/**
+	 * Spread conversions across several endpoints, each going to the one
+	 * with the fewest conversions in flight, weighted by its observed latency.
+	 * Failed attempts are retried on another endpoint (see setRetryPolicy).
+	 *
+	 * Each endpoint has a circuit breaker, which stops conversions going to it
+	 * for a while once half its recent conversions have failed, and (once it
+	 * has failed) a limit on conversions in flight, which shrinks when it 
+	 * fails and grows while it copes.  If no endpoint will take a conversion,
+	 * it fails at once with a ConversionRejectedException.
+	 *
+	 * @param endpointURLs
+	 */
+	public ConverterHttp(List<String> endpointURLs) {
+		this(endpointURLs, null);
+	}
+
+	/**
+	 * @param endpointURLs
+	 * @param executor to run convertAsync on; if null, the shared ConversionExecutor is used
+	 */
+	public ConverterHttp(List<String> endpointURLs, ListeningExecutorService executor) {
+		super(executor);
+
+		Log.d(TAG, "endpoints: " + endpointURLs);
+
+		this.endpoints = new EndpointPool(endpointURLs);
+		this.transport = new UrlConnectionTransport(executor);
+	}
+
+	/**
+	 * @return the endpoints conversions are sent to, with what has been
+	 * observed of each (circuit state, in flight and limit, latency), for diagnostics
+	 */
+	public String getEndpointStatus() {
+		return endpoints.toString();
+	}
+
+
+
+	/**
+	 * Compress request and response bodies with gzip.  Off by default,
+	 * since the endpoint must accept gzip'd request bodies.
+	 *
+	 * When on, DOC uploads are sent with Content-Encoding: gzip (DOCX
+	 * is a zip file already, so is sent as is), and gzip'd responses
+	 * are requested, and decompressed as they are streamed to the caller.
+	 * This mostly helps on slow or metered links.  The upload is compressed
+	 * to a file in the spool directory first, so that its length is known.
+	 * A gzip'd download which breaks off can't be resumed, only restarted.
+	 *
+	 * @param compression
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+
+	/**
+	 * Check what each document is, from its first (and where it can be had
+	 * without reading the whole document, last) few KB, before uploading it.
+	 * A DOC declared as DOCX (or vice versa) is converted as what it is, and
+	 * a document which is neither fails at once with a ConversionException,
+	 * rather than after an upload.  On by default.
+	 *
+	 * @param formatDetection
+	 * @see FormatDetector
+	 */
+	public void setFormatDetection(boolean formatDetection) {
+		this.formatDetection = formatDetection;
+	}
+
+	public boolean isFormatDetection() {
+		return formatDetection;
+	}
+
+	/**
+	 * Slim each DOCX before uploading it, leaving out parts which don't affect
+	 * how it renders, and (given an ImageResampler) shrinking images.  The
+	 * slimmed copy is written to the spool directory, and if it comes out no
+	 * smaller the document is uploaded as it is.  Off (null) by default.
+	 *
+	 * @param docxSlimmer
+	 */
+	public void setDocxSlimmer(DocxSlimmer docxSlimmer) {
+		this.docxSlimmer = docxSlimmer;
+	}
+
+	public DocxSlimmer getDocxSlimmer() {
+		return docxSlimmer;
+	}
+
+
+	/**
+	 * Set how conversions which fail for a possibly temporary reason are retried.
+	 * Defaults to RetryPolicy.DEFAULT; use RetryPolicy.NONE to disable retries.
+	 *
+	 * Since retries are on by default, a document supplied as an InputStream
+	 * (or a ReadableByteChannel other than a FileChannel) is first copied to 
+	 * the spool directory, so that it can be sent again; with RetryPolicy.NONE,
+	 * it is uploaded straight from the stream.
+	 *
+	 * A failure writing the result to the caller's OutputStream is never
+	 * retried.
+	 *
+	 * @param retryPolicy
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		if (retryPolicy==null) {
+			throw new IllegalArgumentException("retryPolicy must not be null");
+		}
+		this.retryPolicy = retryPolicy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Set the directory an InputStream (or a ReadableByteChannel which can't be
+	 * rewound) is copied to, so that it can be re-sent if the upload has to be
+	 * retried (see setRetryPolicy).  Defaults to java.io.tmpdir (on Android,
+	 * the app's cache directory).
+	 *
+	 * @param spoolDirectory
+	 */
+	public void setSpoolDirectory(File spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
 
-        Log.e(TAG, "starting, with endpointURL: " + endpointURL);
+	public File getSpoolDirectory() {
 
-		if (endpointURL!=null) {
-			this.endpointURL = endpointURL;
+		if (spoolDirectory==null) {
+			return new File(System.getProperty("java.io.tmpdir"));
+		}
+		return spoolDirectory;
+	}
+
+
+	/**
+	 * Set how requests are carried to the endpoint.  Defaults to a
+	 * UrlConnectionTransport, which holds a thread for each conversion
+	 * in progress; a NioTransport lets many conversions share one, and an
+	 * Http2Transport lets them share one connection to each endpoint.
+	 *
+	 * @param transport
+	 */
+	public void setTransport(Transport transport) {
+		if (transport==null) {
+			throw new IllegalArgumentException("transport must not be null");
 		}
+		this.transport = transport;
+	}
 
+	public Transport getTransport() {
+		return transport;
 	}
 
 
+	/**
+	 * Set where the timings of each conversion are recorded.
+	 * Defaults to ConversionMetrics.getDefault().
+	 *
+	 * @param metrics, or null to not record timings
+	 */
+	public void setMetrics(ConversionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public ConversionMetrics getMetrics() {
+		return metrics;
+	}
+
 
 	/**
 	 * Convert File fromFormat to toFormat, streaming result to OutputStream os.
@@ -81,58 +335,681 @@ public class ConverterHttp implements Converter {
 
 		checkParameters(fromFormat, toFormat);
 
-		URL url;
-		HttpURLConnection connection = null;
-		try {
-			//Create connection
-			url = new URL(getUrlForFormat(toFormat));
-			connection = (HttpURLConnection)url.openConnection();
-			connection.setRequestMethod("POST");
+		execute(RequestBody.of(f), fromFormat, toFormat, os, "File", null, null, null, null);
+	}
 
-			connection.setUseCaches (false);
-			connection.setDoInput(true);
-			connection.setDoOutput(true);
+	/**
+	 * Perform a ConversionRequest, streaming result to its OutputStream,
+	 * and reporting progress to its ProgressListener, if any.
+	 * Cancelling its CancellationSignal aborts the exchange in progress.
+	 *
+	 * @param request
+	 * @throws IOException
+	 * @throws ConversionException
+	 */
+	@Override
+	public void convert(ConversionRequest request) throws IOException, ConversionException {
 
-			connection.setChunkedStreamingMode(0); // default size
-			ByteStreams.copy(new FileInputStream(f), connection.getOutputStream());
-			/* Avoid using BufferedOutputStream here, as in:
-				ByteStreams.copy(instream,
-						new BufferedOutputStream(connection.getOutputStream()));
-			*/
+		checkParameters(request);
 
-			//Get Response
-			InputStream is = new BufferedInputStream(connection.getInputStream());
-			ByteStreams.copy(is, os);
+		execute(request.toRequestBody(), request.getFromFormat(), request.getToFormat(),
+				request.getOutputStream(), request.getInputType(), request.getProgressListener(),
+				request.getCancellationSignal(), getPages(request), null);
+	}
 
-		} catch (Exception e) {
+	/**
+	 * Perform a ConversionRequest asynchronously.  The body is prepared (and if 
+	 * need be, spooled) on the executor; after that, each attempt is handed to
+	 * the Transport's executeAsync, and retries are started when their backoff
+	 * delay is up, so with a NioTransport, no thread is held while the 
+	 * conversion is on the network or waiting to retry.
+	 *
+	 * Cancelling the returned future cancels the request's CancellationSignal
+	 * (or one created for it, if it has none), aborting the conversion.
+	 */
+	@Override
+	public ListenableFuture<Void> convertAsync(final ConversionRequest request) {
+
+		final CancellationSignal signal = request.getCancellationSignal()==null ?
+				new CancellationSignal() : request.getCancellationSignal();
+		final SettableFuture<Void> result = SettableFuture.create();
+		cancelWith(result, signal);
+
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkParameters(request);
+					Conversion conversion = new Conversion(request.toRequestBody(), request.getFromFormat(),
+							request.getToFormat(), request.getOutputStream(), request.getInputType(),
+							request.getProgressListener(), signal, getPages(request), null);
+					new AsyncConversion(conversion, result).attempt();
+
+				} catch (Throwable t) {
+					result.setException(t);
+				}
+			}
+		});
+		return result;
+	}
 
+	/**
+	 * Convert a ConversionRequest to PDF (written to its OutputStream), and
+	 * get the document's TOC (written to toc; see OutlineParser) as well,
+	 * uploading the document once rather than twice where the endpoint can
+	 * send both in one multipart/mixed response.  It is asked to with
+	 * Accept: multipart/mixed and parts=application/pdf,application/json.
+	 *
+	 * An endpoint which can't do that is expected either to ignore the 
+	 * request, and send just the PDF, or to refuse it (406, 415 or 501).
+	 * Either way, the missing result is then converted on its own, and later
+	 * conversions go straight to converting each separately; so does one 
+	 * whose response lacks either part.  The document is kept (copied to 
+	 * the spool directory, if need be) until both results are in.
+	 *
+	 * @param request to convert; its toFormat must be PDF, and it mustn't
+	 * have a page range
+	 * @param toc to write the TOC to; it isn't closed
+	 * @throws IOException
+	 * @throws ConversionException
+	 */
+	public void convertWithToc(ConversionRequest request, OutputStream toc) throws IOException, ConversionException {
+
+		checkParameters(request);
+		if (!Format.PDF.equals(request.getToFormat()) || request.hasPageRange()) {
+			throw new ConversionException("A TOC can only be had with the whole document converted to PDF");
+		}
+
+		String what = request.getInputType();
+		RequestBody body;
+		try {
+			body = request.toRequestBody().repeatable(getSpoolDirectory());
+		} catch (IOException e) {
 			e.printStackTrace();
-			throw new ConversionException("Problem converting File", e);
+			throw new ConversionException("Problem converting " + what, e);
+		}
 
+		OutputStream pdf = request.getOutputStream();
+		try {
+			boolean pdfDone = false;
+			boolean tocDone = false;
+			if (!combinedUnsupported) {
+				MultipartDemultiplexer parts = new MultipartDemultiplexer(pdf);
+				parts.addPart(PDF_CONTENT_TYPE, pdf);
+				parts.addPart(TOC_CONTENT_TYPE, toc);
+				try {
+					execute(body.retained(), request.getFromFormat(), Format.PDF, parts, what,
+							request.getProgressListener(), request.getCancellationSignal(), null,
+							PDF_CONTENT_TYPE + "," + TOC_CONTENT_TYPE);
+					parts.close();
+
+					if (parts.isMultipart()) {
+						pdfDone = parts.hasReceived(PDF_CONTENT_TYPE);
+						tocDone = parts.hasReceived(TOC_CONTENT_TYPE);
+					} else {
+						// it ignored the request, and sent just the PDF (which parts passed on)
+						Log.i(TAG, "endpoint sent no multipart response; getting the TOC separately from now on");
+						combinedUnsupported = true;
+						pdfDone = true;
+					}
+				} catch (ConversionException e) {
+					if (!isMultipartRefusal(e)) {
+						throw e;
+					}
+					Log.i(TAG, "endpoint refused a multipart response (" + e.getCause() 
+							+ "); getting the PDF and TOC separately from now on");
+					combinedUnsupported = true;
+				}
+			}
+
+			if (!pdfDone) {
+				execute(body.retained(), request.getFromFormat(), Format.PDF, pdf, what,
+						request.getProgressListener(), request.getCancellationSignal(), null, null);
+			}
+			if (!tocDone) {
+				execute(body.retained(), request.getFromFormat(), Format.TOC, toc, what,
+						request.getProgressListener(), request.getCancellationSignal(), null, null);
+			}
 		} finally {
+			body.release();
+		}
+	}
+
+	/**
+	 * Upload body and stream the result to os, retrying according to the RetryPolicy.
+	 *
+	 * @param what kind of input, for the exception message
+	 * @param listener to report progress to, or null
+	 * @param signal to cancel with, or null
+	 * @param pages the page range to convert, eg "1-3", or null for all of them
+	 * @param parts the media types of the results to ask for in a multipart 
+	 * response, eg "application/pdf,application/json", or null for just toFormat
+	 */
+	private void execute(RequestBody body, Format fromFormat, Format toFormat, OutputStream os, String what,
+			ProgressListener listener, CancellationSignal signal, String pages, String parts) throws ConversionException {
+
+		Conversion conversion = new Conversion(body, fromFormat, toFormat, os, what, listener,
+				signal==null ? new CancellationSignal() : signal, pages, parts);
+		try {
+			while (true) {
+				Exchange exchange = conversion.nextAttempt();
+				try {
+					transport.execute(exchange);
+					conversion.succeeded();
+					return;
+
+				} catch (Exception e) {
+
+					long delay = conversion.failed(e);
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw conversion.interrupted(e);
+					}
+				}
+			}
+		} finally {
+			conversion.release();
+		}
+	}
+
+	/**
+	 * The state of one conversion across its attempts, each of which goes to the 
+	 * best endpoint available (other than the last one tried, if there's a choice).
+	 * Every attempt carries the same Idempotency-Key, so an endpoint which saw an
+	 * earlier attempt can recognise the retry.
+	 *
+	 * If the download breaks off, and the endpoint said where the result can
+	 * be fetched again (with a Content-Location), and how to tell it's the same
+	 * result (an ETag, or a Content-Length), the next attempt fetches the rest
+	 * of it with a Range request, rather than converting the document again.
+	 */
+	private class Conversion {
+
+		private RequestBody body;
+		private final Format fromFormat;
+		private final Format toFormat;
+		private final SinkOutputStream sink;
+		private final CountingOutputStream counted;
+		private final String what;
+		private final CancellationSignal signal;
+		private final String pages;
+		private final String parts;
+
+		private final RetryPolicy policy = retryPolicy;
+		private final ProgressTracker tracker;
+		private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+		private int attempt = 0;
+		private Endpoint endpoint = null;
+		private Exchange exchange = null;
+
+		// where the result can be fetched again, once an endpoint has said
+		private String resultLocation = null;
+		private String resultETag = null;
+		private long resultLength = -1;
+
+		Conversion(RequestBody body, Format fromFormat, Format toFormat, OutputStream os, String what,
+				ProgressListener listener, CancellationSignal signal, String pages, String parts) throws ConversionException {
+
+			this.toFormat = toFormat;
+			this.sink = new SinkOutputStream(os);
+			this.counted = new CountingOutputStream(sink);
+			this.what = what;
+			this.signal = signal;
+			this.pages = pages;
+			this.parts = parts;
+			this.tracker = new ProgressTracker(listener);
+
+			headers.put(IDEMPOTENCY_KEY_HEADER, UUID.randomUUID().toString());
+			// the body is ours to release from here on, even if we reject it
+			boolean prepared = false;
+			try {
+				if (formatDetection) {
+					fromFormat = detectFormat(body, fromFormat, what);
+				}
+				if (docxSlimmer!=null && Format.DOCX.equals(fromFormat)) {
+					body = slim(body, what);
+				}
+				if (compression && isCompressible(fromFormat)) {
+					body = body.gzipped(getSpoolDirectory());
+					headers.put("Content-Encoding", "gzip");
+				} else if (policy.getMaxAttempts()>1) {
+					body = body.repeatable(getSpoolDirectory());
+				}
+				prepared = true;
+			} catch (IOException e) {
+
+				e.printStackTrace();
+				throw new ConversionException("Problem converting " + what, e);
+			} finally {
+				if (!prepared) {
+					body.release();
+				}
+			}
+			this.fromFormat = fromFormat;
+			if (compression) {
+				headers.put("Accept-Encoding", "gzip");
+			}
+			if (parts!=null) {
+				headers.put("Accept", MULTIPART_CONTENT_TYPE);
+			}
+			this.body = body;
+		}
+
+		/**
+		 * @return the exchange for the next attempt
+		 * @throws ConversionException if the conversion has been cancelled,
+		 * or there's no endpoint to send it to
+		 */
+		Exchange nextAttempt() throws ConversionException {
+
+			if (signal.isCanceled()) {
+				throw new ConversionCancelledException("Conversion of " + what + " cancelled");
+			}
+			if (canResume()) {
+				return resume();
+			}
+
+			endpoint = endpoints.acquire(endpoint);
+			if (endpoint==null) {
+				if (metrics!=null) {
+					metrics.recordFailure(fromFormat, toFormat);
+				}
+				throw new ConversionRejectedException("No endpoint available for " + what + ": " + endpoints);
+			}
+
+			attempt++;
+			tracker.start(body.length());
+			exchange = new Exchange(getUrlForFormat(endpoint.getUrl(), toFormat, pages, parts), Collections.unmodifiableMap(headers),
+					body, counted, tracker, signal);
+			return exchange;
+		}
+
+		/**
+		 * @return whether some of the result has been written, and the rest
+		 * can be fetched
+		 */
+		private boolean canResume() {
+			return counted.getCount()>0 && resultLocation!=null
+					&& (resultETag!=null || resultLength>=0);
+		}
+
+		/**
+		 * @return an exchange fetching the rest of the result, from the endpoint
+		 * which converted it (the only one which has it)
+		 */
+		private Exchange resume() throws ConversionException {
+
+			if (!endpoints.reacquire(endpoint)) {
+				if (metrics!=null) {
+					metrics.recordFailure(fromFormat, toFormat);
+				}
+				throw new ConversionRejectedException("Endpoint " + endpoint.getUrl()
+						+ " not available to resume the download of " + what);
+			}
+
+			long offset = counted.getCount();
+			Map<String, String> rangeHeaders = new LinkedHashMap<String, String>();
+			rangeHeaders.put("Range", "bytes=" + offset + "-");
+			if (resultETag!=null && !resultETag.startsWith("W/")) {
+				// if it has changed, we get all of the new one, and give up
+				rangeHeaders.put("If-Range", resultETag);
+			}
+			// the range is of the result itself, not of it gzip'd
+			rangeHeaders.put("Accept-Encoding", "identity");
+
+			attempt++;
+			tracker.start(0);
+			exchange = new Exchange(resultLocation, Collections.unmodifiableMap(rangeHeaders),
+					counted, tracker, signal, offset, resultETag, resultLength);
+			return exchange;
+		}
+
+		void succeeded() {
+
+			// not the whole attempt, which grows with the document; one large
+			// document would make a healthy endpoint look slow
+			endpoints.succeeded(endpoint, tracker.serverMillis());
+			tracker.phase(ProgressListener.Phase.DONE);
 
-			if(connection != null) {
-				connection.disconnect();
+			ConversionTimings timings = tracker.timings(fromFormat, toFormat);
+			Log.d(TAG, timings.toString());
+			if (metrics!=null) {
+				metrics.record(timings);
 			}
 		}
 
+		/**
+		 * Record the failure of the current attempt.
+		 *
+		 * @return how long to wait before the next attempt
+		 * @throws ConversionException if there isn't to be one
+		 */
+		long failed(Exception e) throws ConversionException {
+
+			if (exchange!=null && exchange.getResultLocation()!=null) {
+				resultLocation = exchange.getResultLocation();
+				resultETag = exchange.getResultETag();
+				resultLength = exchange.getResultLength();
+			}
+			// the download broke off, rather than the endpoint failing, so don't hold
+			// it against the endpoint, which is the only one that can resume it
+			boolean resumable = canResume()
+					&& !(e instanceof HttpStatusException) && !(e instanceof ResultChangedException);
+			// the caller's OutputStream failed, not the endpoint or the network
+			boolean sinkFailed = sink.failure!=null;
+
+			boolean cancelled = signal.isCanceled();
+			if (e instanceof IOException && isEndpointFailure((IOException) e) && !cancelled && !resumable && !sinkFailed) {
+				endpoints.failed(endpoint);
+			} else {
+				endpoints.finished(endpoint);
+			}
+
+			if (cancelled) {
+				// the failure is most likely the abort
+				throw new ConversionCancelledException("Conversion of " + what + " cancelled", e);
+			}
+
+			// Once the caller has some of the result, we can't start again, only resume
+			if (attempt>=policy.getMaxAttempts() || (counted.getCount()>0 && !resumable)
+					|| sinkFailed || !isRetryable(e, policy)) {
+
+				if (metrics!=null) {
+					metrics.recordFailure(fromFormat, toFormat);
+				}
+				e.printStackTrace();
+				throw new ConversionException("Problem converting " + what, e);
+			}
+
+			long retryAfter = (e instanceof HttpStatusException) ?
+					((HttpStatusException) e).getRetryAfterMillis() : -1;
+			long delay = policy.getDelayMillis(attempt, retryAfter);
+			if (resumable) {
+				Log.w(TAG, "attempt " + attempt + " (" + endpoint.getUrl() + ") failed: " + e
+						+ "; resuming the download at byte " + counted.getCount() + " in " + delay + "ms");
+			} else {
+				Log.w(TAG, "attempt " + attempt + " (" + endpoint.getUrl() + ") failed: " + e + "; retrying in " + delay + "ms");
+			}
+			return delay;
+		}
+
+		ConversionException interrupted(Exception e) {
+
+			if (metrics!=null) {
+				metrics.recordFailure(fromFormat, toFormat);
+			}
+			return new ConversionException("Interrupted converting " + what, e);
+		}
+
+		void release() {
+			body.release();
+		}
 	}
 
-	private String getUrlForFormat(Format toFormat) {
+	/**
+	 * @return body slimmed by docxSlimmer, or body itself if that didn't help
+	 */
+	private RequestBody slim(RequestBody body, String what) throws IOException {
 
-        if (Format.TOC.equals(toFormat)) {
-        	//httppost = new HttpPost(URL+"/?bookmarks");
-//        	System.out.println(URL+"?format=application/json");
-        	return (endpointURL+"?format=application/json");
+		long before = body.length();
+		RequestBody slimmed;
+		try {
+			slimmed = body.slimmed(docxSlimmer, getSpoolDirectory());
+		} catch (ZipException e) {
+			if (!body.isRepeatable()) {
+				throw e;
+			}
+			Log.w(TAG, "couldn't slim " + what + " (" + e + "); uploading it as it is");
+			return body;
+		}
+		if (slimmed!=body) {
+			Log.d(TAG, what + " slimmed from " + before + " to " + slimmed.length() + " bytes");
+		}
+		return slimmed;
+	}
 
-        } else if (Format.DOCX.equals(toFormat)) {
+	/**
+	 * @return the format body actually is, whatever it was declared as
+	 * @throws ConversionException if it is neither DOCX nor DOC
+	 */
+	private static Format detectFormat(RequestBody body, Format declared, String what) throws ConversionException {
 
-        	return (endpointURL+"?application/vnd.openxmlformats-officedocument.wordprocessingml.document");
+		Format detected;
+		try {
+			detected = FormatDetector.detect(body);
+		} catch (IOException e) {
+			throw new ConversionException("Problem reading " + what, e);
+		}
 
-        } else {
-        	return (endpointURL);
-        }
+		if (detected==null) {
+			throw new ConversionException(what + " is not a DOCX or DOC document, so was not uploaded");
+		}
+		if (detected!=declared) {
+			Log.w(TAG, what + " declared as " + declared + " is " + detected + "; converting it as that");
+		}
+		return detected;
+	}
+
+	/**
+	 * Drives a Conversion through Transport.executeAsync, completing result.
+	 */
+	private class AsyncConversion {
 
+		private final Conversion conversion;
+		private final SettableFuture<Void> result;
+
+		AsyncConversion(Conversion conversion, SettableFuture<Void> result) {
+			this.conversion = conversion;
+			this.result = result;
+		}
+
+		void attempt() {
+
+			Exchange exchange;
+			try {
+				exchange = conversion.nextAttempt();
+			} catch (ConversionException e) {
+				finish(e);
+				return;
+			}
+
+			final ListenableFuture<Void> attempt = transport.executeAsync(exchange);
+			attempt.addListener(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Futures.getDone(attempt);
+						conversion.succeeded();
+						finish(null);
+
+					} catch (ExecutionException e) {
+						retry(e.getCause());
+					} catch (CancellationException e) {
+						retry(e);
+					} catch (Throwable t) {
+						finish(t);
+					}
+				}
+			}, MoreExecutors.directExecutor());
+		}
+
+		private void retry(Throwable t) {
+
+			if (!(t instanceof Exception)) {
+				finish(t);
+				return;
+			}
+
+			long delay;
+			try {
+				delay = conversion.failed((Exception) t);
+			} catch (ConversionException e) {
+				finish(e);
+				return;
+			}
+
+			// the next attempt resolves the endpoint's host name, so not on the scheduler
+			ConversionExecutor.getScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						getExecutor().execute(new Runnable() {
+							@Override
+							public void run() {
+								attempt();
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						finish(e);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		private void finish(Throwable t) {
+
+			conversion.release();
+			if (t==null) {
+				result.set(null);
+			} else {
+				result.setException(t);
+			}
+		}
+	}
+
+	/**
+	 * The caller's OutputStream, noting whether writing to it failed, so
+	 * that failure isn't taken for the transport's, and retried.
+	 */
+	private static class SinkOutputStream extends FilterOutputStream {
+
+		volatile IOException failure = null;
+
+		SinkOutputStream(OutputStream os) {
+			super(os);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+		}
+	}
+
+	private static boolean isRetryable(Exception e, RetryPolicy policy) {
+
+		if (e instanceof HttpStatusException) {
+			return policy.isRetryableStatus(((HttpStatusException) e).getStatus());
+		}
+		// missing input, or bad endpoint URL: won't get better
+		return e instanceof IOException
+				&& !(e instanceof FileNotFoundException)
+				&& !(e instanceof MalformedURLException);
+	}
+
+	/**
+	 * Whether a conversion failed because the endpoint won't send a multipart
+	 * response, rather than because of the document.
+	 */
+	private static boolean isMultipartRefusal(ConversionException e) {
+
+		if (!(e.getCause() instanceof HttpStatusException)) {
+			return false;
+		}
+		int status = ((HttpStatusException) e.getCause()).getStatus();
+		return status==406 || status==415 || status==501;
+	}
+
+	/**
+	 * Whether a failed attempt reflects on the endpoint, rather than on the request.
+	 */
+	private static boolean isEndpointFailure(IOException e) {
+
+		if (e instanceof HttpStatusException) {
+			int status = ((HttpStatusException) e).getStatus();
+			return status>=500 || status==408 || status==429;
+		}
+		// our input file went missing
+		return !(e instanceof FileNotFoundException);
+	}
+
+	/**
+	 * Query parameter asking the endpoint for only some pages of the PDF,
+	 * eg pages=1-3.
+	 */
+	static final String PAGES_PARAMETER = "pages";
+
+	/**
+	 * Query parameter asking the endpoint for several results of one upload,
+	 * as the parts of a multipart response, eg parts=application/pdf,application/json.
+	 */
+	static final String PARTS_PARAMETER = "parts";
+
+	static final String PDF_CONTENT_TYPE = "application/pdf";
+	static final String TOC_CONTENT_TYPE = "application/json";
+	static final String MULTIPART_CONTENT_TYPE = "multipart/mixed";
+
+	private static String getUrlForFormat(String endpointURL, Format toFormat, String pages, String parts) {
+
+		String url = getUrlForFormat(endpointURL, toFormat);
+		url = withParameter(url, PAGES_PARAMETER, pages);
+		return withParameter(url, PARTS_PARAMETER, parts);
+	}
+
+	/**
+	 * @return url with name=value added to its query, unless value is null
+	 */
+	private static String withParameter(String url, String name, String value) {
+
+		if (value==null) {
+			return url;
+		}
+		return url + (url.indexOf('?')<0 ? '?' : '&') + name + "=" + value;
+	}
+
+	private static String getUrlForFormat(String endpointURL, Format toFormat) {
+
+		if (Format.TOC.equals(toFormat)) {
+			return endpointURL + "?format=application/json";
+		} else if (Format.DOCX.equals(toFormat)) {
+			return endpointURL + "?application/vnd.openxmlformats-officedocument.wordprocessingml.document";
+		} else {
+			return endpointURL;
+		}
+	}
+
+	/**
+	 * DOCX is already a zip file, so gzip wouldn't shrink it.
+	 */
+	private static boolean isCompressible(Format fromFormat) {
+		return Format.DOC.equals(fromFormat);
 	}
 
 
@@ -145,8 +1022,8 @@ public class ConverterHttp implements Converter {
 	 *
 	 * toFormat supported: PDF
 	 *
-	 * Note this uses a non-repeatable request entity, so it may not be suitable
-	 * (depending on the endpoint config).
+	 * Note the stream can only be read once, so if the RetryPolicy allows
+	 * retries, it is first copied to a file in the spool directory.
 	 *
 	 * @param instream
 	 * @param fromFormat
@@ -159,43 +1036,7 @@ public class ConverterHttp implements Converter {
 
 		checkParameters(fromFormat, toFormat);
 
-		URL url;
-		HttpURLConnection connection = null;
-		try {
-			//Create connection
-			url = new URL(getUrlForFormat(toFormat));
-			connection = (HttpURLConnection)url.openConnection();
-			connection.setRequestMethod("POST");
-
-			connection.setUseCaches (false);
-			connection.setDoInput(true);
-			connection.setDoOutput(true);
-
-			connection.setChunkedStreamingMode(0); // default size
-			ByteStreams.copy(instream, connection.getOutputStream());
-			/* Avoid using BufferedOutputStream here, as in:
-				ByteStreams.copy(instream,
-						new BufferedOutputStream(connection.getOutputStream()));
-			*/
-
-//			byte[] bytes = ByteStreams.toByteArray(instream);
-//			connection.getOutputStream().write(bytes);
-
-			//Get Response
-			InputStream is = new BufferedInputStream(connection.getInputStream());
-			ByteStreams.copy(is, os);
-
-		} catch (Exception e) {
-
-			e.printStackTrace();
-			throw new ConversionException("Problem converting InputStream", e);
-
-		} finally {
-
-			if(connection != null) {
-				connection.disconnect();
-			}
-		}
+		execute(RequestBody.of(instream), fromFormat, toFormat, os, "InputStream", null, null, null, null);
 	}
 
 	/**
@@ -216,42 +1057,55 @@ public class ConverterHttp implements Converter {
 
 		checkParameters(fromFormat, toFormat);
 
-		URL url;
-		HttpURLConnection connection = null;
-		try {
-			//Create connection
-			url = new URL(getUrlForFormat(toFormat));
-			connection = (HttpURLConnection)url.openConnection();
-			connection.setRequestMethod("POST");
-
-			connection.setFixedLengthStreamingMode(bytesIn.length);
-
-			connection.setUseCaches (false);
-			connection.setDoInput(true);
-			connection.setDoOutput(true);
-
-			// If you need to monitor upload progress,
-			// see https://stackoverflow.com/questions/18100096/is-there-any-way-to-get-upload-progress-correctly-with-httpurlconncetion
-
-			connection.getOutputStream().write(bytesIn);;
-
-			//Get Response
-			InputStream is = new BufferedInputStream(connection.getInputStream());
-			ByteStreams.copy(is, os);
+		execute(RequestBody.of(bytesIn), fromFormat, toFormat, os, "byte[]", null, null, null, null);
+	}
 
-		} catch (Exception e) {
+	/**
+	 * Convert the remaining bytes of a ByteBuffer fromFormat to toFormat, streaming result to OutputStream os.
+	 * The buffer's position is not changed.
+	 *
+	 * fromFormat supported: DOC, DOCX
+	 *
+	 * toFormat supported: PDF
+	 *
+	 * @param bufferIn
+	 * @param fromFormat
+	 * @param toFormat
+	 * @param os
+	 * @throws IOException
+	 * @throws ConversionException
+	 */
+	public void convert(ByteBuffer bufferIn, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException {
 
-			e.printStackTrace();
-			throw new ConversionException("Problem converting byte[]", e);
+		checkParameters(fromFormat, toFormat);
 
-		} finally {
+		execute(RequestBody.of(bufferIn), fromFormat, toFormat, os, "ByteBuffer", null, null, null, null);
+	}
 
-			if(connection != null) {
-				connection.disconnect();
-			}
-		}
+	/**
+	 * Convert the contents of a ReadableByteChannel fromFormat to toFormat, streaming result to OutputStream os.
+	 *
+	 * fromFormat supported: DOC, DOCX
+	 *
+	 * toFormat supported: PDF
+	 *
+	 * Unless the channel is a FileChannel (which is rewound to its starting
+	 * position), it can only be read once, so if the RetryPolicy allows
+	 * retries, it is first copied to a file in the spool directory.
+	 *
+	 * @param channelIn
+	 * @param length the number of bytes to read from the channel, or -1 to read to the end
+	 * @param fromFormat
+	 * @param toFormat
+	 * @param os
+	 * @throws IOException
+	 * @throws ConversionException
+	 */
+	public void convert(ReadableByteChannel channelIn, long length, Format fromFormat, Format toFormat, OutputStream os) throws IOException, ConversionException {
 
+		checkParameters(fromFormat, toFormat);
 
+		execute(RequestBody.of(channelIn, length), fromFormat, toFormat, os, "ReadableByteChannel", null, null, null, null);
 	}
 
 
@@ -266,9 +1120,26 @@ public class ConverterHttp implements Converter {
 //		return null;
 //	}
 
+	private void checkParameters(ConversionRequest request) throws ConversionException {
+
+		checkParameters(request.getFromFormat(), request.getToFormat());
+
+		if (request.hasPageRange() && !Format.PDF.equals(request.getToFormat())) {
+			throw new ConversionException("A page range can only be converted to PDF, not " + request.getToFormat());
+		}
+	}
+
+	/**
+	 * @return the request's page range as the endpoint expects it, eg "1-3",
+	 * or null for the whole document
+	 */
+	private static String getPages(ConversionRequest request) {
+		return request.hasPageRange() ? request.getFirstPage() + "-" + request.getLastPage() : null;
+	}
+
 	private void checkParameters(Format fromFormat, Format toFormat) throws ConversionException {
 
-		if (endpointURL==null) {
+		if (endpoints.isEmpty()) {
 			throw new ConversionException("Endpoint URL not configured.");
 		}
 
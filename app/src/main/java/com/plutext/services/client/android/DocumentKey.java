@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Identifies the conversion a ConversionRequest asks for, by a SHA-256 hash
+ * of the document's bytes plus the fromFormat and toFormat (and page range,
+ * if only some pages are wanted).
+ *
+ * An InputStream (or a ReadableByteChannel of unknown length, other than
+ * a FileChannel) can only be read once, so it is spooled to a temporary
+ * file while it is hashed, and the conversion is then performed from that
+ * copy.  release() deletes it.  A FileChannel (of known length) is hashed
+ * with positional reads, which don't move it, and uploaded as it is.
+ *
+ * The request handed on by requestFor carries its key, so a converter
+ * further down (a CachingConverter behind a CoalescingConverter, say) 
+ * doesn't hash the document again.
+ */
+final class DocumentKey {
+
+	private final ConversionRequest request;
+	private final String key;
+	private final File spool;
+
+	private DocumentKey(ConversionRequest request, String key, File spool) {
+		this.request = request;
+		this.key = key;
+		this.spool = spool;
+	}
+
+	/**
+	 * @param spoolDir where to copy a document which can only be read once
+	 */
+	static DocumentKey of(ConversionRequest request, File spoolDir) throws IOException {
+
+		if (request.getDocumentKey()!=null) {
+			return new DocumentKey(request, request.getDocumentKey(), null);
+		}
+
+		String fromFormat = request.getFromFormat().name().toLowerCase();
+		String toFormat = request.getToFormat().name().toLowerCase();
+		if (request.hasPageRange()) {
+			toFormat += "-p" + request.getFirstPage() + "-" + request.getLastPage();
+		}
+
+		if (request.getFile()!=null) {
+			return new DocumentKey(request,
+					key(Files.asByteSource(request.getFile()).hash(Hashing.sha256()), fromFormat, toFormat), null);
+		}
+		if (request.getBytes()!=null) {
+			return new DocumentKey(request,
+					key(Hashing.sha256().hashBytes(request.getBytes()), fromFormat, toFormat), null);
+		}
+		if (request.getByteBuffer()!=null) {
+			return new DocumentKey(request,
+					key(hash(request.getByteBuffer()), fromFormat, toFormat), null);
+		}
+
+		if (request.getChannel() instanceof FileChannel && request.getChannelLength()>=0) {
+			return new DocumentKey(request,
+					key(hash((FileChannel) request.getChannel(), request.getChannelLength()), fromFormat, toFormat), null);
+		}
+
+		InputStream instream = request.getInputStream();
+		if (instream==null) {
+			instream = Channels.newInputStream(request.getChannel());
+			if (request.getChannelLength()>=0) {
+				instream = ByteStreams.limit(instream, request.getChannelLength());
+			}
+		}
+
+		File spool = File.createTempFile("spool", FileSink.TMP_SUFFIX, spoolDir);
+		boolean ok = false;
+		try {
+			HashingInputStream his = new HashingInputStream(Hashing.sha256(), instream);
+			OutputStream spoolOut = new FileOutputStream(spool);
+			try {
+				ByteStreams.copy(his, spoolOut);
+			} finally {
+				spoolOut.close();
+			}
+			ok = true;
+			return new DocumentKey(request, key(his.hash(), fromFormat, toFormat), spool);
+		} finally {
+			if (!ok) {
+				spool.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return eg "9f86d0...0a08.docx-pdf", or "9f86d0...0a08.docx-pdf-p1-3"
+	 * for pages 1 to 3; usable as a file name
+	 */
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return a copy of the request, for the same document (the spooled copy,
+	 * if there is one), with its result going to os
+	 */
+	ConversionRequest requestFor(OutputStream os) {
+
+		ConversionRequest copy = spool==null ? request.withOutputStream(os) : request.withFile(spool, os);
+		copy.setDocumentKey(key);
+		return copy;
+	}
+
+	/**
+	 * Delete the spooled copy of the document, if there is one.
+	 */
+	void release() {
+		if (spool!=null) {
+			spool.delete();
+		}
+	}
+
+
+	/**
+	 * Hash the remaining bytes of buffer, without moving its position.
+	 */
+	private static HashCode hash(ByteBuffer buffer) {
+
+		if (buffer.hasArray()) {
+			return Hashing.sha256().hashBytes(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+
+		Hasher hasher = Hashing.sha256().newHasher();
+		ByteBuffer remaining = buffer.duplicate();
+		byte[] chunk = new byte[8192];
+		while (remaining.hasRemaining()) {
+			int n = Math.min(chunk.length, remaining.remaining());
+			remaining.get(chunk, 0, n);
+			hasher.putBytes(chunk, 0, n);
+		}
+		return hasher.hash();
+	}
+
+	/**
+	 * Hash length bytes of channel from its position, without moving it.
+	 */
+	private static HashCode hash(FileChannel channel, long length) throws IOException {
+
+		Hasher hasher = Hashing.sha256().newHasher();
+		ByteBuffer chunk = ByteBuffer.allocate(8192);
+		long position = channel.position();
+		long end = position + length;
+		while (position<end) {
+			chunk.clear();
+			chunk.limit((int) Math.min(chunk.capacity(), end - position));
+			int n = channel.read(chunk, position);
+			if (n<0) {
+				throw new EOFException("Channel ended " + (end - position) + " bytes short of its length");
+			}
+			hasher.putBytes(chunk.array(), 0, n);
+			position += n;
+		}
+		return hasher.hash();
+	}
+
+	private static String key(HashCode hash, String fromFormat, String toFormat) {
+		return hash.toString() + "." + fromFormat + "-" + toFormat;
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+
+}
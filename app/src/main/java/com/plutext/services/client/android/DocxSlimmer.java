@@ -0,0 +1,332 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+
+/**
+ * Makes a DOCX smaller before it is uploaded, by leaving out parts which
+ * don't affect how it renders: the package thumbnail, customXml parts,
+ * and (when the whole package can be read up front) media which nothing
+ * refers to.  Relationships and content type overrides for the parts left
+ * out are removed too.  Given an ImageResampler, images bigger than they 
+ * could need to be at targetDpi on the largest page expected are shrunk.
+ *
+ * The package is re-zipped entry by entry as it is read, so only one
+ * image (or one relationships part) is held in memory at a time.
+ *
+ * @see ConverterHttp#setDocxSlimmer(DocxSlimmer)
+ */
+public class DocxSlimmer {
+
+	/**
+	 * Default resolution images are reduced to.
+	 */
+	public static final int DEFAULT_TARGET_DPI = 150;
+
+	/**
+	 * The longer side of the largest page we expect (A4).
+	 */
+	private static final float MAX_PAGE_INCHES = 11.7f;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String CONTENT_TYPES = "[Content_Types].xml";
+
+	private static final Pattern RELATIONSHIP = Pattern.compile("<Relationship\\s[^>]*?(/>|>\\s*</Relationship>)");
+	private static final Pattern OVERRIDE = Pattern.compile("<Override\\s[^>]*?(/>|>\\s*</Override>)");
+	private static final Pattern TARGET = Pattern.compile("\\sTarget\\s*=\\s*\"([^\"]*)\"");
+	private static final Pattern PART_NAME = Pattern.compile("\\sPartName\\s*=\\s*\"([^\"]*)\"");
+	private static final Pattern EXTERNAL = Pattern.compile("\\sTargetMode\\s*=\\s*\"External\"");
+
+	private final ImageResampler resampler;
+	private final int targetDpi;
+
+
+	/**
+	 * Leave out parts, but don't touch images.
+	 */
+	public DocxSlimmer() {
+		this(null, DEFAULT_TARGET_DPI);
+	}
+
+	/**
+	 * @param resampler to shrink images with, or null to leave them alone
+	 * @param targetDpi
+	 */
+	public DocxSlimmer(ImageResampler resampler, int targetDpi) {
+
+		if (targetDpi<1) {
+			throw new IllegalArgumentException("targetDpi must be at least 1, was " + targetDpi);
+		}
+		this.resampler = resampler;
+		this.targetDpi = targetDpi;
+	}
+
+	/**
+	 * Write a slimmed copy of the DOCX f to out (which isn't closed).
+	 * Having the whole package, this can leave out media nothing refers to.
+	 */
+	public void slim(File f, OutputStream out) throws IOException {
+
+		Set<String> referenced = referencedParts(f);
+		InputStream in = new FileInputStream(f);
+		try {
+			slim(in, out, referenced);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write a slimmed copy of the DOCX read from in to out (neither is closed).
+	 * Unused media are kept, since what refers to what can't be known until 
+	 * the end of the stream.
+	 */
+	public void slim(InputStream in, OutputStream out) throws IOException {
+		slim(in, out, null);
+	}
+
+	/**
+	 * @param referenced the names of all parts which relationships refer to,
+	 * or null if not known
+	 */
+	private void slim(InputStream in, OutputStream out, Set<String> referenced) throws IOException {
+
+		ZipInputStream zin = new ZipInputStream(new BufferedInputStream(in));
+		ZipOutputStream zout = new ZipOutputStream(out);
+		int maxPixels = Math.round(targetDpi * MAX_PAGE_INCHES);
+
+		ZipEntry entry;
+		while ((entry = zin.getNextEntry())!=null) {
+
+			String name = entry.getName();
+			if (isLeftOut(name, referenced)) {
+				continue;
+			}
+
+			if (name.endsWith(".rels")) {
+				String xml = new String(ByteStreams.toByteArray(zin), UTF8);
+				write(zout, name, filterRelationships(name, xml, referenced).getBytes(UTF8), false);
+
+			} else if (name.equals(CONTENT_TYPES)) {
+				String xml = new String(ByteStreams.toByteArray(zin), UTF8);
+				write(zout, name, filterContentTypes(xml, referenced).getBytes(UTF8), false);
+
+			} else if (resampler!=null && isMedia(name)) {
+				byte[] image = ByteStreams.toByteArray(zin);
+				ByteArrayOutputStream smaller = new ByteArrayOutputStream();
+				if (resampler.resample(name, image, maxPixels, smaller) && smaller.size()<image.length) {
+					image = smaller.toByteArray();
+				}
+				// JPEG and PNG are compressed already
+				write(zout, name, image, true);
+
+			} else {
+				zout.putNextEntry(new ZipEntry(name));
+				ByteStreams.copy(zin, zout);
+				zout.closeEntry();
+			}
+		}
+		zout.finish();
+	}
+
+	private static void write(ZipOutputStream zout, String name, byte[] data, boolean stored) throws IOException {
+
+		ZipEntry entry = new ZipEntry(name);
+		if (stored) {
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(data.length);
+			entry.setCompressedSize(data.length);
+			entry.setCrc(crc.getValue());
+		}
+		zout.putNextEntry(entry);
+		zout.write(data);
+		zout.closeEntry();
+	}
+
+	private static boolean isLeftOut(String name, Set<String> referenced) {
+
+		return name.startsWith("docProps/thumbnail.")
+				|| name.startsWith("customXml/")
+				|| (referenced!=null && isMedia(name) && !referenced.contains(name));
+	}
+
+	private static boolean isMedia(String name) {
+		return name.contains("/media/");
+	}
+
+	/**
+	 * @return xml, without the relationships to parts which are left out
+	 */
+	private static String filterRelationships(String relsName, String xml, Set<String> referenced) {
+
+		StringBuffer result = new StringBuffer(xml.length());
+		Matcher m = RELATIONSHIP.matcher(xml);
+		while (m.find()) {
+			String relationship = m.group();
+			Matcher target = TARGET.matcher(relationship);
+			boolean leftOut = target.find() && !EXTERNAL.matcher(relationship).find()
+					&& isLeftOut(resolve(relsName, target.group(1)), referenced);
+			m.appendReplacement(result, leftOut ? "" : Matcher.quoteReplacement(relationship));
+		}
+		m.appendTail(result);
+		return result.toString();
+	}
+
+	/**
+	 * @return xml, without the overrides for parts which are left out
+	 */
+	private static String filterContentTypes(String xml, Set<String> referenced) {
+
+		StringBuffer result = new StringBuffer(xml.length());
+		Matcher m = OVERRIDE.matcher(xml);
+		while (m.find()) {
+			String override = m.group();
+			Matcher partName = PART_NAME.matcher(override);
+			boolean leftOut = partName.find() && isLeftOut(resolve("_rels/.rels", partName.group(1)), referenced);
+			m.appendReplacement(result, leftOut ? "" : Matcher.quoteReplacement(override));
+		}
+		m.appendTail(result);
+		return result.toString();
+	}
+
+	/**
+	 * @return the names of the parts the relationships in f refer to
+	 */
+	private static Set<String> referencedParts(File f) throws IOException {
+
+		Set<String> referenced = new HashSet<String>();
+		ZipFile zip = new ZipFile(f);
+		try {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (!entry.getName().endsWith(".rels")) {
+					continue;
+				}
+
+				InputStream is = zip.getInputStream(entry);
+				String xml;
+				try {
+					xml = new String(ByteStreams.toByteArray(is), UTF8);
+				} finally {
+					is.close();
+				}
+
+				Matcher m = RELATIONSHIP.matcher(xml);
+				while (m.find()) {
+					Matcher target = TARGET.matcher(m.group());
+					if (target.find() && !EXTERNAL.matcher(m.group()).find()) {
+						referenced.add(resolve(entry.getName(), target.group(1)));
+						// in case the target wasn't %-encoded as it should be
+						referenced.add(normalise(base(entry.getName()) + target.group(1)));
+					}
+				}
+			}
+		} finally {
+			zip.close();
+		}
+		return referenced;
+	}
+
+	/**
+	 * @param relsName the relationships part the target is in, such as word/_rels/document.xml.rels
+	 * @param target a relationship's Target, such as media/image1.png or /customXml/item1.xml
+	 * @return the name of the part target refers to, such as word/media/image1.png
+	 */
+	static String resolve(String relsName, String target) {
+
+		String path = target;
+		try {
+			path = new URI(target).getPath(); // decodes %20 and the like
+		} catch (URISyntaxException e) {
+			// use it as it is
+		}
+		if (path==null) {
+			return target;
+		}
+		return normalise(path.startsWith("/") ? path : base(relsName) + path);
+	}
+
+	/**
+	 * @return the folder of the part which relsName holds the relationships of,
+	 * such as word/ for word/_rels/document.xml.rels
+	 */
+	private static String base(String relsName) {
+
+		int rels = relsName.lastIndexOf("_rels/");
+		return rels<0 ? "" : relsName.substring(0, rels);
+	}
+
+	/**
+	 * @return path without its leading /, and with . and .. segments resolved
+	 */
+	private static String normalise(String path) {
+
+		Deque<String> segments = new ArrayDeque<String>();
+		for (String segment : path.split("/")) {
+			if (segment.length()==0 || ".".equals(segment)) {
+				continue;
+			}
+			if ("..".equals(segment)) {
+				segments.pollLast();
+			} else {
+				segments.addLast(segment);
+			}
+		}
+
+		StringBuilder result = new StringBuilder();
+		for (String segment : segments) {
+			if (result.length()>0) {
+				result.append('/');
+			}
+			result.append(segment);
+		}
+		return result.toString();
+	}
+
+}
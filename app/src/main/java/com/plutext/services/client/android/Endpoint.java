@@ -0,0 +1,246 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+
+/**
+ * One converter endpoint, with what we've observed of it: conversions in
+ * flight, an exponentially weighted moving average of their latency
+ * (time to first byte, so mostly the time the endpoint takes to convert),
+ * a circuit breaker, and an adaptive limit on concurrent conversions.
+ *
+ * The circuit opens when at least half of the last WINDOW outcomes (and at
+ * least MIN_OUTCOMES of them) were failures, and stays open for a while,
+ * doubling each time it opens again without a success in between.  After
+ * that it is half open: a single conversion is let through as a probe,
+ * closing the circuit if it succeeds, and opening it again if not.
+ *
+ * There is no concurrency limit until the endpoint first fails, since 
+ * until then there's nothing to say it can't take more; the first failure
+ * sets it to DECREASE times what was in flight (at most MAX_LIMIT).  After
+ * that it is adjusted AIMD fashion: each success adds 1/limit (about one 
+ * per limit's worth of conversions), as long as the limit is being used;
+ * each failure multiplies it by DECREASE.  Once it grows past MAX_LIMIT, 
+ * the endpoint is unlimited again.
+ */
+final class Endpoint {
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Weight of the latest latency in the moving average
+	 */
+	private static final double ALPHA = 0.3;
+
+	static final int WINDOW = 20;
+	static final int MIN_OUTCOMES = 5;
+
+	static final double MIN_LIMIT = 1;
+	static final double MAX_LIMIT = 64;
+	static final double DECREASE = 0.75;
+
+	private final String url;
+
+	// guarded by this
+	private int inFlight = 0;
+	private double latencyMillis = -1; // not yet known
+	private double limit = MAX_LIMIT;
+	private boolean limited = false; // until the first failure
+
+	private State state = State.CLOSED;
+	private int openings = 0;
+	private long openUntilMillis = 0;
+
+	/**
+	 * The last WINDOW outcomes, true for a failure; a ring buffer
+	 */
+	private final boolean[] outcomes = new boolean[WINDOW];
+	private int outcomeCount = 0;
+	private int nextOutcome = 0;
+	private int failureCount = 0;
+
+	Endpoint(String url) {
+		this.url = url;
+	}
+
+	String getUrl() {
+		return url;
+	}
+
+	synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	synchronized double getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	/**
+	 * @return the concurrency limit, or -1 if there is none
+	 */
+	synchronized int getLimit() {
+		return limited ? (int) limit : -1;
+	}
+
+	synchronized State getState(long nowMillis) {
+		return state==State.OPEN && nowMillis>=openUntilMillis ? State.HALF_OPEN : state;
+	}
+
+	/**
+	 * Expected cost of sending this endpoint one more conversion: its average
+	 * latency, scaled by the conversions already queued on it.  An endpoint
+	 * whose latency isn't known yet scores as if it were fast, so it is tried.
+	 */
+	synchronized double score() {
+		return Math.max(latencyMillis, 1) * (inFlight + 1);
+	}
+
+	/**
+	 * Reserve a place for one more conversion, if the circuit and the
+	 * concurrency limit allow it.  A successful call must be followed by
+	 * exactly one of succeeded, failed or finished.
+	 */
+	synchronized boolean tryAcquire(long nowMillis) {
+
+		if (state==State.OPEN) {
+			if (nowMillis<openUntilMillis) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+		}
+
+		if (state==State.HALF_OPEN) {
+			if (inFlight>0) {
+				return false; // the probe is still out
+			}
+		} else if (limited && inFlight>=(int) limit) {
+			return false;
+		}
+
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * The conversion ended without telling us anything about the endpoint
+	 * (eg it was cancelled, or the request itself was bad).
+	 */
+	synchronized void finished() {
+		inFlight--;
+	}
+
+	/**
+	 * @param millis the conversion's time to first byte, or -1 if not known
+	 * (which leaves the average as it is)
+	 */
+	synchronized void succeeded(long millis) {
+
+		// grow only if the limit is what's holding us back
+		boolean constrained = limited && inFlight>=limit / 2;
+		inFlight--;
+
+		if (millis>=0) {
+			latencyMillis = latencyMillis<0 ? millis : ALPHA * millis + (1 - ALPHA) * latencyMillis;
+		}
+
+		if (state==State.HALF_OPEN) {
+			state = State.CLOSED;
+			openings = 0;
+			clearOutcomes();
+		} else {
+			record(false);
+		}
+
+		if (constrained) {
+			limit += 1 / limit;
+			if (limit>MAX_LIMIT) {
+				limited = false;
+				limit = MAX_LIMIT;
+			}
+		}
+	}
+
+	/**
+	 * @return whether this failure opened the circuit
+	 */
+	synchronized boolean failed(long nowMillis, long baseOpenMillis, long maxOpenMillis) {
+
+		if (!limited) {
+			// what it was taking when it failed
+			limit = Math.min(MAX_LIMIT, inFlight);
+			limited = true;
+		}
+		limit = Math.max(MIN_LIMIT, limit * DECREASE);
+		inFlight--;
+
+		if (state==State.CLOSED) {
+			record(true);
+			if (outcomeCount<MIN_OUTCOMES || failureCount * 2<outcomeCount) {
+				return false;
+			}
+		} else if (state==State.OPEN) {
+			return false; // a conversion from before it opened
+		}
+
+		// each further opening without a success in between lasts twice as long
+		state = State.OPEN;
+		openings++;
+		long open = baseOpenMillis << Math.min(openings - 1, 16);
+		openUntilMillis = nowMillis + Math.min(open, maxOpenMillis);
+		clearOutcomes();
+
+		// once half open, it is tried afresh rather than shunned for its old latency
+		latencyMillis = -1;
+		return true;
+	}
+
+	private void record(boolean failure) {
+
+		if (outcomeCount==WINDOW) {
+			if (outcomes[nextOutcome]) {
+				failureCount--;
+			}
+		} else {
+			outcomeCount++;
+		}
+		outcomes[nextOutcome] = failure;
+		if (failure) {
+			failureCount++;
+		}
+		nextOutcome = (nextOutcome + 1) % WINDOW;
+	}
+
+	private void clearOutcomes() {
+		outcomeCount = 0;
+		nextOutcome = 0;
+		failureCount = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return url + " [" + getState(System.currentTimeMillis()) + ", "
+				+ inFlight + (limited ? "/" + (int) limit : "") + " in flight, "
+				+ (latencyMillis<0 ? "latency unknown" : Math.round(latencyMillis) + "ms")
+				+ (outcomeCount>0 ? ", " + failureCount + "/" + outcomeCount + " failed" : "") + "]";
+	}
+
+}
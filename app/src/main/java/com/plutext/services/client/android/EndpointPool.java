@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * The endpoints a ConverterHttp spreads its conversions across.
+ *
+ * Each conversion goes to the endpoint with the lowest Endpoint.score(),
+ * ie the fewest conversions in flight, weighted by observed latency,
+ * among those whose circuit breaker and concurrency limit let it through
+ * (see Endpoint).  If none will, the conversion is rejected straight away,
+ * rather than queued behind endpoints which are failing or overloaded.
+ */
+final class EndpointPool {
+
+	private static final String TAG = EndpointPool.class.getSimpleName();
+
+	static final long BASE_OPEN_MILLIS = 10 * 1000;
+	static final long MAX_OPEN_MILLIS = 5 * 60 * 1000;
+
+	private final List<Endpoint> endpoints;
+
+	private final Random random = new Random();
+
+	EndpointPool(List<String> urls) {
+
+		List<Endpoint> list = new ArrayList<Endpoint>(urls.size());
+		for (String url : urls) {
+			if (url==null) {
+				throw new IllegalArgumentException("endpoint URL must not be null");
+			}
+			list.add(new Endpoint(url));
+		}
+		this.endpoints = Collections.unmodifiableList(list);
+	}
+
+	boolean isEmpty() {
+		return endpoints.isEmpty();
+	}
+
+	List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * Choose the endpoint for the next attempt, and reserve a place on it
+	 * (see Endpoint.tryAcquire).
+	 *
+	 * @param previous endpoint the last attempt used, which is avoided if there
+	 * is an alternative; or null
+	 * @return the endpoint, or null if every endpoint's circuit is open or at its limit
+	 */
+	Endpoint acquire(Endpoint previous) {
+
+		int n = endpoints.size();
+		long now = System.currentTimeMillis();
+
+		// scores change as we go, so take a snapshot to choose by
+		double[] scores = new double[n];
+		for (int i = 0; i < n; i++) {
+			Endpoint endpoint = endpoints.get(i);
+			scores[i] = endpoint==previous && n>1 ? Double.MAX_VALUE : endpoint.score();
+		}
+
+		// try them best first; start somewhere random, so ties are spread around
+		int offset = random.nextInt(n);
+		boolean[] tried = new boolean[n];
+		for (int round = 0; round < n; round++) {
+			int best = -1;
+			for (int j = 0; j < n; j++) {
+				int i = (offset + j) % n;
+				if (!tried[i] && (best<0 || scores[i]<scores[best])) {
+					best = i;
+				}
+			}
+			tried[best] = true;
+			if (endpoints.get(best).tryAcquire(now)) {
+				return endpoints.get(best);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reserve a place on endpoint in particular, for an attempt only it
+	 * can serve (see Endpoint.tryAcquire).
+	 *
+	 * @return whether it could be reserved
+	 */
+	boolean reacquire(Endpoint endpoint) {
+		return endpoint.tryAcquire(System.currentTimeMillis());
+	}
+
+	/**
+	 * @param millis the attempt's time to first byte, or -1 if not known
+	 */
+	void succeeded(Endpoint endpoint, long millis) {
+		endpoint.succeeded(millis);
+	}
+
+	void failed(Endpoint endpoint) {
+
+		if (endpoint.failed(System.currentTimeMillis(), BASE_OPEN_MILLIS, MAX_OPEN_MILLIS)) {
+			Log.w(TAG, "circuit opened: " + endpoint);
+		}
+	}
+
+	void finished(Endpoint endpoint) {
+		endpoint.finished();
+	}
+
+	@Override
+	public String toString() {
+		return endpoints.toString();
+	}
+
+}
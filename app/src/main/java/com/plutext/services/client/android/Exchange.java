@@ -0,0 +1,410 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.os.CancellationSignal;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * One attempt at a conversion, as an HTTP exchange for a Transport to carry out:
+ * a POST of the document to getUrl(), and the response streamed back.  Or,
+ * to resume a download which broke off, a ranged GET of the rest of the result
+ * (see getResultLocation()), which has no body.
+ *
+ * ConverterHttp creates these; a Transport uses them in this order:
+ * <ol>
+ * <li>send the request line (with getMethod()) and getHeaders(), then if 
+ * hasBody(), the body, either via writeBody, or by reading openBody(),
+ * framed with getContentLength() (or chunked, if that's -1)</li>
+ * <li>requestSent()</li>
+ * <li>responseHeaders(..), which returns where to write the response body</li>
+ * <li>responseComplete(), once the response body has all been written</li>
+ * </ol>
+ * 
+ * The Transport must abort the exchange if its CancellationSignal is cancelled,
+ * and may set the signal's OnCancelListener to do that, for the duration
+ * of the exchange.
+ */
+public final class Exchange {
+
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d{1,18})-(\\d{1,18})/(\\d{1,18}|\\*)");
+
+	private final String url;
+	private final Map<String, String> headers;
+	private final RequestBody body;
+	private final OutputStream os;
+	private final ProgressTracker tracker;
+	private final CancellationSignal signal;
+
+	// for a resumed download, where it resumes, and what the result should be
+	private final long resumeFrom;
+	private final String expectedETag;
+	private final long expectedLength;
+
+	private IOException failure = null;
+	private GunzipOutputStream gunzip = null;
+	private CountingOutputStream received = null;
+	private long bodyLength = -1;
+
+	private String resultLocation = null;
+	private String resultETag = null;
+	private long resultLength = -1;
+
+
+	/**
+	 * @param headers request headers, other than those framing the body
+	 * @param os where the result is to be written
+	 */
+	Exchange(String url, Map<String, String> headers, RequestBody body, OutputStream os,
+			ProgressTracker tracker, CancellationSignal signal) {
+		this(url, headers, body, os, tracker, signal, -1, null, -1);
+	}
+
+	/**
+	 * An exchange resuming the download of a result from resumeFrom.
+	 *
+	 * @param url the result's location
+	 * @param headers request headers, including the Range
+	 * @param os where the rest of the result is to be written
+	 * @param etag the result's ETag, or null if not known
+	 * @param length the result's length, or -1 if not known
+	 */
+	Exchange(String url, Map<String, String> headers, OutputStream os, ProgressTracker tracker,
+			CancellationSignal signal, long resumeFrom, String etag, long length) {
+		this(url, headers, null, os, tracker, signal, resumeFrom, etag, length);
+	}
+
+	private Exchange(String url, Map<String, String> headers, RequestBody body, OutputStream os,
+			ProgressTracker tracker, CancellationSignal signal, long resumeFrom, String etag, long length) {
+		this.url = url;
+		this.headers = headers;
+		this.body = body;
+		this.os = os;
+		this.tracker = tracker;
+		this.signal = signal;
+		this.resumeFrom = resumeFrom;
+		this.expectedETag = etag;
+		this.expectedLength = length;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return "POST", or "GET" to resume a download
+	 */
+	public String getMethod() {
+		return body==null ? "GET" : "POST";
+	}
+
+	/**
+	 * @return whether there is a request body to send
+	 */
+	public boolean hasBody() {
+		return body!=null;
+	}
+
+	/**
+	 * @return the request headers, other than Host, Content-Length
+	 * and Transfer-Encoding, which are the Transport's business
+	 */
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * @return the length of the request body (0 if there is none), or -1
+	 * if it isn't known, in which case it must be sent chunked
+	 */
+	public long getContentLength() {
+		return body==null ? 0 : body.length();
+	}
+
+	public CancellationSignal getCancellationSignal() {
+		return signal;
+	}
+
+	public boolean isCancelled() {
+		return signal.isCanceled();
+	}
+
+	/**
+	 * Write the request body to out (which isn't closed).
+	 */
+	public void writeBody(OutputStream out) throws IOException {
+
+		tracker.phase(ProgressListener.Phase.UPLOADING);
+		body.writeTo(tracker.trackUpload(out));
+	}
+
+	/**
+	 * @return a channel to read the request body from, which
+	 * the caller must close
+	 */
+	public ReadableByteChannel openBody() throws IOException {
+
+		tracker.phase(ProgressListener.Phase.UPLOADING);
+		return tracker.trackUpload(body.channel());
+	}
+
+	/**
+	 * The whole request has been sent; we're waiting for the response.
+	 */
+	public void requestSent() {
+		tracker.phase(ProgressListener.Phase.AWAITING_SERVER);
+	}
+
+	/**
+	 * The response has arrived (other than any 1xx interim response).
+	 *
+	 * @param status
+	 * @param message the reason phrase, or null
+	 * @param headers the response headers (keys needn't be in any particular case)
+	 * @return the stream to write the response body to, as received
+	 * (that is, still gzip'd if it was), which mustn't be closed
+	 */
+	public OutputStream responseHeaders(int status, String message, Map<String, List<String>> headers) {
+
+		if (status>=400) {
+			// read it anyway, so the connection can be reused
+			failure = new HttpStatusException(status, message,
+					parseRetryAfter(header(headers, "Retry-After")));
+			return ByteStreams.nullOutputStream();
+		}
+
+		long length = parseLength(header(headers, "Content-Length"));
+		resultETag = header(headers, "ETag");
+		String location = header(headers, "Content-Location");
+		if (location!=null) {
+			try {
+				resultLocation = new URL(new URL(url), location).toString();
+			} catch (MalformedURLException e) {
+				// so it can't be resumed
+			}
+		}
+
+		if (body==null) {
+			return resumed(status, length, header(headers, "Content-Range"));
+		}
+
+		tracker.downloading(length);
+		bodyLength = length;
+		OutputStream out = os;
+		resultLength = length;
+		if ("gzip".equalsIgnoreCase(header(headers, "Content-Encoding"))) {
+			// we asked for it (see ConverterHttp.setCompression), so have to decompress it ourselves
+			gunzip = new GunzipOutputStream(os);
+			out = gunzip;
+			// these are of the result gzip'd, so can't say whether a range of it is the same
+			resultETag = null;
+			resultLength = -1;
+		}
+		received = new CountingOutputStream(tracker.trackDownload(out));
+		return received;
+	}
+
+	/**
+	 * The whole response body has been written to the stream responseHeaders returned.
+	 *
+	 * @throws HttpStatusException if the response was an HTTP error
+	 * @throws IOException if the response was shorter than its Content-Length
+	 * (which HttpURLConnection doesn't always notice), or a gzip'd response
+	 * was incomplete or corrupt
+	 */
+	public void responseComplete() throws IOException {
+
+		if (received!=null && bodyLength>=0 && received.getCount()!=bodyLength) {
+			throw new IOException("Response from " + url + " ended after "
+					+ received.getCount() + " of " + bodyLength + " bytes");
+		}
+
+		if (gunzip!=null) {
+			gunzip.finish();
+		}
+		if (failure!=null) {
+			throw failure;
+		}
+	}
+
+
+	/**
+	 * @return where the result can be fetched again, from the Content-Location
+	 * of the response, or null if it didn't have one
+	 */
+	public String getResultLocation() {
+		return resultLocation;
+	}
+
+	/**
+	 * @return the result's ETag, or null if the response didn't have one
+	 */
+	public String getResultETag() {
+		return resultETag;
+	}
+
+	/**
+	 * @return the length of the whole result, or -1 if not known
+	 */
+	public long getResultLength() {
+		return resultLength;
+	}
+
+	/**
+	 * Check that the response to a ranged GET is the rest of the same result:
+	 * a 206 must start where we asked; a 200 (the endpoint ignored the Range)
+	 * has the part we have already, which is skipped.  Either way, the ETag
+	 * must match, or failing that, the length.
+	 *
+	 * @return the stream to write the response body to
+	 */
+	private OutputStream resumed(int status, long length, String contentRange) {
+
+		final long skip;
+		long total;
+		if (status==206) {
+			long[] range = parseContentRange(contentRange);
+			if (range==null || range[0]!=resumeFrom) {
+				return unusable("it resumed at " + contentRange + ", not byte " + resumeFrom);
+			}
+			skip = 0;
+			total = range[1];
+		} else {
+			skip = resumeFrom;
+			total = length;
+		}
+
+		if (expectedETag==null || !expectedETag.equals(resultETag)) {
+			if (expectedETag!=null && resultETag!=null) {
+				return unusable("its ETag changed from " + expectedETag + " to " + resultETag);
+			}
+			if (expectedLength<0 || total!=expectedLength) {
+				return unusable("its length was " + expectedLength + ", but is now " + total);
+			}
+		}
+		resultLength = total;
+
+		tracker.downloading(total);
+		tracker.received(resumeFrom);
+		bodyLength = length;
+		OutputStream out = os;
+		if (skip>0) {
+			out = new FilterOutputStream(os) {
+
+				private long toSkip = skip;
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+
+					int n = (int) Math.min(len, toSkip);
+					toSkip -= n;
+					if (len>n) {
+						out.write(b, off + n, len - n);
+					}
+				}
+
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] {(byte) b}, 0, 1);
+				}
+			};
+		}
+		received = new CountingOutputStream(tracker.trackDownload(out));
+		return received;
+	}
+
+	private OutputStream unusable(String why) {
+
+		failure = new ResultChangedException("Can't resume the download of " + url + ": " + why);
+		return ByteStreams.nullOutputStream();
+	}
+
+	/**
+	 * @return {first byte, whole length (or -1 if not known)} from a
+	 * Content-Range such as "bytes 500-999/1000", or null if it isn't one
+	 */
+	static long[] parseContentRange(String contentRange) {
+
+		if (contentRange==null) {
+			return null;
+		}
+		Matcher m = CONTENT_RANGE.matcher(contentRange.trim());
+		if (!m.matches()) {
+			return null;
+		}
+		return new long[] {Long.parseLong(m.group(1)), "*".equals(m.group(3)) ? -1 : Long.parseLong(m.group(3))};
+	}
+
+	/**
+	 * @return the first value of the named header, ignoring case, or null
+	 */
+	static String header(Map<String, List<String>> headers, String name) {
+
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			// HttpURLConnection puts the status line under a null key
+			if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+				return header.getValue().get(0);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the length given by a Content-Length header, or -1 if none
+	 */
+	static long parseLength(String contentLength) {
+
+		if (contentLength!=null) {
+			try {
+				return Long.parseLong(contentLength.trim());
+			} catch (NumberFormatException e) {
+				// ignore
+			}
+		}
+		return -1;
+	}
+
+	private static long parseRetryAfter(String retryAfter) {
+
+		if (retryAfter!=null) {
+			try {
+				return Long.parseLong(retryAfter.trim()) * 1000;
+			} catch (NumberFormatException e) {
+				// an HTTP-date; ignore it
+			}
+		}
+		return -1;
+	}
+
+}
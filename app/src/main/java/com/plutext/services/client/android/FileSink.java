@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * OutputStream which writes a conversion result straight to a file,
+ * so the result never has to be held on the heap.
+ *
+ * Bytes go to a temporary file alongside the target, which replaces
+ * the target only when commit() is called; closing the sink without
+ * committing deletes the temporary file.  So a failed conversion
+ * never leaves a partial result at the target.
+ *
+ * <pre>
+ * FileSink sink = new FileSink(pdfFile);
+ * try {
+ *     converter.convert(docx, Format.DOCX, Format.PDF, sink);
+ *     sink.commit();
+ * } finally {
+ *     sink.close();
+ * }
+ * </pre>
+ */
+public class FileSink extends OutputStream {
+
+	static final String TMP_SUFFIX = ".tmp";
+
+	private final File target;
+	private final File tmp;
+	private final FileOutputStream fos;
+	private final FileChannel channel;
+
+	private long written = 0;
+	private boolean committed = false;
+	private boolean closed = false;
+
+
+	/**
+	 * @param target file to write the result to; its directory must exist
+	 * @throws IOException if the temporary file can't be created
+	 */
+	public FileSink(File target) throws IOException {
+
+		this.target = target;
+		this.tmp = File.createTempFile(target.getName(), TMP_SUFFIX, target.getAbsoluteFile().getParentFile());
+		this.fos = new FileOutputStream(tmp);
+		this.channel = fos.getChannel();
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return the file bytes are written to until commit()
+	 */
+	File getTemporaryFile() {
+		return tmp;
+	}
+
+	/**
+	 * @return number of bytes written so far
+	 */
+	public long getLength() {
+		return written;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		if (closed) {
+			throw new IOException("FileSink closed");
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		written += len;
+	}
+
+	/**
+	 * Close the temporary file and rename it to the target, replacing
+	 * any existing file there.
+	 *
+	 * @return the target file
+	 * @throws IOException if the rename fails
+	 */
+	public File commit() throws IOException {
+
+		if (committed) {
+			return target;
+		}
+		if (closed) {
+			throw new IOException("FileSink closed");
+		}
+
+		closed = true;
+		fos.close();
+		if (!tmp.renameTo(target)) {
+			tmp.delete();
+			throw new IOException("Couldn't rename " + tmp + " to " + target);
+		}
+		committed = true;
+		return target;
+	}
+
+	/**
+	 * Abandon the result, unless commit() has been called.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (committed) {
+			return;
+		}
+		if (!closed) {
+			closed = true;
+			fos.close();
+		}
+		tmp.delete();
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+
+/**
+ * Works out whether a document is DOCX or DOC from its first (and if 
+ * available, last) bytes, so that a mislabelled document is converted
+ * as what it is, and one which is neither is rejected without being uploaded.
+ *
+ * A DOCX is a ZIP file (starting with a local file header) containing a
+ * [Content_Types].xml part.  Word writes that part first, so its name is 
+ * normally in the head; otherwise it is looked for in the ZIP's central
+ * directory, at the end.  A DOC is an OLE2 compound file.
+ */
+public final class FormatDetector {
+
+	/**
+	 * How much of the start of a document detect wants.
+	 */
+	public static final int HEAD_SIZE = RequestBody.PEEK_SIZE;
+
+	/**
+	 * How much of the end of a document detect wants; enough for the 
+	 * central directory of a DOCX with several hundred parts.
+	 */
+	public static final int TAIL_SIZE = 64 * 1024;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final byte[] ZIP_LOCAL_HEADER = {'P', 'K', 3, 4};
+
+	private static final byte[] OLE2_HEADER = {
+			(byte)0xD0, (byte)0xCF, 0x11, (byte)0xE0, (byte)0xA1, (byte)0xB1, 0x1A, (byte)0xE1};
+
+	private static final byte[] CONTENT_TYPES = "[Content_Types].xml".getBytes(ASCII);
+
+
+	private FormatDetector() {
+	}
+
+	/**
+	 * @param head the first HEAD_SIZE bytes of the document (or all of it, if shorter)
+	 * @param tail the last TAIL_SIZE bytes of the document, or null if not available
+	 * (from a stream, say), in which case a ZIP file without [Content_Types].xml 
+	 * in its head is given the benefit of the doubt
+	 * @return Format.DOCX or Format.DOC, or null if the document is neither
+	 */
+	public static Format detect(byte[] head, byte[] tail) {
+
+		if (startsWith(head, OLE2_HEADER)) {
+			return Format.DOC;
+		}
+		if (startsWith(head, ZIP_LOCAL_HEADER)) {
+			if (contains(head, CONTENT_TYPES)
+					|| tail==null || contains(tail, CONTENT_TYPES)) {
+				return Format.DOCX;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return Format.DOCX or Format.DOC, or null if f is neither
+	 */
+	public static Format detect(File f) throws IOException {
+		return detect(RequestBody.of(f));
+	}
+
+	static Format detect(RequestBody body) throws IOException {
+		return detect(body.peek(HEAD_SIZE), body.tail(TAIL_SIZE));
+	}
+
+	private static boolean startsWith(byte[] b, byte[] prefix) {
+
+		if (b.length<prefix.length) {
+			return false;
+		}
+		for (int i = 0; i<prefix.length; i++) {
+			if (b[i]!=prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean contains(byte[] b, byte[] part) {
+
+		for (int i = 0; i<=b.length - part.length; i++) {
+			int j = 0;
+			while (j<part.length && b[i + j]==part[j]) {
+				j++;
+			}
+			if (j==part.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
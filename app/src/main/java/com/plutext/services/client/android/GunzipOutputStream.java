@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+
+/**
+ * Decompresses gzip'd bytes written to it, writing the result to out.
+ * This is GZIPInputStream turned inside out, for a Transport which 
+ * pushes the response body to us as it arrives, rather than letting us 
+ * pull it.  Only a single gzip member is expected.
+ */
+class GunzipOutputStream extends FilterOutputStream {
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private static final int TRAILER_SIZE = 8;
+
+	private enum State {
+		HEADER, BODY, TRAILER, DONE
+	}
+
+	private State state = State.HEADER;
+
+	private final Inflater inflater = new Inflater(true);
+	private final CRC32 crc = new CRC32();
+	private final byte[] buffer = new byte[8192];
+
+	/**
+	 * the header or trailer, so far
+	 */
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+
+	GunzipOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		while (len>0) {
+			switch (state) {
+				case HEADER:
+					pending.write(b[off++]);
+					len--;
+					if (headerLength(pending.toByteArray())==pending.size()) {
+						pending.reset();
+						state = State.BODY;
+					}
+					break;
+
+				case BODY:
+					inflater.setInput(b, off, len);
+					inflate();
+					if (inflater.finished()) {
+						int remaining = inflater.getRemaining();
+						off += len - remaining;
+						len = remaining;
+						state = State.TRAILER;
+					} else {
+						len = 0;
+					}
+					break;
+
+				case TRAILER:
+					int n = Math.min(len, TRAILER_SIZE - pending.size());
+					pending.write(b, off, n);
+					off += n;
+					len -= n;
+					if (pending.size()==TRAILER_SIZE) {
+						checkTrailer(pending.toByteArray());
+						state = State.DONE;
+					}
+					break;
+
+				case DONE:
+					// trailing garbage, as GZIPInputStream would ignore
+					return;
+			}
+		}
+	}
+
+	private void inflate() throws IOException {
+
+		try {
+			int n;
+			while ((n = inflater.inflate(buffer))>0) {
+				crc.update(buffer, 0, n);
+				out.write(buffer, 0, n);
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the length of the gzip header h starts with, or -1 if h is
+	 * too short to tell
+	 * @throws ZipException if h isn't a gzip header
+	 */
+	private static int headerLength(byte[] h) throws ZipException {
+
+		if (h.length>=2 && ((h[0] & 0xff)!=0x1f || (h[1] & 0xff)!=0x8b)) {
+			throw new ZipException("Not in GZIP format");
+		}
+		if (h.length>=3 && h[2]!=8) {
+			throw new ZipException("Unsupported compression method " + h[2]);
+		}
+		if (h.length<10) {
+			return -1;
+		}
+
+		int flags = h[3];
+		int pos = 10;
+		if ((flags & FEXTRA)!=0) {
+			if (h.length<pos + 2) {
+				return -1;
+			}
+			pos += 2 + ((h[pos] & 0xff) | (h[pos + 1] & 0xff) << 8);
+		}
+		if ((flags & FNAME)!=0) {
+			pos = skipString(h, pos);
+		}
+		if ((flags & FCOMMENT)!=0) {
+			pos = skipString(h, pos);
+		}
+		if ((flags & FHCRC)!=0) {
+			pos += 2;
+		}
+		return pos<=h.length ? pos : -1;
+	}
+
+	/**
+	 * @return the position after the zero terminated string at pos,
+	 * or past the end of h if it's not all there yet
+	 */
+	private static int skipString(byte[] h, int pos) {
+
+		while (pos<h.length) {
+			if (h[pos++]==0) {
+				return pos;
+			}
+		}
+		return h.length + 1;
+	}
+
+	private void checkTrailer(byte[] t) throws ZipException {
+
+		long crcValue = readInt(t, 0);
+		long size = readInt(t, 4);
+		if (crcValue!=crc.getValue()) {
+			throw new ZipException("Corrupt GZIP trailer");
+		}
+		if (size!=(inflater.getBytesWritten() & 0xffffffffL)) {
+			throw new ZipException("Corrupt GZIP trailer");
+		}
+	}
+
+	private static long readInt(byte[] b, int off) {
+		return ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16
+				| (long)(b[off + 3] & 0xff) << 24);
+	}
+
+	/**
+	 * Check the whole gzip stream has been written, and free the Inflater.
+	 * Doesn't close out, which belongs to the caller.
+	 */
+	void finish() throws IOException {
+
+		inflater.end();
+		if (state!=State.DONE) {
+			throw new EOFException("Unexpected end of GZIP stream");
+		}
+	}
+
+}
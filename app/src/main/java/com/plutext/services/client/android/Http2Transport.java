@@ -0,0 +1,321 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.os.CancellationSignal;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+
+
+/**
+ * A Transport using OkHttp, which speaks HTTP/2 where it can, so that 
+ * concurrent conversions to an endpoint share one connection, each on its 
+ * own stream, rather than needing a connection each.  HTTP/2 flow control
+ * paces each upload, so one large document doesn't starve the others.
+ *
+ * For http endpoints, HTTP/2 is used with prior knowledge (h2c), so the
+ * endpoint must support it; for https endpoints, it is negotiated (ALPN), 
+ * falling back to HTTP/1.1.
+ *
+ * OkHttp still blocks a thread per exchange in progress (its own, for 
+ * executeAsync); it is connections, not threads, that are saved.
+ */
+public class Http2Transport implements Transport {
+
+	/**
+	 * Default maximum number of exchanges in progress at once (per endpoint,
+	 * and in all).  EndpointPool's limits normally keep us well below this.
+	 */
+	public static final int DEFAULT_MAX_REQUESTS = 64;
+
+	/**
+	 * How often an HTTP/2 connection is pinged, so that one which has silently 
+	 * died is noticed (there's no read timeout, since a conversion can take 
+	 * as long as it takes).
+	 */
+	private static final long PING_INTERVAL_SECONDS = 30;
+
+	private final OkHttpClient tls;
+	private final OkHttpClient cleartext;
+
+	/**
+	 * Whether the dispatcher and connection pool are ours, rather than shared
+	 * with a client the caller supplied, so shutdown() may stop them
+	 */
+	private final boolean owned;
+
+
+	public Http2Transport() {
+		this(newClient(DEFAULT_MAX_REQUESTS), true);
+	}
+
+	/**
+	 * @param client to base ours on (sharing its connection pool and dispatcher,
+	 * which shutdown() leaves alone); its protocols are overridden
+	 */
+	public Http2Transport(OkHttpClient client) {
+		this(client, false);
+	}
+
+	private Http2Transport(OkHttpClient client, boolean owned) {
+
+		OkHttpClient.Builder builder = client.newBuilder()
+				// RetryPolicy does that; OkHttp retrying would re-send a body which can't be
+				.retryOnConnectionFailure(false);
+
+		this.tls = builder
+				.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+				.build();
+		this.cleartext = builder
+				.protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+				.build();
+		this.owned = owned;
+	}
+
+	private static OkHttpClient newClient(int maxRequests) {
+
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests(maxRequests);
+		dispatcher.setMaxRequestsPerHost(maxRequests);
+
+		return new OkHttpClient.Builder()
+				.dispatcher(dispatcher)
+				.readTimeout(0, TimeUnit.MILLISECONDS)
+				.writeTimeout(0, TimeUnit.MILLISECONDS)
+				.pingInterval(PING_INTERVAL_SECONDS, TimeUnit.SECONDS)
+				.socketFactory(new NoDelaySocketFactory())
+				.build();
+	}
+
+	/**
+	 * Creates sockets with Nagle's algorithm off.  Streams' small frames
+	 * (headers, window updates) would otherwise wait on delayed ACKs.
+	 */
+	private static class NoDelaySocketFactory extends SocketFactory {
+
+		private final SocketFactory factory = SocketFactory.getDefault();
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return noDelay(factory.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return noDelay(factory.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return noDelay(factory.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return noDelay(factory.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return noDelay(factory.createSocket(address, port, localAddress, localPort));
+		}
+
+		private static Socket noDelay(Socket socket) throws SocketException {
+			socket.setTcpNoDelay(true);
+			return socket;
+		}
+	}
+
+	@Override
+	public void execute(Exchange exchange) throws IOException {
+
+		Call call = newCall(exchange);
+		try {
+			Response response = call.execute();
+			readResponse(exchange, response);
+		} finally {
+			exchange.getCancellationSignal().setOnCancelListener(null);
+		}
+	}
+
+	/**
+	 * The response is read on OkHttp's dispatcher thread, so the future
+	 * completes there.
+	 */
+	@Override
+	public ListenableFuture<Void> executeAsync(final Exchange exchange) {
+
+		final SettableFuture<Void> future = SettableFuture.create();
+		final Call call = newCall(exchange);
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (future.isCancelled()) {
+					call.cancel();
+				}
+			}
+		}, MoreExecutors.directExecutor());
+
+		call.enqueue(new Callback() {
+			@Override
+			public void onResponse(Call call, Response response) {
+				try {
+					readResponse(exchange, response);
+					future.set(null);
+				} catch (IOException e) {
+					future.setException(e);
+				} catch (RuntimeException e) {
+					future.setException(e);
+				} finally {
+					exchange.getCancellationSignal().setOnCancelListener(null);
+				}
+			}
+
+			@Override
+			public void onFailure(Call call, IOException e) {
+				exchange.getCancellationSignal().setOnCancelListener(null);
+				future.setException(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Stop the dispatcher's threads, and close idle connections, unless they
+	 * belong to the client this was made with, whose owner does that.
+	 */
+	@Override
+	public void shutdown() {
+
+		if (!owned) {
+			return;
+		}
+		cleartext.dispatcher().executorService().shutdown();
+		cleartext.connectionPool().evictAll();
+	}
+
+	/**
+	 * A call for the exchange, which its CancellationSignal cancels.
+	 */
+	private Call newCall(Exchange exchange) {
+
+		OkHttpClient client = exchange.getUrl().regionMatches(true, 0, "https:", 0, 6) ? tls : cleartext;
+
+		Request.Builder request = new Request.Builder()
+				.url(exchange.getUrl())
+				.method(exchange.getMethod(), exchange.hasBody() ? new ExchangeBody(exchange) : null);
+		// Having set Accept-Encoding ourselves (if we have), we get the 
+		// response as sent; the Exchange decompresses it
+		for (Map.Entry<String, String> header : exchange.getHeaders().entrySet()) {
+			request.header(header.getKey(), header.getValue());
+		}
+
+		final Call call = client.newCall(request.build());
+		if (!exchange.hasBody()) {
+			// otherwise ExchangeBody says when it's sent
+			exchange.requestSent();
+		}
+		exchange.getCancellationSignal().setOnCancelListener(new CancellationSignal.OnCancelListener() {
+			@Override
+			public void onCancel() {
+				call.cancel();
+			}
+		});
+		return call;
+	}
+
+	private static void readResponse(Exchange exchange, Response response) throws IOException {
+
+		ResponseBody body = response.body();
+		try {
+			String message = response.message();
+			OutputStream sink = exchange.responseHeaders(response.code(),
+					message==null || message.length()==0 ? null : message, // HTTP/2 has none
+					response.headers().toMultimap());
+
+			InputStream is = body.byteStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = is.read(buffer))!=-1) {
+				sink.write(buffer, 0, n);
+			}
+		} finally {
+			body.close();
+		}
+
+		exchange.responseComplete();
+	}
+
+	/**
+	 * The document, written to OkHttp as it asks for it (once per attempt;
+	 * OkHttp's own retries are off).
+	 */
+	private static class ExchangeBody extends okhttp3.RequestBody {
+
+		private final Exchange exchange;
+
+		ExchangeBody(Exchange exchange) {
+			this.exchange = exchange;
+		}
+
+		@Override
+		public MediaType contentType() {
+			return null;
+		}
+
+		@Override
+		public long contentLength() {
+			return exchange.getContentLength();
+		}
+
+		@Override
+		public void writeTo(BufferedSink sink) throws IOException {
+			exchange.writeBody(sink.outputStream());
+			exchange.requestSent();
+		}
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.io.IOException;
+
+
+/**
+ * The endpoint responded with an HTTP error status.
+ */
+@SuppressWarnings("serial")
+public class HttpStatusException extends IOException {
+
+	private final int status;
+	private final long retryAfterMillis;
+
+
+	public HttpStatusException(int status, String msg) {
+		this(status, msg, -1);
+	}
+
+	/**
+	 * @param status HTTP response code
+	 * @param msg
+	 * @param retryAfterMillis delay requested by a Retry-After header, or -1
+	 */
+	public HttpStatusException(int status, String msg, long retryAfterMillis) {
+		super("HTTP " + status + (msg==null ? "" : " " + msg));
+		this.status = status;
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return delay requested by a Retry-After header, or -1 if none
+	 */
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+
+}
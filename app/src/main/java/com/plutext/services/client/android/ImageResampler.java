@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Shrinks an image, for DocxSlimmer.  On Android, see BitmapResampler.
+ */
+public interface ImageResampler {
+
+	/**
+	 * Write a smaller version of image, in the same format, to out, if it is
+	 * bigger than it needs to be.
+	 *
+	 * @param name the image's part name, such as word/media/image1.png
+	 * @param image
+	 * @param maxPixels the most pixels the image needs along its longer side
+	 * @param out
+	 * @return whether anything was written; false if the image is small enough
+	 * already, or isn't in a format this can handle
+	 */
+	boolean resample(String name, byte[] image, int maxPixels, OutputStream out) throws IOException;
+
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A histogram of durations in milliseconds, cheap enough to update on
+ * every conversion from any thread: recording a value is a few
+ * atomic increments, with no locking or allocation.
+ *
+ * Values are counted in log-linear buckets (8 per power of 2), so
+ * percentiles are accurate to within about 6%, however large the values.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Enough buckets for any non-negative long.
+	 */
+	static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+
+	/**
+	 * @param millis duration to record; negative values are treated as 0
+	 */
+	public void record(long millis) {
+
+		if (millis<0) {
+			millis = 0;
+		}
+		counts.incrementAndGet(bucket(millis));
+		count.incrementAndGet();
+		sum.addAndGet(millis);
+
+		long current;
+		while (millis>(current = max.get())) {
+			if (max.compareAndSet(current, millis)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return a copy of the current state, from which percentiles can be read
+	 */
+	public Snapshot snapshot() {
+
+		long[] copy = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			total += copy[i];
+		}
+		// count and sum may be a few values ahead of the buckets; use the buckets' total
+		return new Snapshot(copy, total, sum.get(), max.get());
+	}
+
+	public void reset() {
+
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+
+	static int bucket(long value) {
+
+		if (value<SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+		int shift = exponent - SUB_BUCKET_BITS;
+		int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+		return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+	}
+
+	static long lowerBound(int bucket) {
+
+		if (bucket<SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub)) << shift;
+	}
+
+	static long upperBound(int bucket) {
+
+		if (bucket<SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		return lowerBound(bucket) + (1L << shift) - 1;
+	}
+
+
+	/**
+	 * An immutable copy of a LatencyHistogram.
+	 */
+	public static class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count==0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @param quantile between 0 and 1, eg 0.95 for the 95th percentile
+		 * @return the value below which that fraction of the recorded values fall
+		 * (to within the bucket resolution), or 0 if nothing has been recorded
+		 */
+		public long getValueAtQuantile(double quantile) {
+
+			if (count==0) {
+				return 0;
+			}
+
+			long rank = (long) Math.ceil(quantile * count);
+			if (rank<1) {
+				rank = 1;
+			}
+
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen>=rank) {
+					// middle of the bucket, but not beyond what was actually recorded
+					long mid = (lowerBound(i) + upperBound(i)) / 2;
+					return Math.min(mid, max);
+				}
+			}
+			return max;
+		}
+
+		public long getP50() {
+			return getValueAtQuantile(0.50);
+		}
+
+		public long getP95() {
+			return getValueAtQuantile(0.95);
+		}
+
+		public long getP99() {
+			return getValueAtQuantile(0.99);
+		}
+
+		@Override
+		public String toString() {
+			return "n=" + count + " p50=" + getP50() + " p95=" + getP95()
+					+ " p99=" + getP99() + " max=" + max + "ms";
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * The linearization parameters of a linearized ("fast web view") PDF, read
+ * from the dictionary which such a PDF starts with.  Everything needed to
+ * display the first page (its objects, and a cross-reference table for 
+ * them) comes before getFirstPageEnd(), so a viewer can start on it once
+ * that much has arrived, rather than waiting for the rest.
+ *
+ * The parameters only hold if the PDF turns out to be getFileLength() bytes
+ * long; if it was updated after being linearized, they don't.
+ *
+ * @see SpoolingSink#getLinearization()
+ */
+public final class Linearization {
+
+	/**
+	 * The linearization dictionary must be within the first this many bytes.
+	 */
+	public static final int HEAD_SIZE = 1024;
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * The header, any comment lines (such as the binary marker), then the
+	 * first object's dictionary.
+	 */
+	private static final Pattern FIRST_DICTIONARY = Pattern.compile(
+			"^%PDF-\\d\\.\\d[^\\r\\n]*[\\r\\n]+(?:%[^\\r\\n]*[\\r\\n]+)*\\s*\\d+\\s+\\d+\\s+obj\\s*<<(.*?)>>",
+			Pattern.DOTALL);
+
+	private static final Pattern LINEARIZED = Pattern.compile("/Linearized\\s");
+
+	private final long fileLength;
+	private final long firstPageEnd;
+	private final int pageCount;
+	private final int firstPage;
+
+	private Linearization(long fileLength, long firstPageEnd, int pageCount, int firstPage) {
+		this.fileLength = fileLength;
+		this.firstPageEnd = firstPageEnd;
+		this.pageCount = pageCount;
+		this.firstPage = firstPage;
+	}
+
+	/**
+	 * @param head the first HEAD_SIZE bytes of a PDF (or all of it, if shorter)
+	 * @param length how many bytes of head to look at
+	 * @return its linearization parameters, or null if it isn't linearized
+	 */
+	public static Linearization parse(byte[] head, int length) {
+
+		Matcher m = FIRST_DICTIONARY.matcher(new String(head, 0, Math.min(length, HEAD_SIZE), ISO_8859_1));
+		if (!m.find() || !LINEARIZED.matcher(m.group(1)).find()) {
+			return null;
+		}
+
+		String dictionary = m.group(1);
+		long fileLength = number(dictionary, "L");
+		long firstPageEnd = number(dictionary, "E");
+		long pageCount = number(dictionary, "N");
+		long firstPage = number(dictionary, "P");
+		if (fileLength<=0 || firstPageEnd<=0 || firstPageEnd>fileLength || pageCount<=0) {
+			return null;
+		}
+		return new Linearization(fileLength, firstPageEnd, (int) pageCount, firstPage<0 ? 0 : (int) firstPage);
+	}
+
+	/**
+	 * @return the value of integer entry key in dictionary, or -1 if it has none
+	 */
+	private static long number(String dictionary, String key) {
+
+		Matcher m = Pattern.compile("/" + key + "\\s*(\\d{1,18})\\b").matcher(dictionary);
+		return m.find() ? Long.parseLong(m.group(1)) : -1;
+	}
+
+	/**
+	 * @return the length of the whole PDF
+	 */
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	/**
+	 * @return the offset just past the end of the first page's objects
+	 */
+	public long getFirstPageEnd() {
+		return firstPageEnd;
+	}
+
+	/**
+	 * @return the number of pages in the PDF
+	 */
+	public int getPageCount() {
+		return pageCount;
+	}
+
+	/**
+	 * @return the index (from 0) of the page which comes first; normally 0
+	 */
+	public int getFirstPage() {
+		return firstPage;
+	}
+
+	@Override
+	public String toString() {
+		return "Linearization[" + pageCount + " pages, first page (" + firstPage + ") in "
+				+ firstPageEnd + " of " + fileLength + " bytes]";
+	}
+
+}
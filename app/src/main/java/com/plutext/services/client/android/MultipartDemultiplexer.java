@@ -0,0 +1,334 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Splits a multipart response written to it into its parts as they 
+ * arrive, writing each part's body to the sink added for its Content-Type
+ * (parts with no sink are skipped), so a response carrying several results
+ * needn't be buffered.  The bodies are taken as binary; a 
+ * Content-Transfer-Encoding isn't undone.
+ *
+ * The boundary is taken from the first line, which must be the first 
+ * delimiter (a preamble isn't supported).  If the first line isn't a
+ * delimiter, the response isn't multipart after all (the endpoint ignored
+ * the request for several results), and all of it goes to the plain sink.
+ *
+ * Closing it checks the whole response was written; it doesn't close the
+ * sinks, which belong to the caller.
+ */
+public class MultipartDemultiplexer extends OutputStream {
+
+	/**
+	 * RFC 2046 limits a boundary to 70 characters; the first line can
+	 * also have trailing whitespace.
+	 */
+	private static final int MAX_FIRST_LINE = 128;
+
+	private static final int MAX_PART_HEADERS = 8192;
+
+	private enum State {
+		FIRST_LINE, PLAIN, HEADERS, BODY, AFTER_DELIMITER, CLOSE_DELIMITER, DONE
+	}
+
+	private State state = State.FIRST_LINE;
+
+	private final OutputStream plain;
+	private final Map<String, OutputStream> sinks = new LinkedHashMap<String, OutputStream>();
+	private final Map<String, Boolean> received = new LinkedHashMap<String, Boolean>();
+
+	/**
+	 * the first line, or a part's headers, so far
+	 */
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/**
+	 * the last four bytes of the headers, so far
+	 */
+	private int lastFour = 0;
+
+	/**
+	 * CRLF, "--", then the boundary
+	 */
+	private byte[] delimiter;
+
+	/**
+	 * how much of the delimiter the last bytes of the body so far match;
+	 * they are held back until it's known whether they are the delimiter
+	 */
+	private int matched = 0;
+
+	private OutputStream part = null;
+	private boolean closed = false;
+
+
+	/**
+	 * @param plain where the response goes if it isn't multipart
+	 */
+	public MultipartDemultiplexer(OutputStream plain) {
+		this.plain = plain;
+	}
+
+	/**
+	 * @param contentType the media type of the part (parameters are ignored)
+	 * @param sink to write the body of that part to
+	 */
+	public void addPart(String contentType, OutputStream sink) {
+
+		String type = mediaType(contentType);
+		sinks.put(type, sink);
+		received.put(type, false);
+	}
+
+	/**
+	 * @return whether the response is multipart; false until its first 
+	 * line has been written
+	 */
+	public boolean isMultipart() {
+		return delimiter!=null;
+	}
+
+	/**
+	 * @return whether a part of contentType has been written to its sink
+	 */
+	public boolean hasReceived(String contentType) {
+
+		Boolean b = received.get(mediaType(contentType));
+		return b!=null && b;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+
+		int end = off + len;
+		while (off<end) {
+			byte c;
+			switch (state) {
+				case FIRST_LINE:
+					c = b[off++];
+					pending.write(c);
+					if (c=='\n' || pending.size()>MAX_FIRST_LINE || (pending.size()<=2 && c!='-')) {
+						firstLine();
+					}
+					break;
+
+				case PLAIN:
+					plain.write(b, off, end - off);
+					off = end;
+					break;
+
+				case HEADERS:
+					c = b[off++];
+					pending.write(c);
+					lastFour = lastFour << 8 | (c & 0xff);
+					if (pending.size()>MAX_PART_HEADERS) {
+						throw new IOException("Multipart part headers longer than " + MAX_PART_HEADERS + " bytes");
+					}
+					if (endsHeaders()) {
+						startPart(pending.toString("ISO-8859-1"));
+						pending.reset();
+						state = State.BODY;
+					}
+					break;
+
+				case BODY:
+					off = body(b, off, end);
+					break;
+
+				case AFTER_DELIMITER:
+					// either "--", ending the parts, or (after any transport padding) CRLF
+					c = b[off++];
+					if (c=='-') {
+						state = State.CLOSE_DELIMITER;
+					} else if (c=='\n') {
+						state = State.HEADERS;
+					} else if (c!=' ' && c!='\t' && c!='\r') {
+						throw new IOException("Malformed multipart delimiter");
+					}
+					break;
+
+				case CLOSE_DELIMITER:
+					if (b[off++]!='-') {
+						throw new IOException("Malformed multipart close delimiter");
+					}
+					state = State.DONE;
+					break;
+
+				case DONE:
+					// the epilogue, which is ignored
+					off = end;
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Decide, once the first line is complete (or can't be a delimiter, or
+	 * the response has ended), whether the response is multipart.
+	 */
+	private void firstLine() throws IOException {
+
+		byte[] line = pending.toByteArray();
+		pending.reset();
+		int n = line.length;
+		String boundary = null;
+		if (n>=4 && n<=MAX_FIRST_LINE && line[0]=='-' && line[1]=='-'
+				&& line[n - 2]=='\r' && line[n - 1]=='\n') {
+			boundary = boundary(new String(line, 0, n - 2, "ISO-8859-1"));
+		}
+		if (boundary==null) {
+			plain.write(line);
+			state = State.PLAIN;
+		} else {
+			delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+			state = State.HEADERS;
+		}
+	}
+
+	/**
+	 * @return the boundary, if line is "--" then one, else null
+	 */
+	private static String boundary(String line) {
+
+		String boundary = line.substring(2).replaceAll("[ \\t]+$", "");
+		if (boundary.length()<1 || boundary.length()>70
+				|| !boundary.matches("[0-9A-Za-z'()+_,\\-./:=? ]*[0-9A-Za-z'()+_,\\-./:=?]")) {
+			return null;
+		}
+		return boundary;
+	}
+
+	/**
+	 * @return whether the part's headers so far end with an empty line
+	 */
+	private boolean endsHeaders() {
+
+		if (pending.size()==2) {
+			// no headers at all
+			return (lastFour & 0xffff)==0x0d0a;
+		}
+		return pending.size()>=4 && lastFour==0x0d0a0d0a;
+	}
+
+	private void startPart(String headers) {
+
+		String type = null;
+		for (String line : headers.split("\r\n")) {
+			int colon = line.indexOf(':');
+			if (colon>0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Type")) {
+				type = mediaType(line.substring(colon + 1));
+			}
+		}
+		if (type==null) {
+			// the default (RFC 2046)
+			type = "text/plain";
+		}
+		part = sinks.get(type);
+		if (part!=null) {
+			received.put(type, true);
+		}
+	}
+
+	/**
+	 * Write b[off..end) to the current part, up to the delimiter ending it.
+	 * Bytes which might be the start of the delimiter are held back until 
+	 * it's known whether they are; since the delimiter's first byte (CR) 
+	 * occurs nowhere else in it, on a mismatch they can all be written.
+	 *
+	 * @return the offset just past what was consumed
+	 */
+	private int body(byte[] b, int off, int end) throws IOException {
+
+		int start = off;
+		for (int i = off; i<end; i++) {
+			if (b[i]==delimiter[matched]) {
+				if (matched==0) {
+					writePart(b, start, i - start);
+				}
+				matched++;
+				start = i + 1;
+				if (matched==delimiter.length) {
+					matched = 0;
+					part = null;
+					state = State.AFTER_DELIMITER;
+					return i + 1;
+				}
+			} else if (matched>0) {
+				writePart(delimiter, 0, matched);
+				matched = 0;
+				start = i;
+				// it may start the delimiter afresh
+				i--;
+			}
+		}
+		writePart(b, start, end - start);
+		return end;
+	}
+
+	private void writePart(byte[] b, int off, int len) throws IOException {
+		if (part!=null && len>0) {
+			part.write(b, off, len);
+		}
+	}
+
+	private static String mediaType(String contentType) {
+
+		int semicolon = contentType.indexOf(';');
+		return (semicolon<0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Check the whole response has been written: for a multipart one,
+	 * up to its close delimiter.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed) {
+			return;
+		}
+		if (state==State.FIRST_LINE) {
+			firstLine();
+		}
+		closed = true;
+		if (state!=State.PLAIN && state!=State.DONE) {
+			throw new EOFException("Unexpected end of multipart response");
+		}
+	}
+
+}
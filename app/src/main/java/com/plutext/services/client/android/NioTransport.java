@@ -0,0 +1,949 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+
+
+/**
+ * A Transport speaking HTTP/1.1 over non-blocking SocketChannels, all driven
+ * by one selector thread, so that hundreds of conversions can be in flight
+ * without a thread each.  Idle connections are kept (per host and port)
+ * for reuse, for up to IDLE_TIMEOUT_MILLIS.
+ *
+ * Request and response bodies are moved on the selector thread, so reading
+ * the document, and writing the result to the caller's OutputStream, should
+ * be quick: a file or memory, rather than another network connection.  
+ * Futures returned by executeAsync complete on the selector thread too, 
+ * so their listeners should either be quick, or run on an executor.
+ *
+ * Only plain http URLs are supported (no TLS, and no proxy).
+ */
+public class NioTransport implements Transport {
+
+    private static final String TAG = NioTransport.class.getSimpleName();
+
+	/**
+	 * Default number of idle connections kept to each host.
+	 */
+	public static final int DEFAULT_MAX_IDLE_PER_HOST = 5;
+
+	/**
+	 * How long an idle connection is kept before it is closed.
+	 */
+	public static final long IDLE_TIMEOUT_MILLIS = 30 * 1000;
+
+	/**
+	 * Size of each exchange's send and receive buffers; also the
+	 * most a response's status line and headers can take up.
+	 */
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+	private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+	private final int maxIdlePerHost;
+
+	private final Selector selector;
+	private final Thread thread;
+
+	/**
+	 * Work for the selector thread, from other threads
+	 */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private volatile boolean shutdown = false;
+
+	// The rest belong to the selector thread
+
+	private final Map<String, ArrayDeque<Connection>> idle = new HashMap<String, ArrayDeque<Connection>>();
+
+	private final Set<Call> calls = new HashSet<Call>();
+
+
+	public NioTransport() throws IOException {
+		this(DEFAULT_MAX_IDLE_PER_HOST);
+	}
+
+	/**
+	 * @param maxIdlePerHost maximum number of idle connections to keep to each host
+	 */
+	public NioTransport(int maxIdlePerHost) throws IOException {
+
+		if (maxIdlePerHost<0) {
+			throw new IllegalArgumentException("maxIdlePerHost < 0: " + maxIdlePerHost);
+		}
+		this.maxIdlePerHost = maxIdlePerHost;
+
+		selector = Selector.open();
+		thread = ConversionExecutor.newThreadFactory().newThread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		});
+		thread.start();
+	}
+
+	/**
+	 * Perform the exchange via executeAsync, waiting for it.  If the 
+	 * waiting thread is interrupted, the exchange is aborted.
+	 */
+	@Override
+	public void execute(Exchange exchange) throws IOException {
+
+		ListenableFuture<Void> future = executeAsync(exchange);
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + exchange.getUrl());
+		} catch (ExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), IOException.class);
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * The host name is resolved on the calling thread; the rest
+	 * happens on the selector thread.
+	 */
+	@Override
+	public ListenableFuture<Void> executeAsync(Exchange exchange) {
+
+		URL url;
+		try {
+			url = new URL(exchange.getUrl());
+		} catch (MalformedURLException e) {
+			return Futures.immediateFailedFuture(e);
+		}
+		if (!"http".equalsIgnoreCase(url.getProtocol())) {
+			return Futures.immediateFailedFuture(
+					new MalformedURLException(getClass().getSimpleName() + " only supports http, not " + url));
+		}
+
+		int port = url.getPort()<0 ? url.getDefaultPort() : url.getPort();
+		InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+		if (address.isUnresolved()) {
+			return Futures.immediateFailedFuture(new UnknownHostException(url.getHost()));
+		}
+
+		final Call call = new Call(exchange, url, address);
+
+		synchronized (this) {
+			if (shutdown) {
+				return Futures.immediateFailedFuture(new IOException(getClass().getSimpleName() + " is shut down"));
+			}
+			submit(new Runnable() {
+				@Override
+				public void run() {
+					call.start();
+				}
+			});
+		}
+
+		final Runnable abort = new Runnable() {
+			@Override
+			public void run() {
+				call.fail(new IOException("Exchange with " + call.url + " cancelled"));
+			}
+		};
+		exchange.getCancellationSignal().setOnCancelListener(new CancellationSignal.OnCancelListener() {
+			@Override
+			public void onCancel() {
+				submit(abort);
+			}
+		});
+		call.future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (call.future.isCancelled()) {
+					submit(abort);
+				}
+			}
+		}, MoreExecutors.directExecutor());
+
+		return call.future;
+	}
+
+	/**
+	 * Fail the exchanges in progress, close all connections, and stop the 
+	 * selector thread.
+	 */
+	@Override
+	public void shutdown() {
+
+		synchronized (this) {
+			shutdown = true;
+		}
+		selector.wakeup();
+	}
+
+	private void submit(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+
+	private void loop() {
+
+		try {
+			while (!shutdown) {
+
+				Runnable task;
+				while ((task = tasks.poll())!=null) {
+					task.run();
+				}
+
+				selector.select(closeIdle(System.currentTimeMillis()));
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid()) {
+						((Connection)key.attachment()).ready(key.readyOps());
+					}
+				}
+			}
+
+		} catch (IOException e) {
+			Log.e(TAG, "selector failed", e);
+			synchronized (this) {
+				shutdown = true;
+			}
+
+		} finally {
+			// calls submitted before shutdown see it when they start, and fail
+			Runnable task;
+			while ((task = tasks.poll())!=null) {
+				task.run();
+			}
+			for (Call call : new ArrayList<Call>(calls)) {
+				call.fail(new IOException(getClass().getSimpleName() + " shut down"));
+			}
+			for (ArrayDeque<Connection> connections : idle.values()) {
+				for (Connection connection : connections) {
+					connection.close();
+				}
+			}
+			idle.clear();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Close connections which have been idle too long.
+	 *
+	 * @return how long until the next one will have been, or 0 if
+	 * there are no idle connections
+	 */
+	private long closeIdle(long now) {
+
+		long next = 0;
+		Iterator<ArrayDeque<Connection>> hosts = idle.values().iterator();
+		while (hosts.hasNext()) {
+			ArrayDeque<Connection> connections = hosts.next();
+			Iterator<Connection> it = connections.iterator();
+			while (it.hasNext()) {
+				Connection connection = it.next();
+				long remaining = connection.idleSince + IDLE_TIMEOUT_MILLIS - now;
+				if (remaining<=0) {
+					it.remove();
+					connection.close();
+				} else if (next==0 || remaining<next) {
+					next = remaining;
+				}
+			}
+			if (connections.isEmpty()) {
+				hosts.remove();
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * @return an open idle connection to host, removed from the pool, or null
+	 */
+	private Connection takeIdle(String host) {
+
+		ArrayDeque<Connection> connections = idle.get(host);
+		if (connections==null) {
+			return null;
+		}
+		Connection connection;
+		while ((connection = connections.pollLast())!=null) {
+			if (connection.channel.isOpen()) {
+				return connection;
+			}
+		}
+		return null;
+	}
+
+	private void putIdle(Connection connection) throws IOException {
+
+		if (maxIdlePerHost==0 || shutdown) {
+			connection.close();
+			return;
+		}
+
+		connection.call = null;
+		connection.idleSince = System.currentTimeMillis();
+		// readable while idle means the server closed it (or misbehaved)
+		connection.key.interestOps(SelectionKey.OP_READ);
+
+		ArrayDeque<Connection> connections = idle.get(connection.host);
+		if (connections==null) {
+			connections = new ArrayDeque<Connection>();
+			idle.put(connection.host, connections);
+		}
+		connections.addLast(connection);
+		if (connections.size()>maxIdlePerHost) {
+			connections.pollFirst().close();
+		}
+	}
+
+
+	/**
+	 * A connection, and the Call it is carrying, if any.
+	 */
+	private class Connection {
+
+		final String host;
+		final SocketChannel channel;
+		SelectionKey key;
+
+		Call call = null;
+		long idleSince;
+
+		Connection(String host, SocketChannel channel) {
+			this.host = host;
+			this.channel = channel;
+		}
+
+		void ready(int readyOps) {
+
+			if (call!=null) {
+				call.ready(readyOps);
+				return;
+			}
+
+			ArrayDeque<Connection> connections = idle.get(host);
+			if (connections!=null) {
+				connections.remove(this);
+			}
+			close();
+		}
+
+		void close() {
+
+			if (key!=null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+
+		@Override
+		public String toString() {
+			return host;
+		}
+	}
+
+
+	private enum State {
+		CONNECTING, SENDING, RECEIVING_HEAD, RECEIVING_BODY, DONE
+	}
+
+	private enum Framing {
+		FIXED, CHUNKED, UNTIL_CLOSE
+	}
+
+	private enum ChunkState {
+		SIZE, DATA, DATA_END, TRAILER
+	}
+
+	/**
+	 * One exchange, on its way through the selector thread.
+	 */
+	private class Call {
+
+		final Exchange exchange;
+		final URL url;
+		final InetSocketAddress address;
+		final SettableFuture<Void> future = SettableFuture.create();
+
+		State state = State.CONNECTING;
+		Connection connection;
+
+		/**
+		 * Whether the connection can be put back in the pool afterwards
+		 */
+		boolean reusable = true;
+
+		ByteBuffer out;
+		ReadableByteChannel body;
+		long bodyRemaining;
+		boolean chunked;
+		boolean bodySent;
+
+		ByteBuffer in;
+		StringBuilder line;
+		Framing framing;
+		long remaining;
+		ChunkState chunkState;
+		OutputStream sink;
+
+		Call(Exchange exchange, URL url, InetSocketAddress address) {
+			this.exchange = exchange;
+			this.url = url;
+			this.address = address;
+		}
+
+		private String host() {
+			return address.getHostString() + ":" + address.getPort();
+		}
+
+		void start() {
+
+			if (shutdown) {
+				fail(new IOException(NioTransport.this.getClass().getSimpleName() + " shut down"));
+				return;
+			}
+			if (state==State.DONE) {
+				return; // cancelled already
+			}
+			calls.add(this);
+
+			try {
+				connection = takeIdle(host());
+				if (connection!=null) {
+					connection.call = this;
+					connected();
+					return;
+				}
+
+				SocketChannel channel = SocketChannel.open();
+				connection = new Connection(host(), channel);
+				connection.call = this;
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				if (channel.connect(address)) {
+					connection.key = channel.register(selector, 0, connection);
+					connected();
+				} else {
+					connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+				}
+
+			} catch (IOException e) {
+				fail(e);
+			} catch (RuntimeException e) {
+				fail(new IOException(e));
+			}
+		}
+
+		void ready(int readyOps) {
+
+			try {
+				if ((readyOps & SelectionKey.OP_CONNECT)!=0) {
+					if (!connection.channel.finishConnect()) {
+						return;
+					}
+					connected();
+					return;
+				}
+				if ((readyOps & SelectionKey.OP_READ)!=0) {
+					receive();
+				}
+				if (state==State.SENDING && (readyOps & SelectionKey.OP_WRITE)!=0) {
+					send();
+				}
+
+			} catch (IOException e) {
+				fail(e);
+			} catch (RuntimeException e) {
+				fail(new IOException(e));
+			}
+		}
+
+		private void connected() throws IOException {
+
+			state = State.SENDING;
+
+			out = ByteBuffer.allocate(BUFFER_SIZE);
+			in = ByteBuffer.allocate(BUFFER_SIZE);
+			line = new StringBuilder();
+
+			bodyRemaining = exchange.getContentLength();
+			chunked = bodyRemaining<0;
+			out.put(requestHead().getBytes(ASCII));
+			out.flip();
+			if (exchange.hasBody()) {
+				body = exchange.openBody();
+			}
+
+			// reading too, in case the endpoint responds before it has the whole body
+			connection.key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+			send();
+		}
+
+		private String requestHead() {
+
+			String path = url.getPath().length()==0 ? "/" : url.getPath();
+			if (url.getQuery()!=null) {
+				path += "?" + url.getQuery();
+			}
+
+			StringBuilder head = new StringBuilder();
+			head.append(exchange.getMethod()).append(' ').append(path).append(" HTTP/1.1\r\n");
+			head.append("Host: ").append(url.getHost());
+			if (url.getPort()>=0) {
+				head.append(':').append(url.getPort());
+			}
+			head.append("\r\n");
+			for (Map.Entry<String, String> header : exchange.getHeaders().entrySet()) {
+				head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+			if (chunked) {
+				head.append("Transfer-Encoding: chunked\r\n");
+			} else if (exchange.hasBody()) {
+				head.append("Content-Length: ").append(bodyRemaining).append("\r\n");
+			}
+			head.append("\r\n");
+			return head.toString();
+		}
+
+		/**
+		 * Write as much of the request as the socket will take.
+		 */
+		private void send() throws IOException {
+
+			while (true) {
+				if (!out.hasRemaining() && !fill()) {
+					closeBody();
+					exchange.requestSent();
+					state = State.RECEIVING_HEAD;
+					connection.key.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+				if (connection.channel.write(out)==0) {
+					return; // wait for OP_WRITE
+				}
+			}
+		}
+
+		/**
+		 * Refill out with the next of the body, as a chunk if it's chunked.
+		 *
+		 * @return false if there's no more to send
+		 */
+		private boolean fill() throws IOException {
+
+			if (bodySent) {
+				return false;
+			}
+			out.clear();
+
+			if (!chunked) {
+				if (bodyRemaining==0) {
+					bodySent = true;
+					return false;
+				}
+				if (bodyRemaining<out.remaining()) {
+					out.limit((int)bodyRemaining);
+				}
+				int n = readBody(out);
+				if (n<0) {
+					throw new IOException("Request body ended " + bodyRemaining + " bytes short");
+				}
+				bodyRemaining -= n;
+				out.flip();
+				return true;
+			}
+
+			// chunk size line, then up to this much data, then CRLF
+			int dataStart = 10;
+			out.position(dataStart);
+			out.limit(out.capacity() - 2);
+			int n = readBody(out);
+			if (n<0) {
+				out.clear();
+				out.put("0\r\n\r\n".getBytes(ASCII));
+				out.flip();
+				bodySent = true;
+				return true;
+			}
+			out.limit(out.capacity());
+			out.put((byte)'\r').put((byte)'\n');
+			byte[] size = (Integer.toHexString(n) + "\r\n").getBytes(ASCII);
+			int start = dataStart - size.length;
+			out.flip();
+			out.position(start);
+			out.duplicate().put(size);
+			return true;
+		}
+
+		/**
+		 * Read body into out, until out is full or the body ends.
+		 *
+		 * @return the number of bytes read, or -1 if the body had already ended
+		 */
+		private int readBody(ByteBuffer out) throws IOException {
+
+			int total = 0;
+			while (out.hasRemaining()) {
+				int n = body.read(out);
+				if (n<0) {
+					return total==0 ? -1 : total;
+				}
+				total += n;
+			}
+			return total;
+		}
+
+		private void receive() throws IOException {
+
+			int n = connection.channel.read(in);
+			if (n<0) {
+				ended();
+				return;
+			}
+			if (n==0) {
+				return;
+			}
+
+			if (state==State.SENDING) {
+				// a response before the endpoint has the whole request (say, a 413);
+				// stop sending, and don't reuse the connection, since it's out of step
+				reusable = false;
+				closeBody();
+				exchange.requestSent();
+				state = State.RECEIVING_HEAD;
+				connection.key.interestOps(SelectionKey.OP_READ);
+			}
+
+			in.flip();
+			try {
+				while (state==State.RECEIVING_HEAD && readHead()) {
+				}
+				if (state==State.RECEIVING_BODY) {
+					readBody();
+				}
+			} finally {
+				in.compact();
+			}
+
+			if (state==State.RECEIVING_HEAD && !in.hasRemaining()) {
+				throw new IOException("Response head from " + url + " too large");
+			}
+		}
+
+		/**
+		 * @return whether a head (perhaps an interim 1xx response) was read
+		 */
+		private boolean readHead() throws IOException {
+
+			int end = -1;
+			for (int i = in.position(); i + 3<in.limit(); i++) {
+				if (in.get(i)=='\r' && in.get(i + 1)=='\n' && in.get(i + 2)=='\r' && in.get(i + 3)=='\n') {
+					end = i;
+					break;
+				}
+			}
+			if (end<0) {
+				return false;
+			}
+
+			String head = new String(in.array(), in.arrayOffset() + in.position(), end - in.position(), ASCII);
+			in.position(end + 4);
+
+			String[] lines = head.split("\r\n");
+			String[] statusLine = lines[0].split(" ", 3);
+			if (statusLine.length<2 || !statusLine[0].startsWith("HTTP/")) {
+				throw new IOException("Unexpected status line from " + url + ": " + lines[0]);
+			}
+			int status;
+			try {
+				status = Integer.parseInt(statusLine[1]);
+			} catch (NumberFormatException e) {
+				throw new IOException("Unexpected status line from " + url + ": " + lines[0]);
+			}
+			if (status>=100 && status<200) {
+				return true; // eg 100 Continue; the real response follows
+			}
+
+			Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+			for (int i = 1; i<lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon<=0) {
+					continue;
+				}
+				String name = lines[i].substring(0, colon).trim();
+				List<String> values = headers.get(name);
+				if (values==null) {
+					values = new ArrayList<String>(1);
+					headers.put(name, values);
+				}
+				values.add(lines[i].substring(colon + 1).trim());
+			}
+
+			if ("close".equalsIgnoreCase(Exchange.header(headers, "Connection"))
+					|| "HTTP/1.0".equals(statusLine[0])) {
+				reusable = false;
+			}
+
+			String transferEncoding = Exchange.header(headers, "Transfer-Encoding");
+			long contentLength = Exchange.parseLength(Exchange.header(headers, "Content-Length"));
+			if (status==204 || status==304) {
+				framing = Framing.FIXED;
+				remaining = 0;
+			} else if (transferEncoding!=null && transferEncoding.toLowerCase().contains("chunked")) {
+				framing = Framing.CHUNKED;
+				chunkState = ChunkState.SIZE;
+			} else if (contentLength>=0) {
+				framing = Framing.FIXED;
+				remaining = contentLength;
+			} else {
+				framing = Framing.UNTIL_CLOSE;
+				reusable = false;
+			}
+
+			sink = exchange.responseHeaders(status, statusLine.length>2 ? statusLine[2] : null, headers);
+			state = State.RECEIVING_BODY;
+			if (framing==Framing.FIXED && remaining==0) {
+				complete();
+			}
+			return true;
+		}
+
+		/**
+		 * Pass what has been received of the body to the sink.
+		 */
+		private void readBody() throws IOException {
+
+			switch (framing) {
+				case FIXED:
+					write((int)Math.min(remaining, in.remaining()));
+					if (remaining==0) {
+						complete();
+					}
+					break;
+
+				case UNTIL_CLOSE:
+					write(in.remaining());
+					break;
+
+				case CHUNKED:
+					readChunks();
+					break;
+			}
+		}
+
+		private void readChunks() throws IOException {
+
+			while (state==State.RECEIVING_BODY) {
+				switch (chunkState) {
+					case SIZE:
+						String size = readLine();
+						if (size==null) {
+							return;
+						}
+						int semicolon = size.indexOf(';'); // chunk extensions
+						try {
+							remaining = Long.parseLong((semicolon<0 ? size : size.substring(0, semicolon)).trim(), 16);
+						} catch (NumberFormatException e) {
+							throw new IOException("Bad chunk size from " + url + ": " + size);
+						}
+						chunkState = remaining==0 ? ChunkState.TRAILER : ChunkState.DATA;
+						break;
+
+					case DATA:
+						if (!in.hasRemaining()) {
+							return;
+						}
+						write((int)Math.min(remaining, in.remaining()));
+						if (remaining==0) {
+							chunkState = ChunkState.DATA_END;
+						}
+						break;
+
+					case DATA_END:
+						String crlf = readLine();
+						if (crlf==null) {
+							return;
+						}
+						if (crlf.length()>0) {
+							throw new IOException("Missing CRLF after chunk from " + url);
+						}
+						chunkState = ChunkState.SIZE;
+						break;
+
+					case TRAILER:
+						String trailer = readLine();
+						if (trailer==null) {
+							return;
+						}
+						if (trailer.length()==0) {
+							complete();
+						}
+						break;
+				}
+			}
+		}
+
+		/**
+		 * @return the next line (without its CRLF), or null if it hasn't all arrived yet
+		 */
+		private String readLine() throws IOException {
+
+			while (in.hasRemaining()) {
+				char c = (char)(in.get() & 0xff);
+				if (c=='\n') {
+					int length = line.length();
+					if (length>0 && line.charAt(length - 1)=='\r') {
+						line.setLength(length - 1);
+					}
+					String result = line.toString();
+					line.setLength(0);
+					return result;
+				}
+				if (line.length()>=MAX_LINE_LENGTH) {
+					throw new IOException("Line too long in response from " + url);
+				}
+				line.append(c);
+			}
+			return null;
+		}
+
+		private void write(int n) throws IOException {
+
+			sink.write(in.array(), in.arrayOffset() + in.position(), n);
+			in.position(in.position() + n);
+			remaining -= n;
+		}
+
+		/**
+		 * The endpoint closed the connection.
+		 */
+		private void ended() throws IOException {
+
+			if (state==State.RECEIVING_BODY && framing==Framing.UNTIL_CLOSE) {
+				complete();
+				return;
+			}
+			throw new IOException("Connection to " + url + " closed before the response was complete");
+		}
+
+		/**
+		 * The response has all been received.
+		 */
+		private void complete() throws IOException {
+
+			state = State.DONE;
+			calls.remove(this);
+
+			if (reusable && !in.hasRemaining()) {
+				putIdle(connection);
+			} else {
+				connection.close();
+			}
+
+			exchange.getCancellationSignal().setOnCancelListener(null);
+			try {
+				exchange.responseComplete();
+				future.set(null);
+			} catch (IOException e) {
+				future.setException(e);
+			}
+		}
+
+		void fail(IOException e) {
+
+			if (state==State.DONE) {
+				return;
+			}
+			state = State.DONE;
+			calls.remove(this);
+
+			closeBody();
+			if (connection!=null) {
+				connection.close();
+			}
+
+			exchange.getCancellationSignal().setOnCancelListener(null);
+			future.setException(e);
+		}
+
+		private void closeBody() {
+
+			if (body!=null) {
+				try {
+					body.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				body = null;
+			}
+		}
+	}
+
+}
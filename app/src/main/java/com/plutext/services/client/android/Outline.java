@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+
+/**
+ * A document's outline (its table of contents), as OutlineParser builds
+ * it from a Format.TOC result.  Entries are numbered from 0 in document 
+ * order, each entry's descendants following it, and are held in parallel 
+ * arrays of primitives (the titles sharing one char[]), so that an outline 
+ * with thousands of headings is a handful of objects, not thousands.
+ * A title only becomes a String when it is asked for.
+ *
+ * Page indexes are from 0, as PDFView.jumpTo() expects:
+ *
+ * <pre>
+ * pdfView.jumpTo(outline.getPage(entry));
+ * </pre>
+ */
+public final class Outline {
+
+	private final int size;
+	private final char[] text;
+	private final int[] titleStart;
+	private final int[] titleLength;
+	private final int[] level;
+	private final int[] page;
+	private final int[] parent;
+	private final int[] end;
+
+	/**
+	 * The arrays are used as they are, not copied; only the first size
+	 * entries of each are looked at.  An entry without a title has a
+	 * titleStart of -1.
+	 */
+	Outline(int size, char[] text, int[] titleStart, int[] titleLength, int[] level, int[] page) {
+
+		this.size = size;
+		this.text = text;
+		this.titleStart = titleStart;
+		this.titleLength = titleLength;
+		this.level = level;
+		this.page = page;
+		this.parent = new int[size];
+		this.end = new int[size];
+
+		// Each entry's parent is the nearest entry before it at a lower
+		// level; the entries still open are those on the stack
+		int[] open = new int[size];
+		int depth = 0;
+		for (int i = 0; i<size; i++) {
+			while (depth>0 && level[open[depth - 1]]>=level[i]) {
+				end[open[--depth]] = i;
+			}
+			parent[i] = depth>0 ? open[depth - 1] : -1;
+			open[depth++] = i;
+		}
+		while (depth>0) {
+			end[open[--depth]] = size;
+		}
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the title of entry i; empty if it had none
+	 */
+	public String getTitle(int i) {
+		check(i);
+		return titleStart[i]<0 ? "" : new String(text, titleStart[i], titleLength[i]);
+	}
+
+	/**
+	 * @return the depth of entry i, from 0 for the top level
+	 */
+	public int getLevel(int i) {
+		check(i);
+		return level[i];
+	}
+
+	/**
+	 * @return the index (from 0) of the page entry i is on, or -1 if the
+	 * TOC didn't say
+	 */
+	public int getPage(int i) {
+		check(i);
+		return page[i];
+	}
+
+	/**
+	 * @return the entry entry i is under, or -1 if it is at the top level
+	 */
+	public int getParent(int i) {
+		check(i);
+		return parent[i];
+	}
+
+	/**
+	 * @return the entry after entry i's last descendant (so i's descendants
+	 * are i + 1 up to this), or size() if there is none
+	 */
+	public int getEnd(int i) {
+		check(i);
+		return end[i];
+	}
+
+	/**
+	 * @return the next entry with the same parent as entry i, or -1 if i is 
+	 * the last
+	 */
+	public int getNextSibling(int i) {
+		int next = getEnd(i);
+		return next<size && parent[next]==parent[i] ? next : -1;
+	}
+
+	/**
+	 * @return the entry covering page: the last entry on or before it, or
+	 * -1 if page comes before them all (say, the title page)
+	 */
+	public int find(int page) {
+
+		int found = -1;
+		for (int i = 0; i<size; i++) {
+			if (this.page[i]>=0 && this.page[i]<=page) {
+				found = i;
+			}
+		}
+		return found;
+	}
+
+	private void check(int i) {
+		if (i<0 || i>=size) {
+			throw new IndexOutOfBoundsException("Entry " + i + " of " + size);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Outline[" + size + " entries]";
+	}
+
+}
@@ -0,0 +1,631 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+
+/**
+ * Parses a Format.TOC result into an Outline as it is written, so it 
+ * needn't be buffered first, and no object is made per heading:
+ *
+ * <pre>
+ * OutlineParser toc = new OutlineParser();
+ * converter.convert(docx, Format.DOCX, Format.TOC, toc);
+ * toc.close();
+ * Outline outline = toc.getOutline();
+ * </pre>
+ *
+ * The TOC is JSON, which is read leniently, since its shape is up to the
+ * endpoint.  The entries are the objects in an array: either the array 
+ * the JSON is, or one in a (wrapper) object it is.  An entry's title is 
+ * its "title", "text", "name", "label" or "heading" member; its page 
+ * number (from 1) is its "page", "pageNumber", "pageNum" or "pageNo";
+ * its level (from 1) is its "level", "depth" or "outlineLevel".  Without
+ * a level, an entry's level is how deeply it is nested: the objects in 
+ * an array an entry has (under any name) are its children.  Numbers may
+ * be quoted, and a page or level of null is taken as missing; but one
+ * which isn't a whole number (or for a page, is less than 1), or a title
+ * which isn't a string (or null), makes the TOC malformed.  Other members
+ * are skipped, as are entries with no title, page or children.
+ */
+public class OutlineParser extends OutputStream {
+
+	private enum State {
+		BETWEEN, STRING, ESCAPE, UNICODE, BARE, DONE
+	}
+
+	// What a container on the stack is for.  An array's role is otherwise
+	// the level of its entries; an object's, the entry it is.
+	private static final int IGNORED = -1;
+	private static final int WRAPPER = -2;
+
+	// which member a value is for
+	private static final int KEY_OTHER = 0;
+	private static final int KEY_TITLE = 1;
+	private static final int KEY_PAGE = 2;
+	private static final int KEY_LEVEL = 3;
+
+	// what the characters of a string or bare value go to
+	private static final int USE_NONE = 0;
+	private static final int USE_KEY = 1;
+	private static final int USE_TITLE = 2;
+	private static final int USE_NUMBER = 3;
+	private static final int USE_BARE_TITLE = 4;
+
+	// how far through a number we are, per JSON's grammar
+	private static final int NUM_START = 0;
+	private static final int NUM_INT = 1;
+	private static final int NUM_FRACTION_START = 2;
+	private static final int NUM_FRACTION = 3;
+	private static final int NUM_EXPONENT_START = 4;
+	private static final int NUM_EXPONENT_SIGN = 5;
+	private static final int NUM_EXPONENT = 6;
+	private static final int NUM_BAD = 7;
+
+	// digits beyond this can't be a page or level
+	private static final long MAX_MANTISSA = 1000000000000000L;
+	private static final int MAX_EXPONENT = 1000;
+
+	private static final String NULL = "null";
+
+	private static final int MAX_KEY_LENGTH = 16;
+
+	private State state = State.BETWEEN;
+	private long position = 0;
+	private IOException failure = null;
+	private boolean closed = false;
+
+	// containers open
+	private int depth = 0;
+	private boolean[] objects = new boolean[16];
+	private int[] roles = new int[16];
+	private boolean expectKey = false;
+
+	// the value being read
+	private int key = KEY_OTHER;
+	private int use = USE_NONE;
+	private final char[] keyChars = new char[MAX_KEY_LENGTH];
+	private int keyLength = 0;
+	private int numberPhase;
+	private long mantissa;
+	private int fractionDigits;
+	private int exponent;
+	private boolean exponentNegative;
+	// how much of "null" a bare value has matched, or -1 if it isn't
+	private int nullMatched;
+	private int unicode = 0;
+	private int unicodeDigits = 0;
+	private int codePoint = 0;
+	private int utf8Remaining = 0;
+
+	// the entries so far
+	private int size = 0;
+	private char[] text = new char[1024];
+	private int textLength = 0;
+	private int[] titleStart = new int[64];
+	private int[] titleLength = new int[64];
+	private int[] level = new int[64];
+	private int[] page = new int[64];
+
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (failure!=null) {
+			throw failure;
+		}
+		try {
+			for (int end = off + len; off<end; off++) {
+				if (accept(b[off] & 0xff)) {
+					position++;
+				} else {
+					// the byte ended a bare value, and is looked at again
+					off--;
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		}
+	}
+
+	/**
+	 * @return false if c is to be passed again
+	 */
+	private boolean accept(int c) throws IOException {
+
+		switch (state) {
+			case BETWEEN:
+				between(c);
+				return true;
+
+			case STRING:
+				if (utf8Remaining>0) {
+					if ((c & 0xc0)==0x80) {
+						codePoint = codePoint << 6 | (c & 0x3f);
+						if (--utf8Remaining==0) {
+							append(codePoint);
+						}
+						return true;
+					}
+					utf8Remaining = 0;
+					append(0xfffd);
+					return false;
+				}
+				if (c=='"') {
+					endValue();
+					state = State.BETWEEN;
+				} else if (c=='\\') {
+					state = State.ESCAPE;
+				} else if (c<0x80) {
+					append(c);
+				} else if (c>=0xc2 && c<=0xf4) {
+					utf8Remaining = c<0xe0 ? 1 : c<0xf0 ? 2 : 3;
+					codePoint = c & (0x3f >> utf8Remaining);
+				} else {
+					append(0xfffd);
+				}
+				return true;
+
+			case ESCAPE:
+				state = State.STRING;
+				switch (c) {
+					case 'b': append('\b'); break;
+					case 'f': append('\f'); break;
+					case 'n': append('\n'); break;
+					case 'r': append('\r'); break;
+					case 't': append('\t'); break;
+					case 'u':
+						unicode = 0;
+						unicodeDigits = 0;
+						state = State.UNICODE;
+						break;
+					default: append(c);
+				}
+				return true;
+
+			case UNICODE:
+				int digit = Character.digit(c, 16);
+				if (digit<0) {
+					throw malformed("bad \\u escape");
+				}
+				unicode = unicode << 4 | digit;
+				if (++unicodeDigits==4) {
+					// a surrogate pair is two escapes, so comes out as two chars
+					append((char) unicode);
+					state = State.STRING;
+				}
+				return true;
+
+			case BARE:
+				if (c==',' || c==':' || c==']' || c=='}' || isWhitespace(c)) {
+					endValue();
+					state = depth>0 ? State.BETWEEN : State.DONE;
+					return false;
+				}
+				bare(c);
+				return true;
+
+			case DONE:
+				if (!isWhitespace(c)) {
+					throw malformed("more after the end");
+				}
+				return true;
+		}
+		return true;
+	}
+
+	private void between(int c) throws IOException {
+
+		if (isWhitespace(c)) {
+			return;
+		}
+		if (position<3 && depth==0 && (c==0xef || c==0xbb || c==0xbf)) {
+			// byte order mark
+			return;
+		}
+		boolean inObject = depth>0 && objects[depth - 1];
+
+		switch (c) {
+			case '{':
+			case '[':
+				if (inObject && expectKey) {
+					throw malformed("member with no name");
+				}
+				push(c=='{');
+				expectKey = c=='{';
+				return;
+
+			case '}':
+			case ']':
+				if (depth==0 || objects[depth - 1]!=(c=='}')) {
+					throw malformed("unexpected '" + (char) c + "'");
+				}
+				pop();
+				expectKey = false;
+				if (depth==0) {
+					state = State.DONE;
+				}
+				return;
+
+			case ',':
+				expectKey = inObject;
+				return;
+
+			case ':':
+				expectKey = false;
+				return;
+
+			case '"':
+				if (inObject && expectKey) {
+					use = USE_KEY;
+					keyLength = 0;
+				} else {
+					startValue(true);
+				}
+				state = State.STRING;
+				return;
+
+			default:
+				if (inObject && expectKey) {
+					throw malformed("member name not quoted");
+				}
+				startValue(false);
+				state = State.BARE;
+				bare(c);
+		}
+	}
+
+	/**
+	 * Work out what a string (if quoted) or bare value is for.
+	 */
+	private void startValue(boolean quoted) {
+
+		use = USE_NONE;
+		int entry = depth>0 && objects[depth - 1] ? roles[depth - 1] : IGNORED;
+		if (entry>=0) {
+			if (key==KEY_TITLE && titleStart[entry]<0) {
+				if (quoted) {
+					use = USE_TITLE;
+					titleStart[entry] = textLength;
+				} else {
+					use = USE_BARE_TITLE;
+				}
+			} else if (key==KEY_PAGE || key==KEY_LEVEL) {
+				use = USE_NUMBER;
+				numberPhase = NUM_START;
+				mantissa = 0;
+				fractionDigits = 0;
+				exponent = 0;
+				exponentNegative = false;
+			}
+		}
+		nullMatched = quoted ? -1 : 0;
+	}
+
+	/**
+	 * The next character of a bare value.
+	 */
+	private void bare(int c) {
+
+		if (use==USE_NUMBER) {
+			digit(c);
+		}
+		if (nullMatched>=0) {
+			nullMatched = nullMatched<NULL.length() && c==NULL.charAt(nullMatched) ? nullMatched + 1 : -1;
+		}
+	}
+
+	private void endValue() throws IOException {
+
+		int entry = depth>0 && objects[depth - 1] ? roles[depth - 1] : IGNORED;
+		switch (use) {
+			case USE_KEY:
+				key = key();
+				break;
+
+			case USE_TITLE:
+				titleLength[entry] = textLength - titleStart[entry];
+				break;
+
+			case USE_BARE_TITLE:
+				if (nullMatched!=NULL.length()) {
+					throw malformed("title is not a string");
+				}
+				break;
+
+			case USE_NUMBER:
+				if (nullMatched==NULL.length()) {
+					break;
+				}
+				long n = number();
+				if (key==KEY_PAGE) {
+					if (n<1) {
+						throw malformed("bad page number");
+					}
+					page[entry] = (int) n - 1;
+				} else {
+					// a level of 0 is taken as the top
+					level[entry] = n>0 ? (int) n - 1 : 0;
+				}
+				break;
+		}
+		use = USE_NONE;
+	}
+
+	/**
+	 * The next character of a number: digits, then perhaps a fraction,
+	 * then perhaps an exponent.  Anything else (a sign, say) makes it not
+	 * a number we want.
+	 */
+	private void digit(int c) {
+
+		boolean isDigit = c>='0' && c<='9';
+		switch (numberPhase) {
+			case NUM_START:
+			case NUM_INT:
+			case NUM_FRACTION_START:
+			case NUM_FRACTION:
+				if (isDigit) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa>MAX_MANTISSA) {
+						numberPhase = NUM_BAD;
+					} else if (numberPhase>=NUM_FRACTION_START) {
+						fractionDigits++;
+						numberPhase = NUM_FRACTION;
+					} else {
+						numberPhase = NUM_INT;
+					}
+				} else if (c=='.' && numberPhase==NUM_INT) {
+					numberPhase = NUM_FRACTION_START;
+				} else if ((c=='e' || c=='E') && (numberPhase==NUM_INT || numberPhase==NUM_FRACTION)) {
+					numberPhase = NUM_EXPONENT_START;
+				} else {
+					numberPhase = NUM_BAD;
+				}
+				break;
+
+			case NUM_EXPONENT_START:
+				if (c=='-' || c=='+') {
+					exponentNegative = c=='-';
+					numberPhase = NUM_EXPONENT_SIGN;
+					break;
+				}
+				// fall through
+			case NUM_EXPONENT_SIGN:
+			case NUM_EXPONENT:
+				if (isDigit) {
+					exponent = Math.min(exponent * 10 + (c - '0'), MAX_EXPONENT);
+					numberPhase = NUM_EXPONENT;
+				} else {
+					numberPhase = NUM_BAD;
+				}
+				break;
+		}
+	}
+
+	/**
+	 * @return the number just read
+	 * @throws IOException if it isn't a whole number from 0 to Integer.MAX_VALUE
+	 */
+	private long number() throws IOException {
+
+		if (numberPhase!=NUM_INT && numberPhase!=NUM_FRACTION && numberPhase!=NUM_EXPONENT) {
+			throw malformed("bad " + (key==KEY_PAGE ? "page" : "level") + " number");
+		}
+		long n = mantissa;
+		int scale = (exponentNegative ? -exponent : exponent) - fractionDigits;
+		for (; scale<0; scale++) {
+			if (n%10!=0) {
+				throw malformed((key==KEY_PAGE ? "page" : "level") + " is not a whole number");
+			}
+			n /= 10;
+		}
+		for (; scale>0 && n!=0 && n<=Integer.MAX_VALUE; scale--) {
+			n *= 10;
+		}
+		if (n>Integer.MAX_VALUE) {
+			throw malformed((key==KEY_PAGE ? "page" : "level") + " number too large");
+		}
+		return n;
+	}
+
+	private void append(int c) {
+
+		switch (use) {
+			case USE_KEY:
+				if (c<0x10000 && keyLength<MAX_KEY_LENGTH) {
+					keyChars[keyLength++] = (char) c;
+				} else {
+					// too long to be one we want
+					keyLength = MAX_KEY_LENGTH + 1;
+				}
+				break;
+
+			case USE_TITLE:
+				if (c>=0x10000) {
+					appendText((char) (((c - 0x10000) >>> 10) + 0xd800));
+					appendText((char) ((c & 0x3ff) + 0xdc00));
+				} else {
+					appendText((char) c);
+				}
+				break;
+
+			case USE_NUMBER:
+				digit(c);
+				break;
+		}
+	}
+
+	private void appendText(char c) {
+
+		if (textLength==text.length) {
+			text = Arrays.copyOf(text, text.length * 2);
+		}
+		text[textLength++] = c;
+	}
+
+	/**
+	 * @return which member the name in keyChars is
+	 */
+	private int key() {
+
+		if (isKey("title") || isKey("text") || isKey("name") || isKey("label") || isKey("heading")) {
+			return KEY_TITLE;
+		}
+		if (isKey("page") || isKey("pageNumber") || isKey("pageNum") || isKey("pageNo")) {
+			return KEY_PAGE;
+		}
+		if (isKey("level") || isKey("depth") || isKey("outlineLevel")) {
+			return KEY_LEVEL;
+		}
+		return KEY_OTHER;
+	}
+
+	private boolean isKey(String name) {
+
+		if (keyLength!=name.length()) {
+			return false;
+		}
+		for (int i = 0; i<keyLength; i++) {
+			if (keyChars[i]!=name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void push(boolean object) {
+
+		int role;
+		if (depth==0) {
+			role = object ? WRAPPER : 0;
+		} else {
+			int parent = roles[depth - 1];
+			if (objects[depth - 1]) {
+				if (parent==WRAPPER) {
+					role = object ? WRAPPER : 0;
+				} else if (parent>=0 && !object) {
+					// children
+					role = level[parent] + 1;
+				} else {
+					role = IGNORED;
+				}
+			} else {
+				role = parent>=0 && object ? newEntry(parent) : IGNORED;
+			}
+		}
+
+		if (depth==objects.length) {
+			objects = Arrays.copyOf(objects, depth * 2);
+			roles = Arrays.copyOf(roles, depth * 2);
+		}
+		objects[depth] = object;
+		roles[depth] = role;
+		depth++;
+		key = KEY_OTHER;
+	}
+
+	private void pop() {
+
+		depth--;
+		int entry = roles[depth];
+		if (objects[depth] && entry>=0 && entry==size - 1
+				&& titleStart[entry]<0 && page[entry]<0) {
+			// nothing to show, and no children: not an entry after all
+			size--;
+		}
+	}
+
+	private int newEntry(int entryLevel) {
+
+		if (size==level.length) {
+			int n = size * 2;
+			titleStart = Arrays.copyOf(titleStart, n);
+			titleLength = Arrays.copyOf(titleLength, n);
+			level = Arrays.copyOf(level, n);
+			page = Arrays.copyOf(page, n);
+		}
+		titleStart[size] = -1;
+		titleLength[size] = 0;
+		level[size] = entryLevel;
+		page[size] = -1;
+		return size++;
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c==' ' || c=='\t' || c=='\n' || c=='\r';
+	}
+
+	private IOException malformed(String problem) {
+		return new IOException("Malformed TOC at byte " + position + ": " + problem);
+	}
+
+	/**
+	 * @return the entries parsed so far (all of them, once closed); the 
+	 * title of the last may be incomplete until then
+	 */
+	public Outline getOutline() {
+
+		int[] starts = Arrays.copyOf(titleStart, size);
+		int[] lengths = Arrays.copyOf(titleLength, size);
+		if (use==USE_TITLE) {
+			int entry = roles[depth - 1];
+			lengths[entry] = textLength - starts[entry];
+		}
+		return new Outline(size, Arrays.copyOf(text, textLength), starts, lengths,
+				Arrays.copyOf(level, size), Arrays.copyOf(page, size));
+	}
+
+	/**
+	 * Check the whole TOC has been written.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (failure!=null) {
+			throw failure;
+		}
+		if (state==State.BARE && depth==0) {
+			endValue();
+			state = State.DONE;
+		}
+		if (state!=State.DONE) {
+			throw new EOFException("Unexpected end of TOC, at byte " + position);
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+
+/**
+ * Receives progress reports during a conversion.
+ *
+ * Reports are made on the thread performing the conversion, at most
+ * every ProgressListener.MIN_INTERVAL_MILLIS or so, plus one whenever
+ * the phase changes; so onProgress should return quickly.
+ */
+public interface ProgressListener {
+
+	/**
+	 * Reports about bytes sent or received are made at most this often.
+	 */
+	public static final long MIN_INTERVAL_MILLIS = 100;
+
+	public enum Phase {
+
+		/** Opening the connection to the endpoint */
+		CONNECTING,
+
+		/** Sending the document */
+		UPLOADING,
+
+		/** Document sent; waiting for the server to convert it */
+		AWAITING_SERVER,
+
+		/** Receiving the result */
+		DOWNLOADING,
+
+		/** The result has been written to the OutputStream */
+		DONE
+	}
+
+	public void onProgress(ConversionProgress progress);
+
+}
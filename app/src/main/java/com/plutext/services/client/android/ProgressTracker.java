@@ -0,0 +1,273 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+
+/**
+ * Tracks the bytes sent and received by one conversion, and reports them to
+ * a ProgressListener, throttled to one report per MIN_INTERVAL_MILLIS
+ * (plus one per phase change).  Also notes when each phase starts,
+ * for ConversionTimings.
+ *
+ * Not thread safe; a conversion is performed by one thread at a time
+ * (though with an asynchronous Transport, not always the same one).
+ */
+class ProgressTracker {
+
+	/**
+	 * Weight given to the latest sample in the smoothed transfer rate.
+	 */
+	private static final double RATE_ALPHA = 0.3;
+
+	private static final long MIN_INTERVAL_NANOS = ProgressListener.MIN_INTERVAL_MILLIS * 1000000;
+
+	private final ProgressListener listener;
+
+	private ProgressListener.Phase phase = null;
+	private long bytesSent;
+	private long bytesToSend = -1;
+	private long bytesReceived;
+	private long bytesToReceive = -1;
+
+	private double bytesPerSecond;
+	private long lastReportNanos;
+	private long lastReportBytes;
+
+	// bytes sent and received by earlier attempts
+	private long bytesSentBefore;
+	private long bytesReceivedBefore;
+
+	private int attempts = 0;
+	private long firstStartNanos;
+	// when each phase started in the current attempt, and which it has reached
+	private final long[] phaseStartNanos = new long[ProgressListener.Phase.values().length];
+	private final boolean[] phaseReached = new boolean[ProgressListener.Phase.values().length];
+
+
+	/**
+	 * @param listener may be null, in which case nothing is reported
+	 */
+	ProgressTracker(ProgressListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Start (or, for a retry, restart) the conversion.
+	 *
+	 * @param bytesToSend size of the upload, or -1 if not known
+	 */
+	void start(long bytesToSend) {
+
+		if (attempts++==0) {
+			firstStartNanos = System.nanoTime();
+		}
+		Arrays.fill(phaseReached, false);
+
+		this.phase = null;
+		bytesSentBefore += bytesSent;
+		bytesReceivedBefore += bytesReceived;
+		this.bytesSent = 0;
+		this.bytesToSend = bytesToSend;
+		this.bytesReceived = 0;
+		this.bytesToReceive = -1;
+		phase(ProgressListener.Phase.CONNECTING);
+	}
+
+	void phase(ProgressListener.Phase phase) {
+
+		if (this.phase==phase) {
+			return;
+		}
+		long now = System.nanoTime();
+		this.phase = phase;
+		phaseStartNanos[phase.ordinal()] = now;
+		phaseReached[phase.ordinal()] = true;
+		bytesPerSecond = 0;
+		lastReportBytes = transferred();
+		report(now);
+	}
+
+	/**
+	 * @return how long the current attempt waited between sending the whole
+	 * request and the response starting (the time to first byte, which 
+	 * unlike the whole attempt doesn't grow with the size of the document
+	 * and its result), or -1 if it didn't go through both phases
+	 */
+	long serverMillis() {
+		return between(ProgressListener.Phase.AWAITING_SERVER, ProgressListener.Phase.DOWNLOADING);
+	}
+
+	/**
+	 * @return the timings of a conversion which has reached Phase.DONE; the
+	 * phases are those of its last attempt, but the bytes are of them all
+	 */
+	ConversionTimings timings(Format fromFormat, Format toFormat) {
+
+		return new ConversionTimings(fromFormat, toFormat,
+				between(ProgressListener.Phase.CONNECTING, ProgressListener.Phase.UPLOADING),
+				between(ProgressListener.Phase.UPLOADING, ProgressListener.Phase.AWAITING_SERVER),
+				between(ProgressListener.Phase.AWAITING_SERVER, ProgressListener.Phase.DOWNLOADING),
+				between(ProgressListener.Phase.DOWNLOADING, ProgressListener.Phase.DONE),
+				(phaseStartNanos[ProgressListener.Phase.DONE.ordinal()] - firstStartNanos) / 1000000,
+				bytesSentBefore + bytesSent, bytesReceivedBefore + bytesReceived, attempts);
+	}
+
+	/**
+	 * @return the millis from the start of phase from to that of phase to in
+	 * the current attempt, or -1 if it didn't reach both (a resumed download
+	 * is sent no body, say, so has no UPLOADING)
+	 */
+	private long between(ProgressListener.Phase from, ProgressListener.Phase to) {
+
+		if (!phaseReached[from.ordinal()] || !phaseReached[to.ordinal()]) {
+			return -1;
+		}
+		return (phaseStartNanos[to.ordinal()] - phaseStartNanos[from.ordinal()]) / 1000000;
+	}
+
+	/**
+	 * @param bytesToReceive size of the result, or -1 if not known
+	 */
+	void downloading(long bytesToReceive) {
+		this.bytesToReceive = bytesToReceive;
+		phase(ProgressListener.Phase.DOWNLOADING);
+	}
+
+	void sent(long n) {
+		bytesSent += n;
+		maybeReport();
+	}
+
+	void received(long n) {
+		bytesReceived += n;
+		maybeReport();
+	}
+
+	private long transferred() {
+		return phase==ProgressListener.Phase.DOWNLOADING ? bytesReceived : bytesSent;
+	}
+
+	private void maybeReport() {
+
+		if (listener==null) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		long elapsed = now - lastReportNanos;
+		if (elapsed<MIN_INTERVAL_NANOS) {
+			return;
+		}
+
+		long transferred = transferred();
+		double sample = (transferred - lastReportBytes) * 1e9 / elapsed;
+		bytesPerSecond = (bytesPerSecond==0) ? sample
+				: RATE_ALPHA * sample + (1 - RATE_ALPHA) * bytesPerSecond;
+		lastReportBytes = transferred;
+
+		report(now);
+	}
+
+	private void report(long now) {
+
+		lastReportNanos = now;
+		if (listener!=null) {
+			listener.onProgress(new ConversionProgress(phase, bytesSent, bytesToSend,
+					bytesReceived, bytesToReceive, bytesPerSecond));
+		}
+	}
+
+
+	/**
+	 * Wrap the stream the document is uploaded to.
+	 */
+	OutputStream trackUpload(OutputStream out) {
+
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				sent(1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				sent(len);
+			}
+		};
+	}
+
+	/**
+	 * Wrap the channel the document is uploaded from.
+	 */
+	ReadableByteChannel trackUpload(final ReadableByteChannel in) {
+
+		return new ReadableByteChannel() {
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				int n = in.read(dst);
+				if (n>0) {
+					sent(n);
+				}
+				return n;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return in.isOpen();
+			}
+
+			@Override
+			public void close() throws IOException {
+				in.close();
+			}
+		};
+	}
+
+	/**
+	 * Wrap the stream the result is downloaded to, as received
+	 * (that is, before any decompression).
+	 */
+	OutputStream trackDownload(OutputStream out) {
+
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				received(1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				received(len);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,754 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * The document being uploaded, however the caller supplied it.
+ */
+abstract class RequestBody {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The most peek can be asked for.
+	 */
+	static final int PEEK_SIZE = 4096;
+
+	/**
+	 * @return the number of bytes writeTo will write, or -1 if not known
+	 * (in which case the body is sent chunked)
+	 */
+	abstract long length();
+
+	/**
+	 * @return whether writeTo can be called again, to retry the upload
+	 */
+	abstract boolean isRepeatable();
+
+	abstract void writeTo(OutputStream out) throws IOException;
+
+	/**
+	 * A channel to read the body from, for a Transport which pulls it rather
+	 * than having it written to it.  Like writeTo, this can only be called
+	 * again if the body is repeatable.  Closing the channel releases only 
+	 * what it opened, not a stream or channel the caller supplied.
+	 */
+	abstract ReadableByteChannel channel() throws IOException;
+
+	/**
+	 * Up to n bytes from the start of the body (fewer if it's shorter),
+	 * without consuming them, so that writeTo and channel() still send
+	 * the whole body.  n must be at most PEEK_SIZE.
+	 */
+	abstract byte[] peek(int n) throws IOException;
+
+	/**
+	 * Up to n bytes from the end of the body, or null if they can't be
+	 * had without reading the whole of it (from a stream, say).
+	 */
+	byte[] tail(int n) throws IOException {
+		return null;
+	}
+
+	/**
+	 * @return the file the body is read from, or null if it isn't one
+	 */
+	File file() {
+		return null;
+	}
+
+	/**
+	 * Free anything held by this body, once the conversion is finished.
+	 */
+	void release() {
+	}
+
+	/**
+	 * A body which is repeatable, copying this one to a temporary file in dir
+	 * if it isn't.  The copy is deleted by release().
+	 */
+	RequestBody repeatable(File dir) throws IOException {
+
+		if (isRepeatable()) {
+			return this;
+		}
+
+		final File spool = File.createTempFile("upload", ".tmp", dir);
+		boolean ok = false;
+		try {
+			OutputStream out = new FileOutputStream(spool);
+			try {
+				writeTo(out);
+			} finally {
+				out.close();
+			}
+			ok = true;
+		} finally {
+			if (!ok) {
+				spool.delete();
+			}
+		}
+
+		return new FileBody(spool) {
+			@Override
+			void release() {
+				spool.delete();
+			}
+		};
+	}
+
+	/**
+	 * This body, but with a release() which does nothing, so that it can be
+	 * sent by one conversion after another (it must be repeatable); its 
+	 * owner releases it once they are all done.
+	 */
+	RequestBody retained() {
+
+		final RequestBody body = this;
+		return new RequestBody() {
+			@Override
+			long length() {
+				return body.length();
+			}
+
+			@Override
+			boolean isRepeatable() {
+				return body.isRepeatable();
+			}
+
+			@Override
+			void writeTo(OutputStream out) throws IOException {
+				body.writeTo(out);
+			}
+
+			@Override
+			ReadableByteChannel channel() throws IOException {
+				return body.channel();
+			}
+
+			@Override
+			byte[] peek(int n) throws IOException {
+				return body.peek(n);
+			}
+
+			@Override
+			byte[] tail(int n) throws IOException {
+				return body.tail(n);
+			}
+
+			@Override
+			File file() {
+				return body.file();
+			}
+		};
+	}
+
+	/**
+	 * This body gzip'd, in a temporary file in dir.  Compressing it up front,
+	 * rather than as it's sent, means the compressed length is known, so any 
+	 * Transport can send it with a Content-Length.  The result is repeatable;
+	 * its release() deletes the file, and releases this body.
+	 */
+	RequestBody gzipped(File dir) throws IOException {
+
+		final File spool = File.createTempFile("upload", ".gz", dir);
+		boolean ok = false;
+		try {
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(spool), BUFFER_SIZE);
+			try {
+				writeTo(out);
+			} finally {
+				out.close();
+			}
+			ok = true;
+		} finally {
+			if (!ok) {
+				spool.delete();
+			}
+		}
+
+		return new FileBody(spool) {
+			@Override
+			void release() {
+				spool.delete();
+				RequestBody.this.release();
+			}
+		};
+	}
+
+	/**
+	 * This body (a DOCX) slimmed by slimmer, in a temporary file in dir.  If
+	 * that turns out no smaller, this body is used as it is (provided it can
+	 * still be sent).  The result is repeatable; its release() deletes the 
+	 * file, and releases this body.
+	 */
+	RequestBody slimmed(DocxSlimmer slimmer, File dir) throws IOException {
+
+		final File spool = File.createTempFile("upload", ".docx", dir);
+		boolean ok = false;
+		try {
+			OutputStream out = new FileOutputStream(spool);
+			try {
+				if (file()!=null) {
+					slimmer.slim(file(), out);
+				} else {
+					ReadableByteChannel in = channel();
+					try {
+						slimmer.slim(Channels.newInputStream(in), out);
+					} finally {
+						in.close();
+					}
+				}
+			} finally {
+				out.close();
+			}
+			ok = true;
+		} finally {
+			if (!ok) {
+				spool.delete();
+			}
+		}
+
+		long length = length();
+		if (isRepeatable() && length>=0 && spool.length()>=length) {
+			spool.delete();
+			return this;
+		}
+
+		return new FileBody(spool) {
+			@Override
+			void release() {
+				spool.delete();
+				RequestBody.this.release();
+			}
+		};
+	}
+
+
+	static RequestBody of(File f) {
+		return new FileBody(f);
+	}
+
+	static RequestBody of(InputStream instream) {
+		return new InputStreamBody(instream);
+	}
+
+	static RequestBody of(byte[] bytesIn) {
+		return new ByteArrayBody(bytesIn);
+	}
+
+	static RequestBody of(ByteBuffer bufferIn) {
+		return new ByteBufferBody(bufferIn);
+	}
+
+	static RequestBody of(ReadableByteChannel channelIn, long length) {
+		return new ChannelBody(channelIn, length);
+	}
+
+	/**
+	 * Copy what's left of src to out.  A buffer with a backing array is 
+	 * written straight from it; otherwise (a direct or mapped buffer) it
+	 * goes through one small scratch array, since an OutputStream only 
+	 * takes byte[].  src's position is left as it was.
+	 */
+	static void write(ByteBuffer src, OutputStream out) throws IOException {
+
+		if (src.hasArray()) {
+			out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+			return;
+		}
+
+		ByteBuffer buffer = src.duplicate();
+		byte[] chunk = new byte[Math.min(BUFFER_SIZE, buffer.remaining())];
+		while (buffer.hasRemaining()) {
+			int n = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+		}
+	}
+
+
+	/**
+	 * Read up to n bytes from channel at position, without moving its position.
+	 */
+	static byte[] read(FileChannel channel, long position, int n) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(n);
+		while (buffer.hasRemaining()
+				&& channel.read(buffer, position + buffer.position())>0) {
+			// keep reading
+		}
+		return Arrays.copyOf(buffer.array(), buffer.position());
+	}
+
+	static byte[] head(ByteBuffer src, int n) {
+
+		byte[] head = new byte[Math.min(n, src.remaining())];
+		src.duplicate().get(head);
+		return head;
+	}
+
+	static byte[] tail(ByteBuffer src, int n) {
+
+		ByteBuffer buffer = src.duplicate();
+		byte[] tail = new byte[Math.min(n, buffer.remaining())];
+		buffer.position(buffer.limit() - tail.length);
+		buffer.get(tail);
+		return tail;
+	}
+
+
+	static class FileBody extends RequestBody {
+
+		private final File f;
+
+		FileBody(File f) {
+			this.f = f;
+		}
+
+		@Override
+		long length() {
+			return f.length();
+		}
+
+		@Override
+		boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		File file() {
+			return f;
+		}
+
+		/**
+		 * Copy the file through a small buffer.  (FileChannel.transferTo to
+		 * a stream's channel would map the whole file, then copy it into a 
+		 * heap array of the same size.)  Exactly length() bytes are written,
+		 * since that's what the connection was told to expect.
+		 */
+		@Override
+		void writeTo(OutputStream out) throws IOException {
+
+			FileInputStream is = new FileInputStream(f);
+			try {
+				long count = length();
+				long n = ByteStreams.copy(ByteStreams.limit(is, count), out);
+				if (n < count) {
+					throw new IOException(f + " was truncated during upload");
+				}
+			} finally {
+				is.close();
+			}
+		}
+
+		@Override
+		ReadableByteChannel channel() throws IOException {
+			return new FileInputStream(f).getChannel();
+		}
+
+		@Override
+		byte[] peek(int n) throws IOException {
+
+			FileInputStream is = new FileInputStream(f);
+			try {
+				return read(is.getChannel(), 0, n);
+			} finally {
+				is.close();
+			}
+		}
+
+		@Override
+		byte[] tail(int n) throws IOException {
+
+			FileInputStream is = new FileInputStream(f);
+			try {
+				FileChannel channel = is.getChannel();
+				return read(channel, Math.max(0, channel.size() - n), n);
+			} finally {
+				is.close();
+			}
+		}
+	}
+
+	static class InputStreamBody extends RequestBody {
+
+		private final PushbackInputStream instream;
+
+		InputStreamBody(InputStream instream) {
+			this.instream = new PushbackInputStream(instream, PEEK_SIZE);
+		}
+
+		@Override
+		long length() {
+			return -1;
+		}
+
+		@Override
+		boolean isRepeatable() {
+			return false;
+		}
+
+		@Override
+		void writeTo(OutputStream out) throws IOException {
+			ByteStreams.copy(instream, out);
+		}
+
+		@Override
+		ReadableByteChannel channel() {
+			return Channels.newChannel(new FilterInputStream(instream) {
+				@Override
+				public void close() {
+					// the caller's to close
+				}
+			});
+		}
+
+		@Override
+		byte[] peek(int n) throws IOException {
+
+			byte[] head = new byte[n];
+			int total = ByteStreams.read(instream, head, 0, n);
+			instream.unread(head, 0, total);
+			return Arrays.copyOf(head, total);
+		}
+	}
+
+	static class ByteArrayBody extends RequestBody {
+
+		private final byte[] bytesIn;
+
+		ByteArrayBody(byte[] bytesIn) {
+			this.bytesIn = bytesIn;
+		}
+
+		@Override
+		long length() {
+			return bytesIn.length;
+		}
+
+		@Override
+		boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		void writeTo(OutputStream out) throws IOException {
+			out.write(bytesIn);
+		}
+
+		@Override
+		ReadableByteChannel channel() {
+			return new BufferChannel(ByteBuffer.wrap(bytesIn));
+		}
+
+		@Override
+		byte[] peek(int n) {
+			return head(ByteBuffer.wrap(bytesIn), n);
+		}
+
+		@Override
+		byte[] tail(int n) {
+			return tail(ByteBuffer.wrap(bytesIn), n);
+		}
+	}
+
+	static class ByteBufferBody extends RequestBody {
+
+		private final ByteBuffer bufferIn;
+
+		ByteBufferBody(ByteBuffer bufferIn) {
+			this.bufferIn = bufferIn;
+		}
+
+		@Override
+		long length() {
+			return bufferIn.remaining();
+		}
+
+		@Override
+		boolean isRepeatable() {
+			return true; // write() doesn't move the position
+		}
+
+		@Override
+		void writeTo(OutputStream out) throws IOException {
+			write(bufferIn, out);
+		}
+
+		@Override
+		ReadableByteChannel channel() {
+			return new BufferChannel(bufferIn.duplicate());
+		}
+
+		@Override
+		byte[] peek(int n) {
+			return head(bufferIn, n);
+		}
+
+		@Override
+		byte[] tail(int n) {
+			return tail(bufferIn, n);
+		}
+	}
+
+	static class ChannelBody extends RequestBody {
+
+		private final ReadableByteChannel channelIn;
+		private final long length;
+
+		/**
+		 * A FileChannel can be rewound, so the upload is retried from here 
+		 */
+		private final long start;
+
+		/**
+		 * What peek read from a channel which can't be rewound, to be sent first
+		 */
+		private ByteBuffer peeked = null;
+
+		ChannelBody(ReadableByteChannel channelIn, long length) {
+			this.channelIn = channelIn;
+			this.length = length;
+			this.start = position(channelIn);
+		}
+
+		private static long position(ReadableByteChannel channel) {
+			if (channel instanceof FileChannel) {
+				try {
+					return ((FileChannel)channel).position();
+				} catch (IOException e) {
+					// treat as not repeatable
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		long length() {
+			return length;
+		}
+
+		@Override
+		boolean isRepeatable() {
+			return start >= 0;
+		}
+
+		@Override
+		void writeTo(OutputStream out) throws IOException {
+
+			ReadableByteChannel in = source();
+
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			long remaining = length < 0 ? Long.MAX_VALUE : length;
+			while (remaining > 0) {
+				buffer.clear();
+				if (remaining < buffer.capacity()) {
+					buffer.limit((int)remaining);
+				}
+				int n = in.read(buffer);
+				if (n < 0) {
+					if (length >= 0) {
+						throw new IOException("Channel ended " + remaining + " bytes short of " + length);
+					}
+					break;
+				}
+				out.write(buffer.array(), 0, n);
+				remaining -= n;
+			}
+		}
+
+		/**
+		 * channelIn, rewound if it's a FileChannel, or after what peek took from it
+		 */
+		private ReadableByteChannel source() throws IOException {
+
+			if (start >= 0) {
+				((FileChannel)channelIn).position(start);
+				return channelIn;
+			}
+			if (peeked == null || !peeked.hasRemaining()) {
+				return channelIn;
+			}
+
+			final ByteBuffer prefix = peeked;
+			return new ReadableByteChannel() {
+				@Override
+				public int read(ByteBuffer dst) throws IOException {
+
+					if (!prefix.hasRemaining()) {
+						return channelIn.read(dst);
+					}
+					int n = Math.min(dst.remaining(), prefix.remaining());
+					ByteBuffer slice = prefix.duplicate();
+					slice.limit(slice.position() + n);
+					dst.put(slice);
+					prefix.position(prefix.position() + n);
+					return n;
+				}
+
+				@Override
+				public boolean isOpen() {
+					return channelIn.isOpen();
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+
+		@Override
+		byte[] peek(int n) throws IOException {
+
+			if (length >= 0 && length < n) {
+				n = (int)length;
+			}
+			if (start >= 0) {
+				return read((FileChannel)channelIn, start, n);
+			}
+
+			if (peeked == null) {
+				peeked = ByteBuffer.allocate(n);
+				while (peeked.hasRemaining() && channelIn.read(peeked) > 0) {
+					// keep reading
+				}
+				peeked.flip();
+			}
+			return head(peeked, n);
+		}
+
+		@Override
+		byte[] tail(int n) throws IOException {
+
+			if (start < 0) {
+				return null;
+			}
+			FileChannel file = (FileChannel)channelIn;
+			long end = length >= 0 ? start + length : file.size();
+			return read(file, Math.max(start, end - n), (int)Math.min(n, end - start));
+		}
+
+		/**
+		 * channelIn, stopping after length bytes, and left open when closed
+		 */
+		@Override
+		ReadableByteChannel channel() throws IOException {
+
+			final ReadableByteChannel in = source();
+			return new ReadableByteChannel() {
+
+				private long remaining = length < 0 ? Long.MAX_VALUE : length;
+				private boolean open = true;
+
+				@Override
+				public int read(ByteBuffer dst) throws IOException {
+
+					if (remaining == 0) {
+						return -1;
+					}
+					int limit = dst.limit();
+					if (remaining < dst.remaining()) {
+						dst.limit(dst.position() + (int)remaining);
+					}
+					try {
+						int n = in.read(dst);
+						if (n < 0 && length >= 0) {
+							throw new IOException("Channel ended " + remaining + " bytes short of " + length);
+						}
+						if (n > 0) {
+							remaining -= n;
+						}
+						return n;
+					} finally {
+						dst.limit(limit);
+					}
+				}
+
+				@Override
+				public boolean isOpen() {
+					return open;
+				}
+
+				@Override
+				public void close() {
+					open = false;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Reads what's left of a buffer, without moving the position of the
+	 * buffer it was duplicated from.
+	 */
+	static class BufferChannel implements ReadableByteChannel {
+
+		private final ByteBuffer buffer;
+		private boolean open = true;
+
+		BufferChannel(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(dst.remaining(), buffer.remaining());
+			ByteBuffer slice = buffer.duplicate();
+			slice.limit(slice.position() + n);
+			dst.put(slice);
+			buffer.position(buffer.position() + n);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.io.IOException;
+
+
+/**
+ * A download couldn't be resumed, since what the endpoint now has at the
+ * result's location isn't the rest of the result we had part of.
+ */
+@SuppressWarnings("serial")
+public class ResultChangedException extends IOException {
+
+	public ResultChangedException(String msg) {
+		super(msg);
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.util.Random;
+
+
+/**
+ * How ConverterHttp retries a conversion which failed for a reason
+ * which may be temporary: a network error, or an HTTP 408, 429, 502,
+ * 503 or 504 response.  A conversion is never retried once any of the
+ * result has been written to the caller's OutputStream.
+ *
+ * The delay before retry n (counting from 1) is a random time between 0
+ * and initialBackoff * 2^(n-1), capped at maxBackoff ("full jitter"),
+ * so clients which failed together don't retry together.  A Retry-After
+ * header in the response overrides this, up to maxBackoff.
+ */
+public final class RetryPolicy {
+
+	/**
+	 * Don't retry.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+	/**
+	 * Up to 3 attempts, with backoff starting at 500ms, capped at 8s.
+	 */
+	public static final RetryPolicy DEFAULT = new RetryPolicy(3, 500, 8000);
+
+	private static final Random random = new Random();
+
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+
+
+	/**
+	 * @param maxAttempts total number of attempts, including the first
+	 * @param initialBackoffMillis upper bound of the delay before the first retry
+	 * @param maxBackoffMillis upper bound of any delay
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+
+		if (maxAttempts<1) {
+			throw new IllegalArgumentException("maxAttempts must be at least 1, was " + maxAttempts);
+		}
+		if (initialBackoffMillis<0 || maxBackoffMillis<initialBackoffMillis) {
+			throw new IllegalArgumentException("require 0 <= initialBackoffMillis <= maxBackoffMillis");
+		}
+
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public long getInitialBackoffMillis() {
+		return initialBackoffMillis;
+	}
+
+	public long getMaxBackoffMillis() {
+		return maxBackoffMillis;
+	}
+
+	/**
+	 * @param status HTTP response code
+	 * @return whether a response with this status is worth retrying
+	 */
+	public boolean isRetryableStatus(int status) {
+
+		switch (status) {
+			case 408: // Request Timeout
+			case 429: // Too Many Requests
+			case 502: // Bad Gateway
+			case 503: // Service Unavailable
+			case 504: // Gateway Timeout
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * @param retry which retry this is, counting from 1
+	 * @param retryAfterMillis delay requested by the server, or -1
+	 * @return how long to wait before it
+	 */
+	public long getDelayMillis(int retry, long retryAfterMillis) {
+
+		if (retryAfterMillis>=0) {
+			return Math.min(retryAfterMillis, maxBackoffMillis);
+		}
+
+		long ceiling = initialBackoffMillis;
+		for (int i = 1; i < retry && ceiling < maxBackoffMillis; i++) {
+			ceiling *= 2;
+		}
+		ceiling = Math.min(ceiling, maxBackoffMillis);
+
+		return (long) (random.nextDouble() * ceiling);
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy[maxAttempts=" + maxAttempts + ", backoff " + initialBackoffMillis
+				+ ".." + maxBackoffMillis + "ms]";
+	}
+
+}
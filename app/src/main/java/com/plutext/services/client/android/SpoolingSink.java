@@ -0,0 +1,355 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A FileSink which can be read while the result is still arriving.  Each
+ * Reader sees the bytes written so far, at any position, and a read past
+ * them waits for more (or for the end of the result).  So a viewer can
+ * start on a PDF before the download finishes.
+ *
+ * If the PDF is linearized, getLinearization() says where its first page
+ * ends, and whenFirstPageAvailable() completes once that much has arrived.
+ *
+ * <pre>
+ * SpoolingSink sink = new SpoolingSink(pdfFile);
+ * ListenableFuture&lt;Void&gt; conversion = converter.convertAsync(docx, Format.DOCX, Format.PDF, sink);
+ * Futures.addCallback(sink.whenFirstPageAvailable(), ...);
+ * </pre>
+ */
+public class SpoolingSink extends FileSink {
+
+	private final byte[] head = new byte[Linearization.HEAD_SIZE];
+	private final SettableFuture<Linearization> linearization = SettableFuture.create();
+
+	/**
+	 * Futures waiting for a length to be available.  Guarded by this.
+	 */
+	private final Map<SettableFuture<Long>, Long> waiting = new LinkedHashMap<SettableFuture<Long>, Long>();
+
+	private volatile long available = 0;
+
+	/**
+	 * Set once the result is committed or abandoned.  Guarded by this.
+	 */
+	private boolean finished = false;
+	private boolean abandoned = false;
+
+
+	/**
+	 * @param target file to write the result to; its directory must exist
+	 * @throws IOException if the temporary file can't be created
+	 */
+	public SpoolingSink(File target) throws IOException {
+		super(target);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		super.write(b, off, len);
+
+		long before = available;
+		if (before<head.length) {
+			int n = (int) Math.min(len, head.length - before);
+			System.arraycopy(b, off, head, (int) before, n);
+			if (before + n==head.length) {
+				linearization.set(Linearization.parse(head, head.length));
+			}
+		}
+
+		synchronized (this) {
+			available = before + len;
+			notifyAll();
+			Iterator<Map.Entry<SettableFuture<Long>, Long>> i = waiting.entrySet().iterator();
+			while (i.hasNext()) {
+				Map.Entry<SettableFuture<Long>, Long> entry = i.next();
+				if (entry.getValue()<=available) {
+					entry.getKey().set(available);
+					i.remove();
+				}
+			}
+		}
+	}
+
+	@Override
+	public File commit() throws IOException {
+
+		boolean ok = false;
+		try {
+			File target = super.commit();
+			ok = true;
+			return target;
+		} finally {
+			finish(!ok);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		try {
+			super.close();
+		} finally {
+			finish(true);
+		}
+	}
+
+	private void finish(boolean abandon) {
+
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			abandoned = abandon;
+			notifyAll();
+
+			for (SettableFuture<Long> future : waiting.keySet()) {
+				if (abandon) {
+					future.setException(new EOFException("Result abandoned after " + available + " bytes"));
+				} else {
+					future.set(available);
+				}
+			}
+			waiting.clear();
+		}
+
+		// a result shorter than the linearization dictionary could hold
+		if (abandon) {
+			linearization.setException(new EOFException("Result abandoned after " + available + " bytes"));
+		} else {
+			linearization.set(Linearization.parse(head, (int) Math.min(available, head.length)));
+		}
+	}
+
+	/**
+	 * @return number of bytes written so far
+	 */
+	@Override
+	public long getLength() {
+		return available;
+	}
+
+	/**
+	 * @return whether the result has been committed, or abandoned
+	 */
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return a future which completes with the result's linearization parameters
+	 * once its first Linearization.HEAD_SIZE bytes have arrived (with null if it
+	 * isn't linearized), or fails if the result is abandoned before then
+	 */
+	public ListenableFuture<Linearization> getLinearization() {
+		return Futures.nonCancellationPropagating(linearization);
+	}
+
+	/**
+	 * @return a future which completes with the number of bytes available once
+	 * there are at least length of them, or the result is committed shorter; 
+	 * it fails with an EOFException if the result is abandoned first
+	 */
+	public ListenableFuture<Long> whenAvailable(long length) {
+
+		SettableFuture<Long> future = SettableFuture.create();
+		synchronized (this) {
+			if (available>=length || (finished && !abandoned)) {
+				future.set(available);
+			} else if (finished) {
+				future.setException(new EOFException("Result abandoned after " + available + " bytes"));
+			} else {
+				waiting.put(future, length);
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * @return a future which completes with the result's linearization
+	 * parameters once its first page has arrived (with null, as soon as
+	 * that is known, if it isn't linearized)
+	 */
+	public ListenableFuture<Linearization> whenFirstPageAvailable() {
+
+		return Futures.transformAsync(getLinearization(), new AsyncFunction<Linearization, Linearization>() {
+			@Override
+			public ListenableFuture<Linearization> apply(final Linearization linearization) {
+
+				if (linearization==null) {
+					return Futures.immediateFuture(null);
+				}
+				return Futures.transform(whenAvailable(linearization.getFirstPageEnd()),
+						new Function<Long, Linearization>() {
+							@Override
+							public Linearization apply(Long available) {
+								return linearization;
+							}
+						}, MoreExecutors.directExecutor());
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	/**
+	 * @return a Reader positioned at the start of the result
+	 * @throws IOException if the result has been abandoned
+	 */
+	public Reader openReader() throws IOException {
+
+		File f;
+		synchronized (this) {
+			if (abandoned) {
+				throw new IOException("Result abandoned");
+			}
+			f = finished ? getTarget() : getTemporaryFile();
+		}
+		return new Reader(new RandomAccessFile(f, "r").getChannel());
+	}
+
+	/**
+	 * Wait until there are bytes beyond position, or the result is finished.
+	 *
+	 * @return the number of bytes available
+	 */
+	private synchronized long await(long position) throws IOException {
+
+		while (available<=position && !finished) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the result");
+			}
+		}
+		if (abandoned) {
+			throw new EOFException("Result abandoned after " + available + " bytes");
+		}
+		return available;
+	}
+
+
+	/**
+	 * A growing, seekable view of the result.  Reads from a position 
+	 * which hasn't arrived yet wait for it; reads past the end of the 
+	 * finished result return -1.  A Reader is for one thread at a time.
+	 */
+	public final class Reader implements ReadableByteChannel {
+
+		private final FileChannel channel;
+		private long position = 0;
+
+		private Reader(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		public long position() {
+			return position;
+		}
+
+		public Reader position(long position) {
+
+			if (position<0) {
+				throw new IllegalArgumentException("position must not be negative, was " + position);
+			}
+			this.position = position;
+			return this;
+		}
+
+		/**
+		 * @return the number of bytes which have arrived so far
+		 */
+		public long size() {
+			return available;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+
+			int n = read(dst, position);
+			if (n>0) {
+				position += n;
+			}
+			return n;
+		}
+
+		/**
+		 * Read from position, without changing this Reader's position.
+		 */
+		public int read(ByteBuffer dst, long position) throws IOException {
+
+			if (!channel.isOpen()) {
+				throw new ClosedChannelException();
+			}
+			if (!dst.hasRemaining()) {
+				return 0;
+			}
+
+			long end = await(position);
+			if (position>=end) {
+				return -1;
+			}
+
+			// don't read what's in the file, but not yet counted as available
+			int limit = dst.limit();
+			if (dst.remaining()>end - position) {
+				dst.limit(dst.position() + (int) (end - position));
+			}
+			try {
+				return channel.read(dst, position);
+			} finally {
+				dst.limit(limit);
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Writes to two streams.  Closing it doesn't close either, since they
+ * are closed by their owners.
+ */
+class TeeOutputStream extends OutputStream {
+
+	private final OutputStream a;
+	private final OutputStream b;
+
+	TeeOutputStream(OutputStream a, OutputStream b) {
+		this.a = a;
+		this.b = b;
+	}
+
+	@Override
+	public void write(int i) throws IOException {
+		a.write(i);
+		b.write(i);
+	}
+
+	@Override
+	public void write(byte[] buf, int off, int len) throws IOException {
+		a.write(buf, off, len);
+		b.write(buf, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		a.flush();
+		b.flush();
+	}
+}
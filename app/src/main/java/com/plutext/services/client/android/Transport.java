@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+
+
+/**
+ * Carries an Exchange (the upload of a document to an endpoint, and the
+ * response) over the network.  ConverterHttp decides what to send where,
+ * and what to do if it fails; the Transport just moves the bytes.
+ *
+ * @see UrlConnectionTransport
+ * @see NioTransport
+ */
+public interface Transport {
+
+	/**
+	 * Perform the exchange on the calling thread, returning once the
+	 * response has been written to it.
+	 *
+	 * @throws HttpStatusException if the endpoint responded with an HTTP error
+	 * @throws IOException
+	 */
+	void execute(Exchange exchange) throws IOException;
+
+	/**
+	 * Start the exchange, returning at once.  The future fails with the
+	 * IOException execute would have thrown.  Cancelling the exchange's 
+	 * CancellationSignal aborts it, as may cancelling the future.
+	 */
+	ListenableFuture<Void> executeAsync(Exchange exchange);
+
+	/**
+	 * Release the transport's threads and connections.  Exchanges in
+	 * progress may fail.
+	 */
+	void shutdown();
+
+}
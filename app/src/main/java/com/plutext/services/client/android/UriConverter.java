@@ -0,0 +1,213 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+
+
+/**
+ * Converts documents identified by a Uri, such as those returned by the
+ * document picker (ACTION_GET_CONTENT or ACTION_OPEN_DOCUMENT).
+ *
+ * The document is read straight from the descriptor ContentResolver.openFileDescriptor
+ * returns, so it needn't be a file on primary storage, or have a path at all.
+ * Where the provider knows the document's size, it is uploaded with a fixed length.
+ *
+ * For example, in an Activity:
+ *
+ * <pre>
+ * new UriConverter(converter, getContentResolver())
+ *         .convertAsync(uri, Format.DOCX, Format.PDF, os, null);
+ * </pre>
+ */
+public class UriConverter {
+
+	private final Converter converter;
+	private final ContentResolver resolver;
+	private final ListeningExecutorService executor;
+
+
+	/**
+	 * @param converter which performs the conversion
+	 * @param resolver to open Uris with
+	 */
+	public UriConverter(Converter converter, ContentResolver resolver) {
+		this(converter, resolver, null);
+	}
+
+	/**
+	 * @param converter which performs the conversion
+	 * @param resolver to open Uris with
+	 * @param executor to run convertAsync on; if null, the shared ConversionExecutor is used
+	 */
+	public UriConverter(Converter converter, ContentResolver resolver, ListeningExecutorService executor) {
+
+		if (converter==null) {
+			throw new IllegalArgumentException("converter must not be null");
+		}
+		if (resolver==null) {
+			throw new IllegalArgumentException("resolver must not be null");
+		}
+
+		this.converter = converter;
+		this.resolver = resolver;
+		this.executor = executor;
+	}
+
+
+	/**
+	 * Convert the document at uri fromFormat to toFormat, streaming result to OutputStream os.
+	 *
+	 * Opening the Uri may itself be slow (a cloud provider may download the
+	 * document first), so don't call this on the main thread.
+	 *
+	 * @param uri
+	 * @param fromFormat
+	 * @param toFormat
+	 * @param os
+	 * @param listener to receive progress reports, or null
+	 * @throws IOException if the Uri can't be opened
+	 * @throws ConversionException
+	 */
+	public void convert(Uri uri, Format fromFormat, Format toFormat, OutputStream os,
+			ProgressListener listener) throws IOException, ConversionException {
+		convert(uri, fromFormat, toFormat, os, listener, null);
+	}
+
+	/**
+	 * Convert the document at uri fromFormat to toFormat, streaming result to OutputStream os.
+	 *
+	 * Opening the Uri may itself be slow (a cloud provider may download the
+	 * document first), so don't call this on the main thread.
+	 *
+	 * @param uri
+	 * @param fromFormat
+	 * @param toFormat
+	 * @param os
+	 * @param listener to receive progress reports, or null
+	 * @param signal to cancel the conversion (including opening the Uri) with, or null
+	 * @throws IOException if the Uri can't be opened
+	 * @throws ConversionException
+	 */
+	public void convert(Uri uri, Format fromFormat, Format toFormat, OutputStream os,
+			ProgressListener listener, CancellationSignal signal) throws IOException, ConversionException {
+		convert(uri, fromFormat, toFormat, 0, 0, os, listener, signal);
+	}
+
+	/**
+	 * @param firstPage the first page to convert, or 0 to convert the whole document
+	 * @param lastPage the last page to convert
+	 * @see ConversionRequest#setPageRange(int, int)
+	 */
+	private void convert(Uri uri, Format fromFormat, Format toFormat, int firstPage, int lastPage, OutputStream os,
+			ProgressListener listener, CancellationSignal signal) throws IOException, ConversionException {
+
+		ParcelFileDescriptor pfd;
+		try {
+			pfd = resolver.openFileDescriptor(uri, "r", signal);
+		} catch (OperationCanceledException e) {
+			throw new ConversionCancelledException("Cancelled opening " + uri, e);
+		}
+		if (pfd==null) {
+			throw new ConversionException("Couldn't open " + uri);
+		}
+
+		// closing the stream closes pfd too
+		FileInputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+		try {
+			// -1 if the provider doesn't know (eg it's a pipe), so the upload is chunked
+			long length = pfd.getStatSize();
+
+			ConversionRequest request = new ConversionRequest(is.getChannel(), length, fromFormat, toFormat, os);
+			request.setProgressListener(listener);
+			request.setCancellationSignal(signal);
+			if (firstPage>0) {
+				request.setPageRange(firstPage, lastPage);
+			}
+			converter.convert(request);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Convert the document at uri fromFormat to toFormat on a background thread,
+	 * streaming result to OutputStream os.
+	 *
+	 * @param uri
+	 * @param fromFormat
+	 * @param toFormat
+	 * @param os
+	 * @param listener to receive progress reports, or null
+	 * @return a future which can be cancelled to abort the conversion
+	 */
+	public ListenableFuture<Void> convertAsync(Uri uri, Format fromFormat, Format toFormat,
+			OutputStream os, ProgressListener listener) {
+		return convertAsync(uri, fromFormat, toFormat, 0, 0, os, listener);
+	}
+
+	/**
+	 * Convert pages firstPage to lastPage (counting from 1) of the document
+	 * at uri on a background thread, streaming result to OutputStream os.
+	 *
+	 * @param uri
+	 * @param fromFormat
+	 * @param toFormat
+	 * @param firstPage the first page to convert, or 0 to convert the whole document
+	 * @param lastPage the last page to convert
+	 * @param os
+	 * @param listener to receive progress reports, or null
+	 * @return a future which can be cancelled to abort the conversion
+	 * @see ConversionRequest#setPageRange(int, int)
+	 */
+	public ListenableFuture<Void> convertAsync(final Uri uri, final Format fromFormat, final Format toFormat,
+			final int firstPage, final int lastPage, final OutputStream os, final ProgressListener listener) {
+
+		if (firstPage!=0 && (firstPage<1 || lastPage<firstPage)) {
+			throw new IllegalArgumentException("Bad page range " + firstPage + "-" + lastPage);
+		}
+
+		final CancellationSignal signal = new CancellationSignal();
+
+		ListeningExecutorService executor = this.executor==null ? ConversionExecutor.getDefault() : this.executor;
+		ListenableFuture<Void> future = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				convert(uri, fromFormat, toFormat, firstPage, lastPage, os, listener, signal);
+				return null;
+			}
+		});
+		AbstractConverter.cancelWith(future, signal);
+		return future;
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import android.os.CancellationSignal;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+
+/**
+ * A Transport using HttpURLConnection, which blocks a thread for the whole
+ * of each exchange.  HttpURLConnection keeps idle connections in a pool
+ * shared by the process; see ConverterHttp.configureConnectionPool.
+ *
+ * This is what ConverterHttp uses unless told otherwise.
+ */
+public class UrlConnectionTransport implements Transport {
+
+	private final ListeningExecutorService executor;
+
+
+	/**
+	 * Run asynchronous exchanges on the shared ConversionExecutor.
+	 */
+	public UrlConnectionTransport() {
+		this(null);
+	}
+
+	/**
+	 * @param executor to run asynchronous exchanges on; if null,
+	 * the shared ConversionExecutor is used
+	 */
+	public UrlConnectionTransport(ListeningExecutorService executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(Exchange exchange) throws IOException {
+
+		CancellationSignal signal = exchange.getCancellationSignal();
+		HttpURLConnection connection = null;
+		boolean consumed = false;
+		try {
+			//Create connection
+			connection = openConnection(exchange);
+
+			final HttpURLConnection toDisconnect = connection;
+			signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+				@Override
+				public void onCancel() {
+					// closes the socket, so a read or write blocked on it fails
+					toDisconnect.disconnect();
+				}
+			});
+
+			if (exchange.hasBody()) {
+				OutputStream out = openRequestBody(connection, exchange.getContentLength());
+				exchange.writeBody(out);
+				/* Avoid using BufferedOutputStream here, as in:
+					ByteStreams.copy(instream,
+							new BufferedOutputStream(connection.getOutputStream()));
+				*/
+				out.close();
+			}
+			exchange.requestSent();
+
+			//Get Response
+			int status = connection.getResponseCode();
+			OutputStream sink = exchange.responseHeaders(status, connection.getResponseMessage(),
+					connection.getHeaderFields());
+			readResponse(connection, status, sink);
+			consumed = true;
+
+			exchange.responseComplete();
+
+		} finally {
+
+			signal.setOnCancelListener(null);
+			if (connection!=null && !consumed) {
+				// We don't otherwise call disconnect(), since that closes the 
+				// underlying socket rather than letting the next request reuse it
+				connection.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Run execute on the executor.
+	 */
+	@Override
+	public ListenableFuture<Void> executeAsync(final Exchange exchange) {
+
+		return getExecutor().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				execute(exchange);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Nothing to do; the executor and the connection pool aren't ours.
+	 */
+	@Override
+	public void shutdown() {
+	}
+
+	private ListeningExecutorService getExecutor() {
+
+		if (executor==null) {
+			return ConversionExecutor.getDefault();
+		}
+		return executor;
+	}
+
+	private static HttpURLConnection openConnection(Exchange exchange) throws IOException {
+
+		URL url = new URL(exchange.getUrl());
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		connection.setRequestMethod(exchange.getMethod());
+
+		connection.setUseCaches (false);
+		connection.setDoInput(true);
+		connection.setDoOutput(exchange.hasBody());
+
+		// Having set Accept-Encoding ourselves (if we have), we get the 
+		// response as sent; the Exchange decompresses it
+		for (Map.Entry<String, String> header : exchange.getHeaders().entrySet()) {
+			connection.setRequestProperty(header.getKey(), header.getValue());
+		}
+
+		return connection;
+	}
+
+	/**
+	 * Set up the request body, returning the stream to write the document to.
+	 * The caller must close it, to complete the request.
+	 *
+	 * @param connection
+	 * @param length of the document, or -1 if not known
+	 */
+	private static OutputStream openRequestBody(HttpURLConnection connection, long length) throws IOException {
+
+		if (length<0) {
+			connection.setChunkedStreamingMode(0); // default size
+		} else {
+			connection.setFixedLengthStreamingMode(length);
+		}
+		return connection.getOutputStream();
+	}
+
+	/**
+	 * Copy the response body (or for an error, the error body) to sink,
+	 * reading it to the end and closing it, which is what lets 
+	 * HttpURLConnection return the socket to its pool.
+	 */
+	private static void readResponse(HttpURLConnection connection, int status, OutputStream sink) throws IOException {
+
+		InputStream is = status<400 ? connection.getInputStream() : connection.getErrorStream();
+		if (is==null) {
+			return; // no body
+		}
+		try {
+			ByteStreams.copy(is, sink);
+		} finally {
+			is.close();
+		}
+	}
+
+}
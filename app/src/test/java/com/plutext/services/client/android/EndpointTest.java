@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EndpointTest {
+
+	private static final long BASE_OPEN = 1000;
+	private static final long MAX_OPEN = 60000;
+
+	private final Endpoint endpoint = new Endpoint("http://localhost/convert");
+
+	@Test
+	public void unlimitedUntilItFails() {
+
+		for (int i = 0; i<200; i++) {
+			assertTrue(endpoint.tryAcquire(0));
+		}
+		assertEquals(-1, endpoint.getLimit());
+		assertEquals(200, endpoint.getInFlight());
+	}
+
+	@Test
+	public void firstFailureLimitsItToLessThanWasInFlight() {
+
+		acquire(8, 0);
+		endpoint.failed(0, BASE_OPEN, MAX_OPEN);
+
+		assertEquals((int) (8 * Endpoint.DECREASE), endpoint.getLimit());
+		assertEquals(7, endpoint.getInFlight());
+		assertFalse(endpoint.tryAcquire(0));
+
+		// each further failure cuts it again, down to MIN_LIMIT
+		for (int i = 0; i<7; i++) {
+			endpoint.failed(0, BASE_OPEN, MAX_OPEN);
+		}
+		assertEquals((int) Endpoint.MIN_LIMIT, endpoint.getLimit());
+	}
+
+	@Test
+	public void limitGrowsWhileUsedUntilUnlimitedAgain() {
+
+		acquire(4, 0);
+		endpoint.failed(0, BASE_OPEN, MAX_OPEN);
+		endpoint.finished();
+		endpoint.finished();
+		endpoint.finished();
+		assertEquals(3, endpoint.getLimit());
+
+		// used well below the limit, it doesn't grow
+		for (int i = 0; i<100; i++) {
+			assertTrue(endpoint.tryAcquire(0));
+			endpoint.succeeded(10);
+		}
+		assertEquals(3, endpoint.getLimit());
+
+		// kept full, it grows by about one per limit's worth of successes
+		int successes = 0;
+		while (endpoint.getLimit()!=-1 && successes<100000) {
+			while (endpoint.tryAcquire(0)) {
+				// fill it
+			}
+			endpoint.succeeded(10);
+			successes++;
+		}
+		assertEquals(-1, endpoint.getLimit());
+		assertTrue("took " + successes, successes>1000);
+		assertTrue(endpoint.tryAcquire(0));
+	}
+
+	@Test
+	public void circuitOpensOnceHalfTheRecentOutcomesAreFailures() {
+
+		for (int i = 0; i<Endpoint.MIN_OUTCOMES - 1; i++) {
+			acquire(1, 0);
+			assertFalse(endpoint.failed(0, BASE_OPEN, MAX_OPEN));
+		}
+		assertEquals(Endpoint.State.CLOSED, endpoint.getState(0));
+
+		acquire(1, 0);
+		assertTrue(endpoint.failed(0, BASE_OPEN, MAX_OPEN));
+		assertEquals(Endpoint.State.OPEN, endpoint.getState(0));
+		assertFalse(endpoint.tryAcquire(BASE_OPEN - 1));
+	}
+
+	@Test
+	public void circuitStaysClosedWhileMostlySucceeding() {
+
+		for (int i = 0; i<Endpoint.WINDOW; i++) {
+			acquire(1, 0);
+			if (i%3==0) {
+				assertFalse(endpoint.failed(0, BASE_OPEN, MAX_OPEN));
+			} else {
+				endpoint.succeeded(10);
+			}
+		}
+		assertEquals(Endpoint.State.CLOSED, endpoint.getState(0));
+	}
+
+	@Test
+	public void halfOpenLetsOneProbeThrough() {
+
+		open(0);
+
+		assertEquals(Endpoint.State.HALF_OPEN, endpoint.getState(BASE_OPEN));
+		assertTrue(endpoint.tryAcquire(BASE_OPEN));
+		assertFalse(endpoint.tryAcquire(BASE_OPEN));
+
+		endpoint.succeeded(10);
+		assertEquals(Endpoint.State.CLOSED, endpoint.getState(BASE_OPEN));
+		assertTrue(endpoint.tryAcquire(BASE_OPEN));
+	}
+
+	@Test
+	public void failedProbeOpensItForTwiceAsLong() {
+
+		open(0);
+
+		assertTrue(endpoint.tryAcquire(BASE_OPEN));
+		assertTrue(endpoint.failed(BASE_OPEN, BASE_OPEN, MAX_OPEN));
+		assertEquals(Endpoint.State.OPEN, endpoint.getState(BASE_OPEN));
+		assertEquals(Endpoint.State.OPEN, endpoint.getState(3 * BASE_OPEN - 1));
+		assertEquals(Endpoint.State.HALF_OPEN, endpoint.getState(3 * BASE_OPEN));
+	}
+
+	@Test
+	public void failureFromBeforeItOpenedDoesNotReopenIt() {
+
+		// all in flight at once, so the limit the first failure sets doesn't matter
+		acquire(Endpoint.MIN_OUTCOMES + 1, 0);
+		for (int i = 0; i<Endpoint.MIN_OUTCOMES - 1; i++) {
+			assertFalse(endpoint.failed(0, BASE_OPEN, MAX_OPEN));
+		}
+		assertTrue(endpoint.failed(0, BASE_OPEN, MAX_OPEN));
+
+		assertFalse(endpoint.failed(0, BASE_OPEN, MAX_OPEN));
+		assertEquals(Endpoint.State.HALF_OPEN, endpoint.getState(BASE_OPEN));
+	}
+
+	@Test
+	public void latencyIsAMovingAverageOfKnownTimes() {
+
+		acquire(3, 0);
+		endpoint.succeeded(100);
+		assertEquals(100, endpoint.getLatencyMillis(), 0.001);
+		endpoint.succeeded(200);
+		assertEquals(130, endpoint.getLatencyMillis(), 0.001);
+		endpoint.succeeded(-1);
+		assertEquals(130, endpoint.getLatencyMillis(), 0.001);
+	}
+
+
+	private void acquire(int n, long nowMillis) {
+		for (int i = 0; i<n; i++) {
+			assertTrue(endpoint.tryAcquire(nowMillis));
+		}
+	}
+
+	/**
+	 * Open the circuit at nowMillis, for BASE_OPEN
+	 */
+	private void open(long nowMillis) {
+
+		boolean opened = false;
+		for (int i = 0; i<Endpoint.MIN_OUTCOMES; i++) {
+			acquire(1, nowMillis);
+			opened = endpoint.failed(nowMillis, BASE_OPEN, MAX_OPEN);
+		}
+		assertTrue(opened);
+	}
+
+}
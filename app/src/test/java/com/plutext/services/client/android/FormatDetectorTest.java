@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FormatDetectorTest {
+
+	private static final byte[] OLE2_HEADER = {
+			(byte)0xD0, (byte)0xCF, 0x11, (byte)0xE0, (byte)0xA1, (byte)0xB1, 0x1A, (byte)0xE1};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void ole2IsDoc() throws IOException {
+
+		byte[] head = Arrays.copyOf(OLE2_HEADER, 512);
+		assertEquals(Format.DOC, FormatDetector.detect(head, null));
+		assertEquals(Format.DOC, FormatDetector.detect(write(head)));
+	}
+
+	@Test
+	public void docxWithContentTypesFirstIsDocx() throws IOException {
+
+		File docx = zip("[Content_Types].xml", "word/document.xml");
+		assertEquals(Format.DOCX, FormatDetector.detect(docx));
+	}
+
+	@Test
+	public void docxWithContentTypesLastIsFoundByItsTail() throws IOException {
+
+		// the first part is bigger than the head, so only the central directory names it
+		File docx = zip("word/document.xml", "[Content_Types].xml");
+		assertEquals(Format.DOCX, FormatDetector.detect(docx));
+	}
+
+	@Test
+	public void zipWithoutContentTypesIsNotDocx() throws IOException {
+
+		File zip = zip("word/document.xml", "readme.txt");
+		assertNull(FormatDetector.detect(zip));
+	}
+
+	@Test
+	public void zipIsGivenTheBenefitOfTheDoubtWithoutItsTail() {
+
+		byte[] head = {'P', 'K', 3, 4, 20, 0};
+		assertEquals(Format.DOCX, FormatDetector.detect(head, null));
+	}
+
+	@Test
+	public void garbageIsNeither() throws IOException {
+
+		byte[] garbage = new byte[10000];
+		new Random(1).nextBytes(garbage);
+		garbage[0] = 'G';
+		assertNull(FormatDetector.detect(garbage, garbage));
+		assertNull(FormatDetector.detect(write(garbage)));
+		assertNull(FormatDetector.detect("%PDF-1.4".getBytes("US-ASCII"), null));
+		assertNull(FormatDetector.detect(new byte[0], new byte[0]));
+	}
+
+
+	/**
+	 * @return a zip of the parts named, the first of them bigger than
+	 * FormatDetector.HEAD_SIZE, and stored, so that it stays that big
+	 */
+	private File zip(String... names) throws IOException {
+
+		byte[] big = new byte[FormatDetector.HEAD_SIZE * 4];
+		new Random(1).nextBytes(big);
+
+		File f = folder.newFile();
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f));
+		try {
+			for (int i = 0; i<names.length; i++) {
+				byte[] content = i==0 ? big : "<xml/>".getBytes("US-ASCII");
+				ZipEntry entry = new ZipEntry(names[i]);
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(content.length);
+				CRC32 crc = new CRC32();
+				crc.update(content);
+				entry.setCrc(crc.getValue());
+				out.putNextEntry(entry);
+				out.write(content);
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+
+	private File write(byte[] content) throws IOException {
+
+		File f = folder.newFile();
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MultipartDemultiplexerTest {
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private static final String PDF = "%PDF-1.4 body with \r\n-- and \r\n--bound in it";
+	private static final String TOC = "[{\"title\":\"One\",\"page\":1}]";
+
+	private static final String RESPONSE = "--boundary\r\n"
+			+ "Content-Type: application/pdf\r\n"
+			+ "\r\n"
+			+ PDF + "\r\n"
+			+ "--boundary\r\n"
+			+ "Content-Type: application/json; charset=UTF-8\r\n"
+			+ "\r\n"
+			+ TOC + "\r\n"
+			+ "--boundary--\r\n"
+			+ "epilogue";
+
+	private final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream toc = new ByteArrayOutputStream();
+
+	private MultipartDemultiplexer newDemultiplexer() {
+
+		MultipartDemultiplexer parts = new MultipartDemultiplexer(plain);
+		parts.addPart("application/pdf", pdf);
+		parts.addPart("Application/JSON", toc);
+		return parts;
+	}
+
+	@Test
+	public void partsGoToTheirSinks() throws IOException {
+
+		MultipartDemultiplexer parts = newDemultiplexer();
+		parts.write(RESPONSE.getBytes(LATIN1));
+		parts.close();
+
+		assertTrue(parts.isMultipart());
+		assertTrue(parts.hasReceived("application/pdf"));
+		assertTrue(parts.hasReceived("application/json"));
+		assertEquals(PDF, pdf.toString("ISO-8859-1"));
+		assertEquals(TOC, toc.toString("ISO-8859-1"));
+		assertEquals(0, plain.size());
+	}
+
+	@Test
+	public void boundaryMaySplitAcrossWrites() throws IOException {
+
+		byte[] response = RESPONSE.getBytes(LATIN1);
+		for (int split = 1; split<response.length; split++) {
+			pdf.reset();
+			toc.reset();
+			MultipartDemultiplexer parts = newDemultiplexer();
+			parts.write(response, 0, split);
+			parts.write(response, split, response.length - split);
+			parts.close();
+
+			assertEquals("split at " + split, PDF, pdf.toString("ISO-8859-1"));
+			assertEquals("split at " + split, TOC, toc.toString("ISO-8859-1"));
+		}
+	}
+
+	@Test
+	public void responseMayArriveByteByByte() throws IOException {
+
+		MultipartDemultiplexer parts = newDemultiplexer();
+		for (byte b : RESPONSE.getBytes(LATIN1)) {
+			parts.write(b);
+		}
+		parts.close();
+
+		assertEquals(PDF, pdf.toString("ISO-8859-1"));
+		assertEquals(TOC, toc.toString("ISO-8859-1"));
+	}
+
+	@Test
+	public void partsWithNoSinkAreSkipped() throws IOException {
+
+		MultipartDemultiplexer parts = new MultipartDemultiplexer(plain);
+		parts.addPart("application/json", toc);
+		parts.write(RESPONSE.getBytes(LATIN1));
+		parts.close();
+
+		assertFalse(parts.hasReceived("application/pdf"));
+		assertEquals(TOC, toc.toString("ISO-8859-1"));
+		assertEquals(0, plain.size());
+	}
+
+	@Test
+	public void missingCloseDelimiterFailsOnClose() throws IOException {
+
+		String truncated = RESPONSE.substring(0, RESPONSE.indexOf("--boundary--"));
+		MultipartDemultiplexer parts = newDemultiplexer();
+		parts.write(truncated.getBytes(LATIN1));
+		try {
+			parts.close();
+			fail("response without its close delimiter accepted");
+		} catch (EOFException e) {
+			// expected
+		}
+		assertEquals(PDF, pdf.toString("ISO-8859-1"));
+	}
+
+	@Test
+	public void malformedDelimiterIsRejected() throws IOException {
+
+		MultipartDemultiplexer parts = newDemultiplexer();
+		try {
+			parts.write("--boundary\r\n\r\nbody\r\n--boundaryX\r\n".getBytes(LATIN1));
+			fail("malformed delimiter accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void nonMultipartResponseGoesToPlainSink() throws IOException {
+
+		byte[] response = ("%PDF-1.4\r\n" + PDF).getBytes(LATIN1);
+		MultipartDemultiplexer parts = newDemultiplexer();
+		parts.write(response, 0, 3);
+		parts.write(response, 3, response.length - 3);
+		parts.close();
+
+		assertFalse(parts.isMultipart());
+		assertArrayEquals(response, plain.toByteArray());
+		assertEquals(0, pdf.size());
+	}
+
+	@Test
+	public void shortNonMultipartResponseGoesToPlainSink() throws IOException {
+
+		MultipartDemultiplexer parts = newDemultiplexer();
+		parts.write('-');
+		parts.close();
+
+		assertFalse(parts.isMultipart());
+		assertEquals("-", plain.toString("ISO-8859-1"));
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+ *  Copyright 2015-2016, Plutext Pty Ltd.
+ *   
+ *  This file is part of docx4j.
+
+    docx4j is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package com.plutext.services.client.android;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class OutlineParserTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void nestedEntriesTakeTheirLevelFromTheirDepth() throws IOException {
+
+		Outline outline = parse("{\"toc\":[{\"title\":\"One\",\"page\":1,\"children\":["
+				+ "{\"title\":\"One.1\",\"page\":2},{\"title\":\"One.2\",\"page\":3,\"items\":["
+				+ "{\"title\":\"One.2.1\",\"page\":3}]}]},{\"title\":\"Two\",\"page\":5}]}");
+
+		assertEquals(5, outline.size());
+		assertEntry(outline, 0, "One", 0, 0);
+		assertEntry(outline, 1, "One.1", 1, 1);
+		assertEntry(outline, 2, "One.2", 1, 2);
+		assertEntry(outline, 3, "One.2.1", 2, 2);
+		assertEntry(outline, 4, "Two", 0, 4);
+		assertEquals(0, outline.getParent(2));
+		assertEquals(2, outline.getParent(3));
+		assertEquals(4, outline.getEnd(0));
+		assertEquals(4, outline.getNextSibling(0));
+		assertEquals(-1, outline.getParent(4));
+	}
+
+	@Test
+	public void flatEntriesTakeTheirLevelFromTheirMembers() throws IOException {
+
+		Outline outline = parse("[{\"text\":\"A\",\"pageNumber\":\"1\",\"level\":1},"
+				+ "{\"heading\":\"B\",\"pageNo\":2,\"outlineLevel\":2},"
+				+ "{\"label\":\"C\",\"pageNum\":4,\"depth\":1,\"style\":\"Heading1\"}]");
+
+		assertEquals(3, outline.size());
+		assertEntry(outline, 0, "A", 0, 0);
+		assertEntry(outline, 1, "B", 1, 1);
+		assertEntry(outline, 2, "C", 0, 3);
+		assertEquals(0, outline.getParent(1));
+	}
+
+	@Test
+	public void escapesAndUtf8AreDecoded() throws IOException {
+
+		Outline outline = parse("[{\"title\":\"\\\"Quoted\\\"\\tand\\\\ \\u00e9\\ud83d\\ude00 caf\u00e9 \ud83d\ude00\",\"page\":1}]");
+
+		assertEquals("\"Quoted\"\tand\\ \u00e9\ud83d\ude00 caf\u00e9 \ud83d\ude00", outline.getTitle(0));
+	}
+
+	@Test
+	public void entriesWithNothingToShowAreSkipped() throws IOException {
+
+		Outline outline = parse("[{\"id\":7},{\"title\":\"Kept\",\"page\":null},{\"page\":2}]");
+
+		assertEquals(2, outline.size());
+		assertEntry(outline, 0, "Kept", 0, -1);
+		assertEquals(1, outline.getPage(1));
+	}
+
+	@Test
+	public void numbersMayHaveFractionsAndExponents() throws IOException {
+
+		Outline outline = parse("[{\"title\":\"a\",\"page\":1e2},{\"title\":\"b\",\"page\":2.0},"
+				+ "{\"title\":\"c\",\"page\":1.5E1},{\"title\":\"d\",\"page\":\"300e-2\"}]");
+
+		assertEquals(99, outline.getPage(0));
+		assertEquals(1, outline.getPage(1));
+		assertEquals(14, outline.getPage(2));
+		assertEquals(2, outline.getPage(3));
+	}
+
+	@Test
+	public void malformedPagesAreRejected() {
+
+		assertMalformed("[{\"title\":\"a\",\"page\":-1}]");
+		assertMalformed("[{\"title\":\"a\",\"page\":0}]");
+		assertMalformed("[{\"title\":\"a\",\"page\":1.5}]");
+		assertMalformed("[{\"title\":\"a\",\"page\":1e}]");
+		assertMalformed("[{\"title\":\"a\",\"page\":true}]");
+		assertMalformed("[{\"title\":\"a\",\"page\":\"two\"}]");
+		assertMalformed("[{\"title\":\"a\",\"page\":99999999999}]");
+		assertMalformed("[{\"title\":\"a\",\"level\":-2}]");
+	}
+
+	@Test
+	public void titlesMustBeStrings() {
+
+		assertMalformed("[{\"title\":true,\"page\":1}]");
+		assertMalformed("[{\"title\":3,\"page\":1}]");
+	}
+
+	@Test
+	public void malformedJsonIsRejected() {
+
+		assertMalformed("[{\"title\":\"a\"}}");
+		assertMalformed("[{title:\"a\"}]");
+		assertMalformed("[{\"title\":\"\\uzzzz\"}]");
+		assertMalformed("[] []");
+	}
+
+	@Test
+	public void truncatedTocFailsOnClose() throws IOException {
+
+		OutlineParser parser = new OutlineParser();
+		parser.write("[{\"title\":\"One\",\"page\":1},{\"title\":\"Tw".getBytes(UTF8));
+
+		// what has arrived so far is there already
+		Outline partial = parser.getOutline();
+		assertEquals(2, partial.size());
+		assertEquals("Tw", partial.getTitle(1));
+
+		try {
+			parser.close();
+			fail("truncated TOC accepted");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void tocMayArriveByteByByte() throws IOException {
+
+		byte[] json = "\ufeff[{\"title\":\"caf\u00e9\",\"page\":12}, {\"title\":\"B\",\"page\":1e1}]".getBytes(UTF8);
+		OutlineParser parser = new OutlineParser();
+		for (byte b : json) {
+			parser.write(b);
+		}
+		parser.close();
+
+		Outline outline = parser.getOutline();
+		assertEquals(2, outline.size());
+		assertEntry(outline, 0, "caf\u00e9", 0, 11);
+		assertEntry(outline, 1, "B", 0, 9);
+	}
+
+
+	private static Outline parse(String json) throws IOException {
+
+		OutlineParser parser = new OutlineParser();
+		parser.write(json.getBytes(UTF8));
+		parser.close();
+		return parser.getOutline();
+	}
+
+	private static void assertMalformed(String json) {
+
+		try {
+			parse(json);
+			fail("accepted " + json);
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static void assertEntry(Outline outline, int i, String title, int level, int page) {
+
+		assertEquals(title, outline.getTitle(i));
+		assertEquals(level, outline.getLevel(i));
+		assertEquals(page, outline.getPage(i));
+	}
+
+}
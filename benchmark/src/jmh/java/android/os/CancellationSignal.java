@@ -0,0 +1,48 @@
+package android.os;
+
+/**
+ * Stand-in for Android's CancellationSignal, so the client library runs on the JVM.
+ */
+public final class CancellationSignal {
+
+    public interface OnCancelListener {
+        void onCancel();
+    }
+
+    private boolean canceled;
+    private OnCancelListener listener;
+
+    public synchronized boolean isCanceled() {
+        return canceled;
+    }
+
+    public void cancel() {
+        OnCancelListener toNotify;
+        synchronized (this) {
+            if (canceled) {
+                return;
+            }
+            canceled = true;
+            toNotify = listener;
+        }
+        if (toNotify != null) {
+            toNotify.onCancel();
+        }
+    }
+
+    /**
+     * As on Android, the listener is called straight away if already canceled.
+     */
+    public void setOnCancelListener(OnCancelListener listener) {
+        synchronized (this) {
+            if (this.listener == listener) {
+                return;
+            }
+            this.listener = listener;
+            if (!canceled || listener == null) {
+                return;
+            }
+        }
+        listener.onCancel();
+    }
+}
@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * Stand-in for Android's Process, so the client library runs on the JVM.
+ */
+public final class Process {
+
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    private Process() {
+    }
+
+    public static void setThreadPriority(int priority) {
+        // thread priorities are left to the JVM
+    }
+}
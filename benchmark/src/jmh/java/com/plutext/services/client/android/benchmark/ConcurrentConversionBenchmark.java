@@ -0,0 +1,101 @@
+package com.plutext.services.client.android.benchmark;
+
+import com.plutext.services.client.android.ConverterHttp;
+import com.plutext.services.client.android.Format;
+import com.plutext.services.client.android.Http2Transport;
+import com.plutext.services.client.android.NioTransport;
+import com.plutext.services.client.android.RetryPolicy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures several conversions at once to one endpoint, over each
+ * Transport: HTTP/1.1 via HttpURLConnection or NioTransport (against a
+ * StubConverterServer), or HTTP/2 via Http2Transport (against an
+ * H2cStubConverterServer), where they share a connection.
+ *
+ * For HTTP/2, the number of connections the stub saw is printed at teardown.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+public class ConcurrentConversionBenchmark {
+
+    public enum Transport {
+        URL_CONNECTION, NIO, HTTP2
+    }
+
+    @Param({"URL_CONNECTION", "NIO", "HTTP2"})
+    public Transport transport;
+
+    // 100 KB and 1 MB
+    @Param({"102400", "1048576"})
+    public int size;
+
+    // each conversion takes this long on the server
+    private static final long DELAY_MILLIS = 20;
+
+    private StubConverterServer server;
+    private H2cStubConverterServer h2cServer;
+    private ConverterHttp converter;
+
+    private byte[] document;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        if (transport == Transport.HTTP2) {
+            h2cServer = new H2cStubConverterServer();
+            h2cServer.setDelayMillis(DELAY_MILLIS);
+            converter = new ConverterHttp(h2cServer.getEndpointURL());
+            converter.setTransport(new Http2Transport());
+        } else {
+            server = new StubConverterServer();
+            server.setDelayMillis(DELAY_MILLIS);
+            converter = new ConverterHttp(server.getEndpointURL());
+            if (transport == Transport.NIO) {
+                converter.setTransport(new NioTransport());
+            }
+        }
+        converter.setRetryPolicy(RetryPolicy.NONE);
+
+        document = ConverterHttpBenchmark.newDocument(size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        converter.getTransport().shutdown();
+        if (h2cServer != null) {
+            System.out.println();
+            System.out.println("connections: " + h2cServer.getConnectionCount());
+            h2cServer.stop();
+        } else {
+            server.stop();
+        }
+    }
+
+    @Benchmark
+    public long convert() throws Exception {
+
+        ConverterHttpBenchmark.CountingSink sink = new ConverterHttpBenchmark.CountingSink();
+        converter.convert(document, Format.DOCX, Format.PDF, sink);
+        return sink.count;
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.plutext.services.client.android.benchmark;
+
+import com.plutext.services.client.android.ConverterHttp;
+import com.plutext.services.client.android.Format;
+import com.plutext.services.client.android.NioTransport;
+import com.plutext.services.client.android.RetryPolicy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ConverterHttp's transfer path: each operation uploads a document
+ * of the given size to a StubConverterServer and downloads a "PDF" of the
+ * same size.
+ *
+ * The input parameter picks the convert overload, and so the upload
+ * streaming mode: INPUT_STREAM uploads chunked, the others with a fixed
+ * length.  DIRECT_BUFFER is the document in a direct ByteBuffer, as a
+ * caller holding a mapped file would pass it.  The response parameter picks
+ * whether the stub sends the result with a Content-Length or chunked, and
+ * the transport parameter whether ConverterHttp uses HttpURLConnection
+ * (the default) or a NioTransport.
+ *
+ * Run with the gc profiler (as configured in build.gradle) to see
+ * allocation rate per operation alongside throughput and latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConverterHttpBenchmark {
+
+    public enum Input {
+        FILE, INPUT_STREAM, BYTES, DIRECT_BUFFER
+    }
+
+    public enum Response {
+        FIXED_LENGTH, CHUNKED
+    }
+
+    public enum Transport {
+        URL_CONNECTION, NIO
+    }
+
+    // 10 KB to 100 MB
+    @Param({"10240", "102400", "1048576", "10485760", "104857600"})
+    public int size;
+
+    @Param({"FILE", "INPUT_STREAM", "BYTES", "DIRECT_BUFFER"})
+    public Input input;
+
+    @Param({"FIXED_LENGTH", "CHUNKED"})
+    public Response response;
+
+    @Param({"URL_CONNECTION", "NIO"})
+    public Transport transport;
+
+    private StubConverterServer server;
+    private ConverterHttp converter;
+
+    private byte[] document;
+    private ByteBuffer documentBuffer;
+    private File documentFile;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        server = new StubConverterServer();
+        server.setChunked(response == Response.CHUNKED);
+
+        converter = new ConverterHttp(server.getEndpointURL());
+        // with retries on, INPUT_STREAM uploads would be spooled to disk first
+        converter.setRetryPolicy(RetryPolicy.NONE);
+        if (transport == Transport.NIO) {
+            converter.setTransport(new NioTransport());
+        }
+
+        document = newDocument(size);
+
+        documentBuffer = ByteBuffer.allocateDirect(size);
+        documentBuffer.put(document);
+        documentBuffer.flip();
+
+        documentFile = File.createTempFile("benchmark", ".docx");
+        documentFile.deleteOnExit();
+        OutputStream out = new FileOutputStream(documentFile);
+        try {
+            out.write(document);
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        converter.getTransport().shutdown();
+        server.stop();
+        documentFile.delete();
+    }
+
+    @Benchmark
+    public long convert() throws Exception {
+
+        CountingSink sink = new CountingSink();
+        switch (input) {
+            case FILE:
+                converter.convert(documentFile, Format.DOCX, Format.PDF, sink);
+                break;
+            case INPUT_STREAM:
+                converter.convert(new ByteArrayInputStream(document), Format.DOCX, Format.PDF, sink);
+                break;
+            case BYTES:
+                converter.convert(document, Format.DOCX, Format.PDF, sink);
+                break;
+            case DIRECT_BUFFER:
+                converter.convert(documentBuffer, Format.DOCX, Format.PDF, sink);
+                break;
+        }
+        return sink.count;
+    }
+
+    /**
+     * A stand-in DOCX: incompressible, like the zip inside a real one, and
+     * starting with a zip entry for [Content_Types].xml, so that
+     * ConverterHttp's format detection takes it for one.
+     */
+    static byte[] newDocument(int size) {
+
+        byte[] document = new byte[size];
+        new Random(42).nextBytes(document);
+
+        byte[] name = "[Content_Types].xml".getBytes(Charset.forName("US-ASCII"));
+        ByteBuffer header = ByteBuffer.wrap(document).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x04034b50); // local file header signature
+        header.position(26);
+        header.putShort((short) name.length);
+        header.putShort((short) 0); // extra field length
+        header.put(name);
+        return document;
+    }
+
+    /**
+     * Discards the result, keeping only its length, so the benchmark
+     * measures the transfer rather than the caller's storage.
+     */
+    static class CountingSink extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
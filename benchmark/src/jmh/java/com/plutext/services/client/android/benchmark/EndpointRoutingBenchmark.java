@@ -0,0 +1,98 @@
+package com.plutext.services.client.android.benchmark;
+
+import com.plutext.services.client.android.ConverterHttp;
+import com.plutext.services.client.android.Format;
+import com.plutext.services.client.android.RetryPolicy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how ConverterHttp spreads conversions across several
+ * StubConverterServers, one of which is slow or failing, from several
+ * threads at once.  With latency-aware routing, throughput should stay
+ * close to what the healthy endpoints alone can manage.
+ *
+ * The endpoint status (circuit state, in flight and limit, latency) is printed at teardown.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+public class EndpointRoutingBenchmark {
+
+    public enum Degraded {
+        NONE, SLOW, FAILING
+    }
+
+    private static final int ENDPOINTS = 3;
+
+    // each healthy conversion takes this long on the server
+    private static final long DELAY_MILLIS = 20;
+
+    @Param({"NONE", "SLOW", "FAILING"})
+    public Degraded degraded;
+
+    private final List<StubConverterServer> servers = new ArrayList<StubConverterServer>();
+    private ConverterHttp converter;
+
+    private byte[] document;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        List<String> urls = new ArrayList<String>();
+        for (int i = 0; i < ENDPOINTS; i++) {
+            StubConverterServer server = new StubConverterServer();
+            server.setDelayMillis(DELAY_MILLIS);
+            servers.add(server);
+            urls.add(server.getEndpointURL());
+        }
+
+        StubConverterServer first = servers.get(0);
+        if (degraded == Degraded.SLOW) {
+            first.setDelayMillis(DELAY_MILLIS * 10);
+        } else if (degraded == Degraded.FAILING) {
+            first.setFailureStatus(503);
+        }
+
+        converter = new ConverterHttp(urls);
+        converter.setRetryPolicy(new RetryPolicy(ENDPOINTS, 0, 0));
+
+        document = ConverterHttpBenchmark.newDocument(10 * 1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println();
+        System.out.println(converter.getEndpointStatus());
+        for (StubConverterServer server : servers) {
+            server.stop();
+        }
+    }
+
+    @Benchmark
+    public long convert() throws Exception {
+
+        ConverterHttpBenchmark.CountingSink sink = new ConverterHttpBenchmark.CountingSink();
+        converter.convert(document, Format.DOCX, Format.PDF, sink);
+        return sink.count;
+    }
+
+}
@@ -0,0 +1,171 @@
+package com.plutext.services.client.android.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ServerSocketFactory;
+
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * In-process stand-in for the converter endpoint, speaking HTTP/2 without
+ * TLS (h2c, prior knowledge only), for Http2Transport.  Like
+ * StubConverterServer, it responds to each upload with a fabricated "PDF"
+ * of the same size (or of a fixed size), and counts the connections made
+ * to it, so multiplexing can be checked.
+ */
+public class H2cStubConverterServer {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] PDF_HEADER = "%PDF-1.4\n".getBytes(US_ASCII);
+    private static final byte[] PDF_TRAILER = "\n%%EOF\n".getBytes(US_ASCII);
+
+    private static final byte[] FILLER = new byte[64 * 1024];
+
+    static {
+        for (int i = 0; i < FILLER.length; i++) {
+            FILLER[i] = (byte) ('a' + i % 26);
+        }
+    }
+
+    // MockWebServer logs every request; held, so the level sticks
+    private static final Logger MOCK_WEB_SERVER_LOGGER = Logger.getLogger(MockWebServer.class.getName());
+
+    static {
+        MOCK_WEB_SERVER_LOGGER.setLevel(Level.WARNING);
+    }
+
+    private final MockWebServer server = new MockWebServer();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private volatile long responseSize = -1;
+    private volatile long delayMillis = 0;
+
+    public H2cStubConverterServer() throws IOException {
+
+        server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        server.setServerSocketFactory(new NoDelayServerSocketFactory());
+        // only the upload's size matters, so don't keep it
+        server.setBodyLimit(0);
+        server.setDispatcher(new ConvertDispatcher());
+        server.start(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    public String getEndpointURL() {
+        return "http://127.0.0.1:" + server.getPort() + "/convert";
+    }
+
+    /**
+     * @param responseSize bytes to respond with, or -1 to match the upload
+     */
+    public void setResponseSize(long responseSize) {
+        this.responseSize = responseSize;
+    }
+
+    /**
+     * @param delayMillis how long to "convert" for, after reading the upload
+     */
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * @return the number of connections made to the server so far
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public void stop() {
+        try {
+            server.shutdown();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Accepts connections with Nagle's algorithm off, as a real server's
+     * would be; otherwise small frames wait on the client's delayed ACKs.
+     */
+    private static class NoDelayServerSocketFactory extends ServerSocketFactory {
+
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new ServerSocket() {
+                @Override
+                public Socket accept() throws IOException {
+                    Socket socket = super.accept();
+                    socket.setTcpNoDelay(true);
+                    return socket;
+                }
+            };
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress ifAddress) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private class ConvertDispatcher extends Dispatcher {
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+
+            // numbered from 0 on each connection
+            if (request.getSequenceNumber() == 0) {
+                connections.incrementAndGet();
+            }
+            if (!"POST".equals(request.getMethod())) {
+                return new MockResponse().setResponseCode(405);
+            }
+
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+
+            long size = responseSize < 0 ? request.getBodySize() : responseSize;
+            size = Math.max(size, PDF_HEADER.length + PDF_TRAILER.length);
+
+            Buffer body = new Buffer();
+            body.write(PDF_HEADER);
+            long remaining = size - PDF_HEADER.length - PDF_TRAILER.length;
+            while (remaining > 0) {
+                int n = (int) Math.min(remaining, FILLER.length);
+                body.write(FILLER, 0, n);
+                remaining -= n;
+            }
+            body.write(PDF_TRAILER);
+
+            return new MockResponse()
+                    .setHeader("Content-Type", "application/pdf")
+                    .setBody(body);
+        }
+    }
+
+}
@@ -0,0 +1,327 @@
+package com.plutext.services.client.android.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the converter endpoint.  It reads the whole
+ * upload, then responds with a fabricated "PDF" of the same size (or of a
+ * fixed size), sent either with a Content-Length or chunked.
+ *
+ * With setResumable, each result is also given a Content-Location and an
+ * ETag, and can be fetched again from there, in whole or (with a Range
+ * header) in part; setBreakAfter makes downloads break off part way, to
+ * have something to resume.
+ */
+public class StubConverterServer {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] PDF_HEADER = "%PDF-1.4\n".getBytes(US_ASCII);
+    private static final byte[] PDF_TRAILER = "\n%%EOF\n".getBytes(US_ASCII);
+
+    private static final byte[] FILLER = new byte[64 * 1024];
+
+    private static final String RESULTS_PATH = "/convert/results/";
+
+    static {
+        for (int i = 0; i < FILLER.length; i++) {
+            FILLER[i] = (byte) ('a' + i % 26);
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private volatile long responseSize = -1;
+    private volatile boolean chunked = false;
+    private volatile long delayMillis = 0;
+    private volatile int failureStatus = 0;
+    private volatile boolean resumable = false;
+    private volatile long breakAfter = -1;
+    private final AtomicInteger breaksLeft = new AtomicInteger();
+
+    // result sizes, by id
+    private final Map<Integer, Long> results = new ConcurrentHashMap<Integer, Long>();
+    private final AtomicInteger nextResultId = new AtomicInteger();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+
+    public StubConverterServer() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/convert", new ConvertHandler());
+        server.createContext(RESULTS_PATH, new ResultHandler());
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "stub-converter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getEndpointURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/convert";
+    }
+
+    /**
+     * @param responseSize bytes to respond with, or -1 to match the upload
+     */
+    public void setResponseSize(long responseSize) {
+        this.responseSize = responseSize;
+    }
+
+    /**
+     * @param chunked whether to send responses chunked, rather than with a Content-Length
+     */
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * @param delayMillis how long to "convert" for, after reading the upload
+     */
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * @param failureStatus HTTP status to fail every conversion with, or 0 to succeed
+     */
+    public void setFailureStatus(int failureStatus) {
+        this.failureStatus = failureStatus;
+    }
+
+    /**
+     * @param resumable whether to give results a Content-Location and ETag,
+     * and serve them (and ranges of them) from there
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * Make the next count downloads (conversions or fetches of results)
+     * break off after bytes bytes of the response body.
+     */
+    public void setBreakAfter(long bytes, int count) {
+        breakAfter = bytes;
+        breaksLeft.set(count);
+    }
+
+    /**
+     * @return the number of requests for part of a result so far
+     */
+    public int getRangeRequestCount() {
+        return rangeRequests.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private class ConvertHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+
+            boolean brokenOff = false;
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+
+                long uploaded = drain(exchange.getRequestBody());
+
+                if (delayMillis > 0) {
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (failureStatus != 0) {
+                    exchange.sendResponseHeaders(failureStatus, -1);
+                    return;
+                }
+
+                long size = responseSize < 0 ? uploaded : responseSize;
+                size = Math.max(size, PDF_HEADER.length + PDF_TRAILER.length);
+
+                exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+                if (resumable) {
+                    int id = nextResultId.incrementAndGet();
+                    results.put(id, size);
+                    exchange.getResponseHeaders().set("Content-Location", RESULTS_PATH + id);
+                    exchange.getResponseHeaders().set("ETag", etag(id, size));
+                }
+                exchange.sendResponseHeaders(200, chunked ? 0 : size);
+
+                writeResult(exchange.getResponseBody(), size, 0);
+
+            } catch (BrokenOffException e) {
+                brokenOff = true;
+                throw e;
+            } finally {
+                if (!brokenOff) {
+                    exchange.close();
+                }
+            }
+        }
+
+        private long drain(InputStream in) throws IOException {
+
+            byte[] buf = new byte[64 * 1024];
+            long total = 0;
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                total += n;
+            }
+            in.close();
+            return total;
+        }
+    }
+
+    /**
+     * Serves results again, in whole or from the start of a "bytes=N-" Range.
+     */
+    private class ResultHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+
+            boolean brokenOff = false;
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+
+                Long size = null;
+                int id = -1;
+                try {
+                    id = Integer.parseInt(exchange.getRequestURI().getPath().substring(RESULTS_PATH.length()));
+                    size = results.get(id);
+                } catch (NumberFormatException e) {
+                    // not found
+                }
+                if (size == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+
+                String etag = etag(id, size);
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                long from = 0;
+                if (range != null && range.startsWith("bytes=") && range.endsWith("-")
+                        && (ifRange == null || ifRange.equals(etag))) {
+                    from = Long.parseLong(range.substring("bytes=".length(), range.length() - 1));
+                }
+
+                exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (from > 0) {
+                    rangeRequests.incrementAndGet();
+                    if (from >= size) {
+                        exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                        exchange.sendResponseHeaders(416, -1);
+                        return;
+                    }
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + from + "-" + (size - 1) + "/" + size);
+                    exchange.sendResponseHeaders(206, size - from);
+                } else {
+                    exchange.sendResponseHeaders(200, size);
+                }
+
+                writeResult(exchange.getResponseBody(), size, from);
+
+            } catch (BrokenOffException e) {
+                brokenOff = true;
+                throw e;
+            } finally {
+                if (!brokenOff) {
+                    exchange.close();
+                }
+            }
+        }
+    }
+
+    private static String etag(int id, long size) {
+        return "\"" + id + "-" + size + "\"";
+    }
+
+    /**
+     * Write bytes from onwards of a "PDF" of size bytes, unless this download
+     * is to break off, in which case the connection is dropped part way.
+     */
+    private void writeResult(OutputStream out, long size, long from) throws IOException {
+
+        long limit = Long.MAX_VALUE;
+        if (breakAfter >= 0 && breaksLeft.getAndDecrement() > 0) {
+            limit = breakAfter;
+        }
+
+        long position = from;
+        long written = 0;
+        while (position < size) {
+            if (written >= limit) {
+                out.flush();
+                throw new BrokenOffException(written);
+            }
+
+            byte[] source;
+            int offset;
+            if (position < PDF_HEADER.length) {
+                source = PDF_HEADER;
+                offset = (int) position;
+            } else if (position >= size - PDF_TRAILER.length) {
+                source = PDF_TRAILER;
+                offset = (int) (position - (size - PDF_TRAILER.length));
+            } else {
+                source = FILLER;
+                offset = (int) ((position - PDF_HEADER.length) % FILLER.length);
+            }
+            long end = source == FILLER ? size - PDF_TRAILER.length : size;
+            int n = (int) Math.min(Math.min(source.length - offset, end - position), limit - written);
+            out.write(source, offset, n);
+            position += n;
+            written += n;
+        }
+        out.close();
+    }
+
+    /**
+     * Thrown out of a handler without closing the exchange, so HttpServer
+     * drops the connection, rather than finishing the response.
+     */
+    @SuppressWarnings("serial")
+    private static class BrokenOffException extends IOException {
+
+        BrokenOffException(long written) {
+            super("Breaking off the download after " + written + " bytes");
+        }
+    }
+
+}